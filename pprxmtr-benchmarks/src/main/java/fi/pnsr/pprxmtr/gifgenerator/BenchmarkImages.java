@@ -0,0 +1,62 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RadialGradientPaint;
+import java.awt.RenderingHints;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Deterministic emoji-like images for the benchmarks: a shaded face on a transparent background with antialiased
+ * edges, which is close to what the gif generator gets as input.
+ */
+public class BenchmarkImages {
+
+	public static BufferedImage emoji(int size) {
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+		float radius = size * 0.45f;
+		float center = size / 2.0f;
+		g.setPaint(new RadialGradientPaint(center - radius / 3, center - radius / 3, radius * 1.5f,
+				new float[] { 0.0f, 0.6f, 1.0f },
+				new Color[] { new Color(255, 240, 120), new Color(250, 200, 40), new Color(200, 120, 20) }));
+		g.fill(new Ellipse2D.Float(center - radius, center - radius, 2 * radius, 2 * radius));
+
+		g.setColor(new Color(60, 40, 20));
+		float eye = size / 12.0f;
+		g.fill(new Ellipse2D.Float(center - radius / 2 - eye / 2, center - radius / 3, eye, eye * 1.5f));
+		g.fill(new Ellipse2D.Float(center + radius / 2 - eye / 2, center - radius / 3, eye, eye * 1.5f));
+		g.setStroke(new BasicStroke(Math.max(1.0f, size / 32.0f)));
+		g.draw(new Arc2D.Float(center - radius / 2, center - radius / 3, radius, radius, 200, 140, Arc2D.OPEN));
+		g.dispose();
+
+		return image;
+	}
+
+	/**
+	 * Quantizes and dithers the image with the gif writer and returns the resulting color palette indices, i.e. the
+	 * input of the LZW encoder.
+	 */
+	public static byte[] indexedPixels(BufferedImage image) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		new AnimatedGIFWriter(true).write(image, os);
+		BufferedImage indexed = ImageIO.read(new ByteArrayInputStream(os.toByteArray()));
+		Raster raster = indexed.getRaster();
+		int[] samples = raster.getSamples(0, 0, raster.getWidth(), raster.getHeight(), 0, (int[]) null);
+		byte[] pixels = new byte[samples.length];
+		for (int i = 0; i < samples.length; i++) {
+			pixels[i] = (byte) samples[i];
+		}
+		return pixels;
+	}
+}
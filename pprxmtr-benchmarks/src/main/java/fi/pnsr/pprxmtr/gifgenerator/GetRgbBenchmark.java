@@ -0,0 +1,78 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the ARGB pixels of a frame with AnimatedGIFWriter.getRGB for the image types the decoders and Java2D
+ * produce. An ARGB image is returned without copying, the other types are converted. Besides the predefined types,
+ * PNG_GRAY_ALPHA and PNG_RGBA_16 are the custom layouts ImageIO decodes gray+alpha and 16 bit RGBA PNGs to.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GetRgbBenchmark {
+
+	private BufferedImage image;
+
+	@Param({ "32", "64", "96", "128" })
+	public int size;
+
+	@Param({ "TYPE_INT_ARGB", "TYPE_INT_ARGB_PRE", "TYPE_INT_RGB", "TYPE_4BYTE_ABGR", "TYPE_3BYTE_BGR", "TYPE_BYTE_INDEXED",
+			"TYPE_BYTE_GRAY", "TYPE_USHORT_565_RGB", "TYPE_USHORT_555_RGB", "TYPE_USHORT_GRAY", "TYPE_BYTE_BINARY",
+			"PNG_GRAY_ALPHA", "PNG_RGBA_16" })
+	public String type;
+
+	// An image with 8 or 16 bit interleaved components and alpha, as ImageIO decodes PNG images that have no
+	// predefined type
+	private static BufferedImage componentImage(int size, ColorSpace colorSpace, int dataType) {
+		ComponentColorModel colorModel = new ComponentColorModel(colorSpace, true, false, Transparency.TRANSLUCENT,
+				dataType);
+		return new BufferedImage(colorModel, Raster.createInterleavedRaster(dataType, size, size,
+				colorSpace.getNumComponents() + 1, null), false, null);
+	}
+
+	@Benchmark
+	public int[] getRGB() {
+		return AnimatedGIFWriter.getRGB(image);
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		BufferedImage emoji = BenchmarkImages.emoji(size);
+		switch (type) {
+		case "PNG_GRAY_ALPHA":
+			image = componentImage(size, ColorSpace.getInstance(ColorSpace.CS_GRAY), DataBuffer.TYPE_BYTE);
+			break;
+		case "PNG_RGBA_16":
+			image = componentImage(size, ColorSpace.getInstance(ColorSpace.CS_sRGB), DataBuffer.TYPE_USHORT);
+			break;
+		default:
+			image = new BufferedImage(size, size, BufferedImage.class.getField(type).getInt(null));
+		}
+		Graphics2D g = image.createGraphics();
+		g.drawImage(emoji, 0, 0, null);
+		g.dispose();
+	}
+}
@@ -0,0 +1,271 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * End to end regression gate for {@link GifGeneratorHandler#generate(InputStream)}, the conversion the handler runs for
+ * every request, with its sizes, output format and size budget. Every image in the corpus directory is converted a
+ * number of times after a warm-up, and the total size of the gifs the handler stores, the median bytes allocated per
+ * conversion and the latency percentiles are compared against a stored baseline. The process exits with status 1 if
+ * any of them is worse than the baseline by more than its tolerance, which fails the build.
+ * <p>
+ * The gif size and the allocations are checked by every {@code mvn verify} of pprxmtr-benchmarks, so CI runs them
+ * without any extra flags. Latencies are only checked by the regression profile,
+ * {@code mvn verify -P regression -pl pprxmtr-benchmarks -am}, which also measures more runs. They depend too much
+ * on the load of a shared build machine to fail every build.
+ * <p>
+ * Usage: {@code GifGeneratorRegression <corpus directory> <baseline file>}. The following system properties are
+ * understood:
+ * <ul>
+ * <li>{@code regression.updateBaseline}: true to write the measurements as the new baseline instead of comparing</li>
+ * <li>{@code regression.checkLatency}: true to compare the latencies too, not only the size and the allocations</li>
+ * <li>{@code regression.warmups}, {@code regression.runs}: conversions per image before and during measuring</li>
+ * <li>{@code regression.latencyTolerance}, {@code regression.tailLatencyTolerance},
+ * {@code regression.allocationTolerance}, {@code regression.sizeTolerance}: allowed relative increase of the p50 and
+ * p90 latencies, the p99 latency, the allocated bytes and the gif size</li>
+ * </ul>
+ * <p>
+ * The baseline has to be regenerated whenever a change moves the metrics on purpose, in the same commit, with
+ * {@code mvn verify -P regression -pl pprxmtr-benchmarks -am -Dregression.updateBaseline=true}. Latencies and
+ * allocations depend on the machine, so the baseline should come from the machine the gate runs on.
+ */
+public class GifGeneratorRegression {
+
+	// Measurements of one corpus image, in the units stored in the baseline
+	private static final class Measurement {
+		final Map<String, Long> metrics = new TreeMap<>();
+
+		final String image;
+
+		Measurement(String image) {
+			this.image = image;
+		}
+	}
+
+	/**
+	 * Creates the workers of the common pool the way Java 8, which the Lambda runs on, does. From Java 9 on, the
+	 * workers of the common pool drop their thread locals after every task, so the frame encoders would allocate their
+	 * tables again for most frames, a different number of times in every run.
+	 */
+	public static final class WorkerThreadFactory implements ForkJoinWorkerThreadFactory {
+		@Override
+		public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+			return new ForkJoinWorkerThread(pool) {
+			};
+		}
+	}
+
+	private static final String ALLOCATED_BYTES = "allocatedBytes";
+
+	private static final String OUTPUT_BYTES = "outputBytes";
+
+	private static final String P50_MICROS = "p50Micros";
+
+	private static final String P90_MICROS = "p90Micros";
+
+	private static final String P99_MICROS = "p99Micros";
+
+	// Bytes allocated so far by all live threads, as the frames are encoded on a pool
+	private static long allocatedBytes(ThreadMXBean threads) {
+		long total = 0;
+		for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			if (allocated > 0) {
+				total += allocated;
+			}
+		}
+		return total;
+	}
+
+	/**
+	 * Compares the measurements against the baseline and prints every metric that is worse by more than its
+	 * tolerance. Latencies are skipped unless regression.checkLatency is set.
+	 *
+	 * @return the number of regressions
+	 */
+	private static int compare(List<Measurement> measurements, Properties baseline) {
+		double latencyTolerance = Double.parseDouble(System.getProperty("regression.latencyTolerance", "0.5"));
+		double tailLatencyTolerance = Double.parseDouble(System.getProperty("regression.tailLatencyTolerance", "1.0"));
+		double allocationTolerance = Double.parseDouble(System.getProperty("regression.allocationTolerance", "0.2"));
+		double sizeTolerance = Double.parseDouble(System.getProperty("regression.sizeTolerance", "0.02"));
+		boolean checkLatency = Boolean.getBoolean("regression.checkLatency");
+
+		int regressions = 0;
+		for (Measurement measurement : measurements) {
+			for (Map.Entry<String, Long> metric : measurement.metrics.entrySet()) {
+				boolean latency = !ALLOCATED_BYTES.equals(metric.getKey()) && !OUTPUT_BYTES.equals(metric.getKey());
+				if (latency && !checkLatency) {
+					continue;
+				}
+				String key = measurement.image + "." + metric.getKey();
+				String expected = baseline.getProperty(key);
+				if (expected == null) {
+					System.out.printf("No baseline for %s, update the baseline to include it%n", key);
+					continue;
+				}
+				double tolerance;
+				switch (metric.getKey()) {
+				case ALLOCATED_BYTES:
+					tolerance = allocationTolerance;
+					break;
+				case OUTPUT_BYTES:
+					tolerance = sizeTolerance;
+					break;
+				case P99_MICROS:
+					// With a few tens of runs this is close to the slowest run, so it is the noisiest metric
+					tolerance = tailLatencyTolerance;
+					break;
+				default:
+					tolerance = latencyTolerance;
+				}
+				long limit = (long) (Long.parseLong(expected) * (1.0 + tolerance));
+				if (metric.getValue() > limit) {
+					System.out.printf("REGRESSION %s: %d, baseline %s, limit %d%n", key, metric.getValue(), expected,
+							limit);
+					regressions++;
+				}
+			}
+		}
+		return regressions;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 2) {
+			System.err.println("Usage: GifGeneratorRegression <corpus directory> <baseline file>");
+			System.exit(2);
+		}
+		// Read when the common pool is created, so it has to be set before anything uses the pool
+		System.setProperty("java.util.concurrent.ForkJoinPool.common.threadFactory",
+				WorkerThreadFactory.class.getName());
+		Path corpus = Paths.get(args[0]);
+		Path baselineFile = Paths.get(args[1]);
+		int warmups = Integer.getInteger("regression.warmups", 5);
+		int runs = Integer.getInteger("regression.runs", 20);
+
+		// The generator logs every step, which would only add noise to the measurements
+		Configurator.setRootLevel(Level.WARN);
+
+		List<Path> images = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(corpus)) {
+			for (Path image : stream) {
+				images.add(image);
+			}
+		}
+		images.sort(null);
+
+		List<Measurement> measurements = measure(images, warmups, runs);
+		System.out.printf("%-20s %10s %10s %10s %14s %10s%n", "image", P50_MICROS, P90_MICROS, P99_MICROS,
+				ALLOCATED_BYTES, OUTPUT_BYTES);
+		for (Measurement measurement : measurements) {
+			Map<String, Long> metrics = measurement.metrics;
+			System.out.printf("%-20s %10d %10d %10d %14d %10d%n", measurement.image, metrics.get(P50_MICROS),
+					metrics.get(P90_MICROS), metrics.get(P99_MICROS), metrics.get(ALLOCATED_BYTES),
+					metrics.get(OUTPUT_BYTES));
+		}
+
+		if (Boolean.getBoolean("regression.updateBaseline")) {
+			writeBaseline(measurements, baselineFile);
+			System.out.printf("Baseline written to %s%n", baselineFile);
+			return;
+		}
+
+		Properties baseline = new Properties();
+		try (InputStream is = Files.newInputStream(baselineFile)) {
+			baseline.load(is);
+		}
+		int regressions = compare(measurements, baseline);
+		if (regressions > 0) {
+			System.out.printf("%d metric(s) regressed past their tolerance%n", regressions);
+			System.exit(1);
+		}
+		System.out.println("No regressions");
+	}
+
+	/**
+	 * Converts every image the given number of times. The images take turns in every round, so that a slow period of
+	 * the machine is spread over all of them instead of failing the one that happened to be measured during it.
+	 */
+	private static List<Measurement> measure(List<Path> images, int warmups, int runs) throws IOException {
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		byte[][] originals = new byte[images.size()][];
+		for (int i = 0; i < originals.length; i++) {
+			originals[i] = Files.readAllBytes(images.get(i));
+		}
+		long[][] latencies = new long[images.size()][runs];
+		long[][] allocated = new long[images.size()][runs];
+		int[] outputBytes = new int[images.size()];
+
+		for (int round = -warmups; round < runs; round++) {
+			for (int i = 0; i < originals.length; i++) {
+				long allocatedBefore = allocatedBytes(threads);
+				long start = System.nanoTime();
+				Map<Integer, ByteBuffer> gifs = GifGeneratorHandler.generate(new ByteArrayInputStream(originals[i]));
+				long latency = System.nanoTime() - start;
+				if (round >= 0) {
+					latencies[i][round] = latency;
+					allocated[i][round] = allocatedBytes(threads) - allocatedBefore;
+				}
+				// Every size the handler stores
+				outputBytes[i] = 0;
+				for (int size : GifGeneratorHandler.sizesToStore(gifs)) {
+					outputBytes[i] += gifs.get(size).remaining();
+				}
+			}
+		}
+
+		List<Measurement> measurements = new ArrayList<>(images.size());
+		for (int i = 0; i < originals.length; i++) {
+			Arrays.sort(latencies[i]);
+			// The median, as class loading and recompilation make a few runs allocate much more
+			Arrays.sort(allocated[i]);
+			Measurement measurement = new Measurement(images.get(i).getFileName().toString());
+			measurement.metrics.put(P50_MICROS, percentile(latencies[i], 50) / 1000);
+			measurement.metrics.put(P90_MICROS, percentile(latencies[i], 90) / 1000);
+			measurement.metrics.put(P99_MICROS, percentile(latencies[i], 99) / 1000);
+			measurement.metrics.put(ALLOCATED_BYTES, percentile(allocated[i], 50));
+			measurement.metrics.put(OUTPUT_BYTES, (long) outputBytes[i]);
+			measurements.add(measurement);
+		}
+		return measurements;
+	}
+
+	// Nearest rank percentile of sorted values
+	private static long percentile(long[] sorted, int percentile) {
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	private static void writeBaseline(List<Measurement> measurements, Path baselineFile) throws IOException {
+		try (Writer writer = Files.newBufferedWriter(baselineFile, StandardCharsets.ISO_8859_1)) {
+			writer.write("# GifGeneratorRegression baseline, regenerate with -Dregression.updateBaseline=true\n");
+			for (Measurement measurement : measurements) {
+				for (Map.Entry<String, Long> metric : measurement.metrics.entrySet()) {
+					writer.write(measurement.image + "." + metric.getKey() + "=" + metric.getValue() + "\n");
+				}
+			}
+		}
+	}
+}
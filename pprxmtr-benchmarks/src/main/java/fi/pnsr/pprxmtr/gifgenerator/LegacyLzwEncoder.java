@@ -0,0 +1,153 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The LZW encoder of AnimatedGIFWriter before it was rewritten to use a hashed string table and word at a time bit
+ * packing. Kept here unchanged as the baseline for {@link LzwEncodeBenchmark}.
+ */
+public class LegacyLzwEncoder {
+
+	private static final int MASK[] = { 0x00, 0x01, 0x03, 0x07, 0x0f, 0x1f, 0x3f, 0x7f, 0xff };
+
+	private int bufIndex;
+	private byte bytes_buf[] = new byte[256];
+	/**
+	 * A child is made up of a parent(or prefix) code plus a suffix color and siblings are strings with a common
+	 * parent(or prefix) and different suffix colors
+	 */
+	int child[] = new int[4097];
+	private int clearCode;
+	private int codeIndex;
+	private int codeLen;
+	private final ByteArrayOutputStream data = new ByteArrayOutputStream(4096);
+	private int empty_bits = 0x08;
+	private int endOfImage;
+	int siblings[] = new int[4097];
+	int suffix[] = new int[4097];
+
+	public byte[] encode(byte[] pixels, int bitsPerPixel) throws Exception {
+		data.reset();
+		empty_bits = 0x08;
+		encode(pixels, bitsPerPixel, data);
+		return data.toByteArray();
+	}
+
+	private void encode(byte[] pixels, int bitsPerPixel, OutputStream os) throws Exception {
+		// Define local variables
+		int parent = 0;
+		int son = 0;
+		int brother = 0;
+		int color = 0;
+		int index = 0;
+		int dimension = pixels.length;
+
+		// Write out the length of the root
+		os.write(bitsPerPixel = bitsPerPixel == 1 ? 2 : bitsPerPixel);
+		// Initialize the encoder
+		init_encoder(bitsPerPixel);
+		// Tell the decoder to initialize the string table
+		send_code_to_buffer(clearCode, os);
+		// Get the first color and assign it to parent
+		parent = pixels[index++] & 0xff;
+
+		while (index < dimension) {
+			color = pixels[index++] & 0xff;
+			son = child[parent];
+
+			if (son > 0) {
+				if (suffix[son] == color) {
+					parent = son;
+				} else {
+					brother = son;
+					while (true) {
+						if (siblings[brother] > 0) {
+							brother = siblings[brother];
+							if (suffix[brother] == color) {
+								parent = brother;
+								break;
+							}
+						} else {
+							siblings[brother] = codeIndex;
+							suffix[codeIndex] = color;
+							send_code_to_buffer(parent, os);
+							parent = color;
+							codeIndex++;
+							// Check code length
+							if (codeIndex > 1 << codeLen) {
+								if (codeLen == 12) {
+									send_code_to_buffer(clearCode, os);
+									init_encoder(bitsPerPixel);
+								} else {
+									codeLen++;
+								}
+							}
+							break;
+						}
+					}
+				}
+			} else {
+				child[parent] = codeIndex;
+				suffix[codeIndex] = color;
+				send_code_to_buffer(parent, os);
+				parent = color;
+				codeIndex++;
+				// Check code length
+				if (codeIndex > 1 << codeLen) {
+					if (codeLen == 12) {
+						send_code_to_buffer(clearCode, os);
+						init_encoder(bitsPerPixel);
+					} else {
+						codeLen++;
+					}
+				}
+			}
+		}
+		// Send the last color code to the buffer
+		send_code_to_buffer(parent, os);
+		// Send the endOfImage code to the buffer
+		send_code_to_buffer(endOfImage, os);
+		// Flush the last code buffer
+		flush_buf(os, bufIndex + 1);
+	}
+
+	private void flush_buf(OutputStream os, int len) throws Exception {
+		os.write(len);
+		os.write(bytes_buf, 0, len);
+		// Clear the bytes buffer
+		bufIndex = 0;
+		Arrays.fill(bytes_buf, 0, 0xff, (byte) 0x00);
+	}
+
+	private void init_encoder(int bitsPerPixel) {
+		clearCode = 1 << bitsPerPixel;
+		endOfImage = clearCode + 1;
+		codeLen = bitsPerPixel + 1;
+		codeIndex = endOfImage + 1;
+		// Reset arrays
+		Arrays.fill(child, 0);
+		Arrays.fill(siblings, 0);
+		Arrays.fill(suffix, 0);
+	}
+
+	// Translate codes into bytes
+	private void send_code_to_buffer(int code, OutputStream os) throws Exception {
+		int temp = codeLen;
+		// Shift the code to the left of the last byte in bytes_buf
+		bytes_buf[bufIndex] |= (code & MASK[empty_bits]) << 8 - empty_bits;
+		code >>= empty_bits;
+		temp -= empty_bits;
+		// If the code is longer than the empty_bits
+		while (temp > 0) {
+			if (++bufIndex >= 0xff) {
+				flush_buf(os, 0xff);
+			}
+			bytes_buf[bufIndex] |= code & 0xff;
+			code >>= 8;
+			temp -= 8;
+		}
+		empty_bits = -temp;
+	}
+}
@@ -0,0 +1,70 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * LZW encoding throughput of the current encoder against the original child/sibling list encoder. The "bytes"
+ * secondary result is the number of color indices encoded per microsecond, i.e. MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LzwEncodeBenchmark {
+
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Throughput {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+
+	private AnimatedGIFWriter.FrameEncoder encoder;
+
+	private LegacyLzwEncoder legacyEncoder;
+
+	private byte[] pixels;
+
+	// Cropped frame, the full frame of the generated gifs and a large custom emoji
+	@Param({ "48", "96", "256" })
+	public int size;
+
+	@Benchmark
+	public byte[] hashed(Throughput throughput) {
+		throughput.bytes += pixels.length;
+		return encoder.encode(pixels, 8);
+	}
+
+	@Benchmark
+	public byte[] legacy(Throughput throughput) throws Exception {
+		throughput.bytes += pixels.length;
+		return legacyEncoder.encode(pixels, 8);
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		pixels = BenchmarkImages.indexedPixels(BenchmarkImages.emoji(size));
+		encoder = new AnimatedGIFWriter.FrameEncoder();
+		legacyEncoder = new LegacyLzwEncoder();
+	}
+}
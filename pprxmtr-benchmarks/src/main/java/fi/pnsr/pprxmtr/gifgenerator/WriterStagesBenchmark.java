@@ -0,0 +1,107 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The stages AnimatedGIFWriter goes through for every frame, each on its own, and a whole frame for comparison. The
+ * inputs of each stage are prepared once from the emoji of {@link BenchmarkImages}, at the sizes the gif generator
+ * produces. Run through {@link BenchmarkMain} to see the allocations of each stage next to its time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WriterStagesBenchmark {
+
+	private final int[] colorInfo = new int[2];
+
+	private int colors;
+
+	private AnimatedGIFWriter.FrameEncoder encoder;
+
+	private final int[] exactPalette = new int[256];
+
+	private BufferedImage image;
+
+	private byte[] indexedPixels;
+
+	private AnimatedGIFWriter.InverseColorMap inverseMap;
+
+	private byte[] newPixels;
+
+	private ByteBufferOutputStream os;
+
+	private final int[] palette = new int[256];
+
+	private int[] pixels;
+
+	private AnimatedGIFWriter.WuQuant quantizer;
+
+	@Param({ "32", "64", "96", "128" })
+	public int size;
+
+	private AnimatedGIFWriter writer;
+
+	@Benchmark
+	public int[] checkColorDepth() {
+		return AnimatedGIFWriter.checkColorDepth(encoder, pixels, newPixels, exactPalette);
+	}
+
+	@Benchmark
+	public byte[] ditherFloydSteinberg() {
+		AnimatedGIFWriter.dither_FloydSteinberg(pixels, size, size, newPixels, inverseMap, palette, colorInfo[1]);
+		return newPixels;
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return encoder.encode(indexedPixels, colorInfo[0]);
+	}
+
+	@Setup
+	public void setUp() throws Exception {
+		image = BenchmarkImages.emoji(size);
+		pixels = AnimatedGIFWriter.getRGB(image);
+		newPixels = new byte[pixels.length];
+		encoder = new AnimatedGIFWriter.FrameEncoder();
+		quantizer = new AnimatedGIFWriter.WuQuant();
+		colors = wuQuantize();
+		inverseMap = AnimatedGIFWriter.InverseColorMap.forPalette(colors, palette);
+		indexedPixels = BenchmarkImages.indexedPixels(image);
+		os = new ByteBufferOutputStream();
+		writer = new AnimatedGIFWriter(true);
+		writer.prepareForWrite(os, size, size);
+		writer.writeFrame(os, image);
+	}
+
+	@Benchmark
+	public int wuQuantize() {
+		quantizer.reset(pixels, pixels.length, 256, 1);
+		return quantizer.quantize(palette, colorInfo);
+	}
+
+	/**
+	 * A frame of an animation after the first one: quantized, dithered and encoded with its own palette.
+	 */
+	@Benchmark
+	public int writeFrame() throws Exception {
+		os.reset();
+		writer.writeFrame(os, image);
+		return os.size();
+	}
+}
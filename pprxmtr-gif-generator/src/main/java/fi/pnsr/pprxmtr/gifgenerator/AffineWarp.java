@@ -0,0 +1,263 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+
+/**
+ * Affine transformation of ARGB pixels in plain Java, without Java2D. The result matches drawing the source image
+ * with the transform onto a transparent image: a destination pixel is covered when its center maps inside the source
+ * image, and its color is interpolated from the source pixels around that point, with the pixels on the edges of the
+ * source repeated outwards. Colors are interpolated premultiplied by alpha so that transparent pixels do not bleed
+ * into the opaque ones.
+ */
+final class AffineWarp {
+
+	/**
+	 * How colors between the source pixels are interpolated.
+	 */
+	enum Interpolation {
+		/**
+		 * Cubic convolution over 4x4 source pixels, as Java2D does it. Sharper, but four times the work of bilinear.
+		 */
+		BICUBIC,
+		/**
+		 * Linear interpolation between 2x2 source pixels.
+		 */
+		BILINEAR
+	}
+
+	// Coefficient of the cubic convolution kernel, the same as in Java2D
+	private static final double CUBIC_A = -0.5;
+
+	// Source positions are rounded to 1/256 of a pixel, which is finer than any difference visible after quantization
+	private static final int PHASE_BITS = 8;
+
+	private static final int PHASES = 1 << PHASE_BITS;
+
+	// Weights are fixed point numbers with this many fraction bits, so the sum of 16 weighted samples fits in an int
+	private static final int WEIGHT_BITS = 10;
+
+	/**
+	 * Cubic convolution weights of the four source pixels around each phase, the weights of one phase adding up to
+	 * exactly one.
+	 */
+	private static final int[] CUBIC_WEIGHTS = new int[PHASES * 4];
+
+	static {
+		for (int phase = 0; phase < PHASES; phase++) {
+			double t = (double) phase / PHASES;
+			double t1 = 1.0 + t;
+			double t2 = 1.0 - t;
+			double t3 = 2.0 - t;
+			double[] weights = { ((CUBIC_A * t1 - 5.0 * CUBIC_A) * t1 + 8.0 * CUBIC_A) * t1 - 4.0 * CUBIC_A,
+					((CUBIC_A + 2.0) * t - (CUBIC_A + 3.0)) * t * t + 1.0,
+					((CUBIC_A + 2.0) * t2 - (CUBIC_A + 3.0)) * t2 * t2 + 1.0,
+					((CUBIC_A * t3 - 5.0 * CUBIC_A) * t3 + 8.0 * CUBIC_A) * t3 - 4.0 * CUBIC_A };
+			int sum = 0;
+			for (int k = 0; k < 4; k++) {
+				CUBIC_WEIGHTS[phase * 4 + k] = (int) Math.round(weights[k] * (1 << WEIGHT_BITS));
+				sum += CUBIC_WEIGHTS[phase * 4 + k];
+			}
+			// Rounding errors go to the largest weight
+			CUBIC_WEIGHTS[phase * 4 + (phase < PHASES / 2 ? 1 : 2)] += (1 << WEIGHT_BITS) - sum;
+		}
+	}
+
+	/**
+	 * Compiles the transform into a sampling map, which tells for every destination pixel whether it is covered by the
+	 * source and where in the source it is interpolated from. Warping with the map skips all the transform math, so a
+	 * map is worth keeping when the same transform is applied to many images of the same size.
+	 *
+	 * @param sourceWidth
+	 *            width of the source
+	 * @param sourceHeight
+	 *            height of the source
+	 * @param transform
+	 *            transform from source to destination coordinates
+	 * @param width
+	 *            width of the destination
+	 * @param height
+	 *            height of the destination
+	 * @return two ints for every destination pixel, row by row: the position of the source pixel up and left of the
+	 *         sampling point, or -1 if the pixel is not covered, and the phase of the point between the source pixels
+	 * @throws IllegalArgumentException
+	 *             if the transform cannot be inverted
+	 */
+	static int[] compile(int sourceWidth, int sourceHeight, AffineTransform transform, int width, int height) {
+		AffineTransform inverse;
+		try {
+			inverse = transform.createInverse();
+		} catch (NoninvertibleTransformException e) {
+			throw new IllegalArgumentException("Transform cannot be inverted: " + transform, e);
+		}
+		double m00 = inverse.getScaleX();
+		double m01 = inverse.getShearX();
+		double m02 = inverse.getTranslateX();
+		double m10 = inverse.getShearY();
+		double m11 = inverse.getScaleY();
+		double m12 = inverse.getTranslateY();
+		int[] map = new int[2 * width * height];
+
+		for (int y = 0, i = 0; y < height; y++) {
+			// Source coordinates of the center of the first pixel in the row
+			double u = m00 * 0.5 + m01 * (y + 0.5) + m02;
+			double v = m10 * 0.5 + m11 * (y + 0.5) + m12;
+			for (int x = 0; x < width; x++, i += 2, u += m00, v += m10) {
+				if (!(u >= 0.0 && u < sourceWidth && v >= 0.0 && v < sourceHeight)) {
+					map[i] = -1;
+					continue;
+				}
+				// Position relative to the centers of the source pixels in phases, at least -PHASES / 2
+				int sx = (int) ((u - 0.5) * PHASES + PHASES) - PHASES;
+				int sy = (int) ((v - 0.5) * PHASES + PHASES) - PHASES;
+				// The pixel up and left is at least -1, so it is stored plus one
+				map[i] = (sy >> PHASE_BITS) + 1 << 16 | (sx >> PHASE_BITS) + 1;
+				map[i + 1] = (sy & PHASES - 1) << PHASE_BITS | sx & PHASES - 1;
+			}
+		}
+		return map;
+	}
+
+	// Interpolates the color at the given phase after the source pixel x0, y0
+	private static int sample(int[] source, int sourceWidth, int sourceHeight, int x0, int y0, int fx, int fy,
+			boolean bicubic) {
+		int lastX = sourceWidth - 1;
+		int lastY = sourceHeight - 1;
+		int alpha = 0;
+		int red = 0;
+		int green = 0;
+		int blue = 0;
+		if (bicubic) {
+			int c0 = Math.min(Math.max(x0 - 1, 0), lastX);
+			int c1 = Math.min(Math.max(x0, 0), lastX);
+			int c2 = Math.min(Math.max(x0 + 1, 0), lastX);
+			int c3 = Math.min(Math.max(x0 + 2, 0), lastX);
+			int wx0 = CUBIC_WEIGHTS[fx * 4];
+			int wx1 = CUBIC_WEIGHTS[fx * 4 + 1];
+			int wx2 = CUBIC_WEIGHTS[fx * 4 + 2];
+			int wx3 = CUBIC_WEIGHTS[fx * 4 + 3];
+			for (int j = 0; j < 4; j++) {
+				int row = Math.min(Math.max(y0 - 1 + j, 0), lastY) * sourceWidth;
+				int wy = CUBIC_WEIGHTS[fy * 4 + j];
+				int p0 = source[row + c0];
+				int p1 = source[row + c1];
+				int p2 = source[row + c2];
+				int p3 = source[row + c3];
+				// Horizontal interpolation of the row first, then weighted by the row
+				alpha += wy * (wx0 * (p0 >>> 24) + wx1 * (p1 >>> 24) + wx2 * (p2 >>> 24) + wx3 * (p3 >>> 24));
+				red += wy * (wx0 * (p0 >> 16 & 0xff) + wx1 * (p1 >> 16 & 0xff) + wx2 * (p2 >> 16 & 0xff)
+						+ wx3 * (p3 >> 16 & 0xff));
+				green += wy * (wx0 * (p0 >> 8 & 0xff) + wx1 * (p1 >> 8 & 0xff) + wx2 * (p2 >> 8 & 0xff)
+						+ wx3 * (p3 >> 8 & 0xff));
+				blue += wy * (wx0 * (p0 & 0xff) + wx1 * (p1 & 0xff) + wx2 * (p2 & 0xff) + wx3 * (p3 & 0xff));
+			}
+		} else {
+			int c0 = Math.max(x0, 0);
+			int c1 = Math.min(x0 + 1, lastX);
+			int r0 = Math.max(y0, 0) * sourceWidth;
+			int r1 = Math.min(y0 + 1, lastY) * sourceWidth;
+			int wx1 = fx << WEIGHT_BITS - PHASE_BITS;
+			int wx0 = (1 << WEIGHT_BITS) - wx1;
+			int wy1 = fy << WEIGHT_BITS - PHASE_BITS;
+			int wy0 = (1 << WEIGHT_BITS) - wy1;
+			int p0 = source[r0 + c0];
+			int p1 = source[r0 + c1];
+			int p2 = source[r1 + c0];
+			int p3 = source[r1 + c1];
+			alpha = wy0 * (wx0 * (p0 >>> 24) + wx1 * (p1 >>> 24)) + wy1 * (wx0 * (p2 >>> 24) + wx1 * (p3 >>> 24));
+			red = wy0 * (wx0 * (p0 >> 16 & 0xff) + wx1 * (p1 >> 16 & 0xff))
+					+ wy1 * (wx0 * (p2 >> 16 & 0xff) + wx1 * (p3 >> 16 & 0xff));
+			green = wy0 * (wx0 * (p0 >> 8 & 0xff) + wx1 * (p1 >> 8 & 0xff))
+					+ wy1 * (wx0 * (p2 >> 8 & 0xff) + wx1 * (p3 >> 8 & 0xff));
+			blue = wy0 * (wx0 * (p0 & 0xff) + wx1 * (p1 & 0xff)) + wy1 * (wx0 * (p2 & 0xff) + wx1 * (p3 & 0xff));
+		}
+		return toArgb(alpha, red, green, blue);
+	}
+
+	// Converts premultiplied channels scaled by the squared weight unit back to an ARGB pixel
+	private static int toArgb(int alpha, int red, int green, int blue) {
+		int round = 1 << 2 * WEIGHT_BITS - 1;
+		int a = alpha + round >> 2 * WEIGHT_BITS;
+		if (a <= 0) {
+			return 0;
+		}
+		if (a > 0xff) {
+			a = 0xff;
+		}
+		// Cubic convolution overshoots, so the premultiplied colors may exceed alpha
+		int r = Math.min(Math.max(red + round >> 2 * WEIGHT_BITS, 0), a);
+		int g = Math.min(Math.max(green + round >> 2 * WEIGHT_BITS, 0), a);
+		int b = Math.min(Math.max(blue + round >> 2 * WEIGHT_BITS, 0), a);
+		if (a != 0xff) {
+			r = (r * 0xff + (a >> 1)) / a;
+			g = (g * 0xff + (a >> 1)) / a;
+			b = (b * 0xff + (a >> 1)) / a;
+		}
+		return a << 24 | r << 16 | g << 8 | b;
+	}
+
+	/**
+	 * Renders the source with a compiled sampling map into the destination. Every destination pixel is written, the
+	 * ones not covered by the source as transparent, so the destination array can be reused from frame to frame.
+	 *
+	 * @param source
+	 *            premultiplied ARGB pixels of the source, row by row, see {@link PremultipliedAlpha#premultiply(int[])}
+	 * @param sourceWidth
+	 *            width of the source the map was compiled for
+	 * @param sourceHeight
+	 *            height of the source the map was compiled for
+	 * @param map
+	 *            the sampling map
+	 * @param interpolation
+	 *            how colors are interpolated
+	 * @param destination
+	 *            array for the ARGB pixels of the destination, row by row, not premultiplied
+	 * @see #compile(int, int, AffineTransform, int, int)
+	 */
+	static void warp(int[] source, int sourceWidth, int sourceHeight, int[] map, Interpolation interpolation,
+			int[] destination) {
+		boolean bicubic = interpolation == Interpolation.BICUBIC;
+		for (int i = 0, j = 0; i < destination.length; i++, j += 2) {
+			int position = map[j];
+			if (position < 0) {
+				destination[i] = 0;
+			} else {
+				int phase = map[j + 1];
+				destination[i] = sample(source, sourceWidth, sourceHeight, (position & 0xffff) - 1,
+						(position >>> 16) - 1, phase & PHASES - 1, phase >>> PHASE_BITS, bicubic);
+			}
+		}
+	}
+
+	/**
+	 * Renders the source with the transform into the destination.
+	 *
+	 * @param source
+	 *            premultiplied ARGB pixels of the source, row by row, see {@link PremultipliedAlpha#premultiply(int[])}
+	 * @param sourceWidth
+	 *            width of the source
+	 * @param sourceHeight
+	 *            height of the source
+	 * @param transform
+	 *            transform from source to destination coordinates
+	 * @param interpolation
+	 *            how colors are interpolated
+	 * @param destination
+	 *            array for the ARGB pixels of the destination, row by row, not premultiplied
+	 * @param width
+	 *            width of the destination
+	 * @param height
+	 *            height of the destination
+	 * @throws IllegalArgumentException
+	 *             if the transform cannot be inverted
+	 * @see #compile(int, int, AffineTransform, int, int)
+	 */
+	static void warp(int[] source, int sourceWidth, int sourceHeight, AffineTransform transform,
+			Interpolation interpolation, int[] destination, int width, int height) {
+		warp(source, sourceWidth, sourceHeight, compile(sourceWidth, sourceHeight, transform, width, height),
+				interpolation, destination);
+	}
+
+	private AffineWarp() {
+	}
+}
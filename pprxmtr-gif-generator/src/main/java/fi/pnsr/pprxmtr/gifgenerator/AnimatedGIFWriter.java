@@ -20,16 +20,462 @@
 package fi.pnsr.pprxmtr.gifgenerator;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.DirectColorModel;
 import java.awt.image.IndexColorModel;
+import java.awt.image.MultiPixelPackedSampleModel;
 import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.IntStream;
+
+import fi.pnsr.pprxmtr.gifgenerator.EncodeListener.Stage;
 
 public class AnimatedGIFWriter {
+	/**
+	 * Builds a color palette for an image. Frames are quantized concurrently, so implementations must be thread safe.
+	 * The built-in quantizers keep their working tables per thread and differ in speed and quality: {@link #wu(int)}
+	 * is a good all-rounder, {@link #octree(int)} is the fastest and {@link #neuQuant(int)} gives the closest colors on
+	 * large images when learning from every pixel, but is by far the slowest.
+	 */
+	public interface ColorQuantizer {
+		/**
+		 * NeuQuant neural network quantizer. It learns from a pseudo random subset of the pixels whose size depends
+		 * on the sample factor: 1 gives the best quality, 10 is a good compromise and 30 is the fastest.
+		 *
+		 * @param sampleFactor
+		 *            learn from roughly one pixel out of every sampleFactor pixels
+		 * @return the quantizer
+		 */
+		static ColorQuantizer neuQuant(int sampleFactor) {
+			checkSampleFactor(sampleFactor);
+			return (pixels, size, lut_size, lut, colorInfo) -> FRAME_ENCODERS.get().neuQuant().quantize(pixels, size,
+					sampleFactor, lut_size, lut, colorInfo);
+		}
+
+		/**
+		 * Octree quantizer. Fast, but the palettes are coarser than the ones of the other quantizers.
+		 *
+		 * @param sampleFactor
+		 *            only every sampleFactor'th pixel is used to build the palette
+		 * @return the quantizer
+		 */
+		static ColorQuantizer octree(int sampleFactor) {
+			checkSampleFactor(sampleFactor);
+			return (pixels, size, lut_size, lut, colorInfo) -> FRAME_ENCODERS.get().octree().quantize(pixels, size,
+					sampleFactor, lut_size, lut, colorInfo);
+		}
+
+		/**
+		 * Wu's color quantizer, the best quality of the built-in quantizers.
+		 *
+		 * @param sampleFactor
+		 *            only every sampleFactor'th pixel is used to build the palette
+		 * @return the quantizer
+		 */
+		static ColorQuantizer wu(int sampleFactor) {
+			checkSampleFactor(sampleFactor);
+			return new WuQuantizer(sampleFactor);
+		}
+
+		/**
+		 * Builds a palette for the image.
+		 *
+		 * @param pixels
+		 *            ARGB pixels of the image, pixels with an alpha below 0x80 are transparent
+		 * @param size
+		 *            number of pixels to use from the beginning of the array
+		 * @param lut_size
+		 *            maximum number of palette entries, including the transparent entry if there is one
+		 * @param lut
+		 *            array receiving the palette
+		 * @param colorInfo
+		 *            array receiving the bits per pixel and the index of the transparent entry, -1 if there is none
+		 * @return the number of opaque colors, which come first in the palette
+		 */
+		int quantize(int[] pixels, int size, int lut_size, int[] lut, int[] colorInfo);
+
+		/**
+		 * Builds a palette for the image and maps the pixels to it. By default each pixel is mapped to the nearest
+		 * palette color.
+		 *
+		 * @param newPixels
+		 *            array receiving the palette index of each pixel
+		 * @return the number of opaque colors, which come first in the palette
+		 * @see #quantize(int[], int, int, int[], int[])
+		 */
+		default int quantize(int[] pixels, int size, int lut_size, byte[] newPixels, int[] lut, int[] colorInfo) {
+			int colors = quantize(pixels, size, lut_size, lut, colorInfo);
+			InverseColorMap invMap = InverseColorMap.forPalette(colors, lut);
+			for (int i = 0; i < size; i++) {
+				int rgb = pixels[i];
+				if (rgb >>> 24 < 0x80) { // Transparent
+					newPixels[i] = (byte) colorInfo[1];
+				} else {
+					newPixels[i] = (byte) invMap.getNearestColorIndex(rgb >> 16 & 0xff, rgb >> 8 & 0xff, rgb & 0xff);
+				}
+			}
+			return colors;
+		}
+
+		/**
+		 * Builds a palette of another size for the same pixels as the previous call on this thread, which must not
+		 * have been modified since. By default the pixels are simply quantized again, quantizers that can reuse their
+		 * work override this.
+		 *
+		 * @return the number of opaque colors, which come first in the palette
+		 * @see #quantize(int[], int, int, int[], int[])
+		 */
+		default int requantize(int[] pixels, int size, int lut_size, int[] lut, int[] colorInfo) {
+			return quantize(pixels, size, lut_size, lut, colorInfo);
+		}
+	}
+
+	/**
+	 * How colors missing from the palette are approximated.
+	 */
+	public enum DitherMode {
+		/**
+		 * Error diffusion, the best looking but strictly sequential from pixel to pixel.
+		 */
+		FLOYD_STEINBERG,
+		/**
+		 * Each pixel is mapped to the nearest palette color.
+		 */
+		NONE,
+		/**
+		 * Ordered dithering with an 8x8 Bayer threshold matrix. Every pixel is independent, so large frames are
+		 * dithered in parallel.
+		 */
+		ORDERED
+	}
+
+	// A frame that has been quantized and LZW encoded, but not yet written out
+	private static final class EncodedFrame {
+		int bitsPerPixel;
+		int[] colorPalette;
+		int delay;
+		int disposalMethod;
+		int height;
+		// LZW minimum code size followed by the image data sub-blocks
+		byte[] imageData;
+		int leftPosition;
+		int topPosition;
+		int transparentIndex;
+		int userInputFlag;
+		int width;
+	}
+
+	/**
+	 * Working state needed to encode a single frame: the color quantizer, the LZW string table and the output buffer.
+	 * There is one instance per thread, so frames can be encoded concurrently and the buffers are reused from frame to
+	 * frame.
+	 */
+	static class FrameEncoder {
+		// Slots of the color table, a power of two well above the 257 colors looked up before giving up
+		private static final int COLOR_SLOTS = 1024;
+		private static final int HASH_BITS = 13;
+		private static final int HASH_MASK = (1 << HASH_BITS) - 1;
+		// Keys take the lowest 21 bits of a table entry, the rest holds the generation of the entry
+		private static final int KEY_BITS = 21;
+		private static final int MAX_GENERATION = (1 << 31 - KEY_BITS) - 1;
+		// Substitutes tried for a color in lossy mode, closest first
+		private static final int MAX_SIMILAR = 8;
+
+		// Pending output bits, least significant bit first
+		private long bitBuffer;
+		private int bitCount;
+		// Index of the length byte of the current data sub-block
+		private int blockStart;
+		private int clearCode;
+		private int codeIndex;
+		private int codeLen;
+		/**
+		 * Open addressing table from the colors of a frame to their palette indices, used to check whether the frame
+		 * has few enough colors to skip quantization. A key is the color plus one, so zero marks an empty slot.
+		 */
+		final byte[] colorIndices = new byte[COLOR_SLOTS];
+		final int[] colorKeys = new int[COLOR_SLOTS];
+		private int endOfImage;
+		// Entries of older generations are empty, so the string table is reset by bumping the generation
+		private int generation;
+		/**
+		 * The LZW string table is an open addressing hash table, where each key is a parent (or prefix) code combined
+		 * with a suffix color and the value is the code of the resulting string.
+		 */
+		private final short[] hashCodes = new short[HASH_MASK + 1];
+		private final int[] hashKeys = new int[HASH_MASK + 1];
+		// Working tables of the other quantizers, allocated when first used
+		private NeuQuant neuQuant;
+		private Octree octree;
+		// LZW minimum code size and the data sub-blocks of the current frame
+		private byte[] out = new byte[0x4000];
+		private int outIndex;
+		final WuQuant quantizer = new WuQuant();
+		/**
+		 * For lossy encoding, the palette indices within the color error of each palette index. The lists are kept
+		 * until the palette, the error or the transparent index change, so frames sharing a global palette reuse them.
+		 */
+		private final int[] similar = new int[256 * MAX_SIMILAR];
+		private int similarBits;
+		private final int[] similarCounts = new int[256];
+		private int similarError;
+		private int[] similarPalette;
+		private int similarTransparentIndex;
+
+		/**
+		 * LZW encodes the color indices of a frame.
+		 *
+		 * @param pixels
+		 *            color palette indices of the frame
+		 * @param bitsPerPixel
+		 *            color depth of the frame
+		 * @return the LZW minimum code size followed by the image data sub-blocks
+		 */
+		public byte[] encode(byte[] pixels, int bitsPerPixel) {
+			return encode(pixels, bitsPerPixel, null, -1, 0);
+		}
+
+		/**
+		 * LZW encodes the color indices of a frame, optionally lossily. In lossy mode, when the next pixel does not
+		 * extend the current string, the palette colors closest to it are tried in its place, and the first one that
+		 * extends the string is used instead. Colors are only replaced by colors at most maxColorError away and the
+		 * transparent index is never replaced or used as a replacement, so the shape of the frame is kept.
+		 *
+		 * @param pixels
+		 *            color palette indices of the frame
+		 * @param bitsPerPixel
+		 *            color depth of the frame
+		 * @param colorPalette
+		 *            palette of the frame, only needed in lossy mode
+		 * @param transparentIndex
+		 *            palette index of the transparent color, -1 if there is none
+		 * @param maxColorError
+		 *            largest allowed distance between the RGB values of a pixel and its replacement, 0 for lossless
+		 * @return the LZW minimum code size followed by the image data sub-blocks
+		 */
+		public byte[] encode(byte[] pixels, int bitsPerPixel, int[] colorPalette, int transparentIndex,
+				int maxColorError) {
+			boolean lossy = maxColorError > 0;
+			if (lossy) {
+				findSimilarColors(colorPalette, bitsPerPixel, transparentIndex, maxColorError);
+			}
+			int dimension = pixels.length;
+			int parent;
+			int color;
+			int key;
+			int slot;
+			int index = 0;
+
+			// Codes are at most 12 bits, so two bytes per pixel always fit the codes and the sub-block lengths
+			if (out.length < 2 * dimension + 0x10) {
+				out = new byte[2 * dimension + 0x10];
+			}
+			bitBuffer = 0;
+			bitCount = 0;
+			// Write out the length of the root
+			bitsPerPixel = bitsPerPixel == 1 ? 2 : bitsPerPixel;
+			out[0] = (byte) bitsPerPixel;
+			blockStart = 1;
+			outIndex = 2;
+			// Initialize the encoder
+			init_encoder(bitsPerPixel);
+			// Tell the decoder to initialize the string table
+			send_code(clearCode);
+			// Get the first color and assign it to parent
+			parent = pixels[index++] & 0xff;
+
+			while (index < dimension) {
+				color = pixels[index++] & 0xff;
+				key = generation << KEY_BITS | parent << 8 | color;
+				slot = key * 0x9E3779B1 >>> 32 - HASH_BITS;
+
+				while (hashKeys[slot] != key && hashKeys[slot] >>> KEY_BITS == generation) {
+					slot = slot + 1 & HASH_MASK;
+				}
+				if (hashKeys[slot] == key) {
+					parent = hashCodes[slot];
+					continue;
+				}
+				if (lossy) {
+					int code = findSimilarString(parent, color);
+					if (code >= 0) {
+						parent = code;
+						continue;
+					}
+				}
+				hashKeys[slot] = key;
+				hashCodes[slot] = (short) codeIndex;
+				send_code(parent);
+				parent = color;
+				codeIndex++;
+				// Check code length
+				if (codeIndex > 1 << codeLen) {
+					if (codeLen == 12) {
+						send_code(clearCode);
+						init_encoder(bitsPerPixel);
+					} else {
+						codeLen++;
+					}
+				}
+			}
+			// Send the last color code
+			send_code(parent);
+			// Send the endOfImage code
+			send_code(endOfImage);
+			// Flush the remaining bits and close the last sub-block
+			while (bitCount > 0) {
+				write_byte((int) bitBuffer);
+				bitBuffer >>>= 8;
+				bitCount -= 8;
+			}
+			int blockLength = outIndex - blockStart - 1;
+			if (blockLength > 0) {
+				out[blockStart] = (byte) blockLength;
+			} else {
+				outIndex--;
+			}
+
+			return Arrays.copyOf(out, outIndex);
+		}
+
+		// Builds the lists of similar colors, closest first, unless they are already up to date
+		private void findSimilarColors(int[] colorPalette, int bitsPerPixel, int transparentIndex, int maxColorError) {
+			if (colorPalette == similarPalette && bitsPerPixel == similarBits
+					&& transparentIndex == similarTransparentIndex && maxColorError == similarError) {
+				return;
+			}
+			int colors = 1 << bitsPerPixel;
+			int maxDistance = maxColorError * maxColorError;
+			int[] distances = new int[MAX_SIMILAR];
+			for (int i = 0; i < colors; i++) {
+				int count = 0;
+				if (i != transparentIndex) {
+					for (int j = 0; j < colors; j++) {
+						if (j == i || j == transparentIndex) {
+							continue;
+						}
+						int red = (colorPalette[i] >> 16 & 0xff) - (colorPalette[j] >> 16 & 0xff);
+						int green = (colorPalette[i] >> 8 & 0xff) - (colorPalette[j] >> 8 & 0xff);
+						int blue = (colorPalette[i] & 0xff) - (colorPalette[j] & 0xff);
+						int distance = red * red + green * green + blue * blue;
+						if (distance > maxDistance || count == MAX_SIMILAR && distance >= distances[count - 1]) {
+							continue;
+						}
+						// Insertion into the sorted list, dropping the farthest color when it is full
+						int k = count < MAX_SIMILAR ? count++ : count - 1;
+						for (; k > 0 && distances[k - 1] > distance; k--) {
+							distances[k] = distances[k - 1];
+							similar[i * MAX_SIMILAR + k] = similar[i * MAX_SIMILAR + k - 1];
+						}
+						distances[k] = distance;
+						similar[i * MAX_SIMILAR + k] = j;
+					}
+				}
+				similarCounts[i] = count;
+			}
+			similarPalette = colorPalette;
+			similarBits = bitsPerPixel;
+			similarTransparentIndex = transparentIndex;
+			similarError = maxColorError;
+		}
+
+		// Code of the current string extended by a color similar to the given one, -1 if there is no such string
+		private int findSimilarString(int parent, int color) {
+			for (int i = color * MAX_SIMILAR, end = i + similarCounts[color]; i < end; i++) {
+				int key = generation << KEY_BITS | parent << 8 | similar[i];
+				int slot = key * 0x9E3779B1 >>> 32 - HASH_BITS;
+				while (hashKeys[slot] >>> KEY_BITS == generation) {
+					if (hashKeys[slot] == key) {
+						return hashCodes[slot];
+					}
+					slot = slot + 1 & HASH_MASK;
+				}
+			}
+			return -1;
+		}
+
+		private void init_encoder(int bitsPerPixel) {
+			clearCode = 1 << bitsPerPixel;
+			endOfImage = clearCode + 1;
+			codeLen = bitsPerPixel + 1;
+			codeIndex = endOfImage + 1;
+			// Reset the string table, only clearing it when the generations wrap around
+			if (++generation > MAX_GENERATION) {
+				Arrays.fill(hashKeys, 0);
+				generation = 1;
+			}
+		}
+
+		NeuQuant neuQuant() {
+			if (neuQuant == null) {
+				neuQuant = new NeuQuant();
+			}
+			return neuQuant;
+		}
+
+		Octree octree() {
+			if (octree == null) {
+				octree = new Octree();
+			}
+			return octree;
+		}
+
+		// Pack a code into the bit buffer, draining it a 32 bit word at a time
+		private void send_code(int code) {
+			bitBuffer |= (long) code << bitCount;
+			bitCount += codeLen;
+			if (bitCount >= 32) {
+				int word = (int) bitBuffer;
+				if (outIndex - blockStart + 3 <= 0xff) {
+					// The whole word fits in the current sub-block
+					out[outIndex] = (byte) word;
+					out[outIndex + 1] = (byte) (word >>> 8);
+					out[outIndex + 2] = (byte) (word >>> 16);
+					out[outIndex + 3] = (byte) (word >>> 24);
+					outIndex += 4;
+				} else {
+					write_byte(word);
+					write_byte(word >>> 8);
+					write_byte(word >>> 16);
+					write_byte(word >>> 24);
+				}
+				bitBuffer >>>= 32;
+				bitCount -= 32;
+			}
+		}
+
+		// Append a byte to the current data sub-block, starting a new one when it is full
+		private void write_byte(int b) {
+			if (outIndex - blockStart - 1 == 0xff) {
+				out[blockStart] = (byte) 0xff;
+				blockStart = outIndex++;
+			}
+			out[outIndex++] = (byte) b;
+		}
+	}
+
 	public static class GIFFrame {
 		public static final int DISPOSAL_LEAVE_AS_IS = 1;
 		public static final int DISPOSAL_RESTORE_TO_BACKGROUND = 2;
@@ -155,195 +601,65 @@ public class AnimatedGIFWriter {
 		}
 	}
 
-	/**
-	 * A hash table using primitive integer keys.
-	 *
-	 * Based on QuadraticProbingHashTable.java
-	 * <p>
-	 * Probing table implementation of hash tables. Note that all "matching" is based on the equals method.
-	 *
-	 * @author Mark Allen Weiss
-	 */
-	private static class IntHashtable<E> {
-
-		// The basic entry stored in ProbingHashTable
-		private static class HashEntry<V> {
-			boolean isActive; // false if deleted
-			int key; // the key
-			V value; // the value
-
-			@SuppressWarnings("unused")
-			HashEntry(int k, V val) {
-				this(k, val, true);
-			}
-
-			HashEntry(int k, V val, boolean i) {
-				key = k;
-				value = val;
-				isActive = i;
-			}
-		}
+	static class InverseColorMap {
+		// Palette used as a cache key, the entries are compared on lookup so hash collisions are harmless
+		private static final class PaletteKey {
+			private final int[] colors;
+			private final int hash;
 
-		/**
-		 * Internal method to test if a number is prime. Not an efficient algorithm.
-		 *
-		 * @param n
-		 *            the number to test.
-		 * @return the result of the test.
-		 */
-		private static boolean isPrime(int n) {
-			if (n == 2 || n == 3) {
-				return true;
+			PaletteKey(int no_of_colors, int[] colorPalette) {
+				colors = Arrays.copyOf(colorPalette, no_of_colors);
+				hash = Arrays.hashCode(colors);
 			}
 
-			if (n == 1 || n % 2 == 0) {
-				return false;
-			}
-
-			for (int i = 3; i * i <= n; i += 2) {
-				if (n % i == 0) {
-					return false;
-				}
-			}
-
-			return true;
-		}
-
-		/**
-		 * Internal method to find a prime number at least as large as n.
-		 *
-		 * @param n
-		 *            the starting number (must be positive).
-		 * @return a prime number larger than or equal to n.
-		 */
-		private static int nextPrime(int n) {
-			if (n % 2 == 0) {
-				n++;
-			}
-
-			for (; !isPrime(n); n += 2) {
-				;
-			}
-
-			return n;
-		}
-
-		/** The array of HashEntry. */
-		private HashEntry<E>[] array; // The array of HashEntry
-
-		private int currentSize; // The number of occupied cells
-
-		/**
-		 * Construct the hash table.
-		 *
-		 * @param size
-		 *            the approximate initial size.
-		 */
-		@SuppressWarnings("unchecked")
-		public IntHashtable(int size) {
-			array = new HashEntry[size];
-			makeEmpty();
-		}
-
-		/**
-		 * Find an item in the hash table.
-		 *
-		 * @param key
-		 *            the item to search for.
-		 * @return the value of the matching item.
-		 */
-		public E get(int key) {
-			int currentPos = locate(key);
-			return isActive(currentPos) ? array[currentPos].value : null;
-		}
-
-		/**
-		 * Return true if currentPos exists and is active.
-		 *
-		 * @param currentPos
-		 *            the result of a call to findPos.
-		 * @return true if currentPos is active.
-		 */
-		private boolean isActive(int currentPos) {
-			return array[currentPos] != null && array[currentPos].isActive;
-		}
-
-		/**
-		 * Method that performs quadratic probing resolution.
-		 *
-		 * @param key
-		 *            the item to search for.
-		 * @return the index of the item.
-		 */
-		private int locate(int key) {
-			int collisionNum = 0;
-
-			// And with the largest positive integer
-			int currentPos = (key & 0x7FFFFFFF) % array.length;
-
-			while (array[currentPos] != null && array[currentPos].key != key) {
-				currentPos += 2 * ++collisionNum - 1; // Compute ith probe
-				if (currentPos >= array.length) {
-					currentPos -= array.length;
-				}
+			@Override
+			public boolean equals(Object obj) {
+				return obj instanceof PaletteKey && hash == ((PaletteKey) obj).hash
+						&& Arrays.equals(colors, ((PaletteKey) obj).colors);
 			}
-			return currentPos;
-		}
 
-		/**
-		 * Make the hash table logically empty.
-		 */
-		public void makeEmpty() {
-			currentSize = 0;
-			for (int i = 0; i < array.length; i++) {
-				array[i] = null;
+			@Override
+			public int hashCode() {
+				return hash;
 			}
 		}
 
-		/**
-		 * Insert into the hash table. If the item is already present, do nothing.
-		 *
-		 * @param key
-		 *            the item to insert.
-		 */
-		public void put(int key, E value) {
-			// Insert key as active
-			int currentPos = locate(key);
-			if (isActive(currentPos)) {
-				return;
-			}
+		// Each map takes 32 KB, so this keeps at most half a megabyte alive
+		private static final int CACHE_SIZE = 16;
 
-			array[currentPos] = new HashEntry<>(key, value, true);
+		// Least recently used maps are evicted first. The maps are never modified once created, so they can be
+		// shared by every writer and thread.
+		private static final Map<PaletteKey, InverseColorMap> CACHE = new LinkedHashMap<PaletteKey, InverseColorMap>(
+				CACHE_SIZE, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
 
-			// Rehash
-			if (++currentSize > array.length / 2) {
-				rehash();
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<PaletteKey, InverseColorMap> eldest) {
+				return size() > CACHE_SIZE;
 			}
-		}
+		};
 
 		/**
-		 * Expand the hash table.
+		 * Returns an inverse color map for the first no_of_colors entries of the palette, reusing a cached map when
+		 * the same palette has been seen recently.
 		 */
-		@SuppressWarnings("unchecked")
-		private void rehash() {
-			HashEntry<E>[] oldArray = array;
-
-			// Create a new double-sized, empty table
-			array = new HashEntry[nextPrime(2 * oldArray.length)];
-			currentSize = 0;
-
-			// Copy table over
-			for (HashEntry<E> element : oldArray) {
-				if (element != null && element.isActive) {
-					put(element.key, element.value);
+		public static InverseColorMap forPalette(int no_of_colors, int[] colorPalette) {
+			PaletteKey key = new PaletteKey(no_of_colors, colorPalette);
+			synchronized (CACHE) {
+				InverseColorMap invMap = CACHE.get(key);
+				if (invMap != null) {
+					return invMap;
 				}
 			}
-
-			return;
+			// Build outside the lock, two threads racing on the same palette just produce equal maps
+			InverseColorMap invMap = new InverseColorMap();
+			invMap.createInverseMap(no_of_colors, colorPalette);
+			synchronized (CACHE) {
+				CACHE.put(key, invMap);
+			}
+			return invMap;
 		}
-	}
 
-	private static class InverseColorMap {
 		private int bitsDiscarded;// Number of discarded bits
 		private int bitsReserved;// Number of bits used in color quantization.
 		// The inverse color map itself
@@ -425,6 +741,323 @@ public class AnimatedGIFWriter {
 		}
 	}
 
+	/**
+	 * NeuQuant neural network color quantizer by Anthony Dekker (see "Kohonen neural networks for optimal colour
+	 * quantization", Network: Computation in Neural Systems, vol. 5, pp. 351-367, 1994).
+	 *
+	 * A one dimensional self-organizing map of colors is trained on a pseudo random sample of the opaque pixels, whose
+	 * size is controlled by the sample factor. The network, the biases and the frequencies are allocated for the
+	 * largest palette once and reused for every image. Instances are not thread safe.
+	 */
+	private static class NeuQuant {
+		private static final int ALPHA_BIAS_SHIFT = 10; // alpha starts at 1.0
+		private static final int ALPHA_RAD_BIAS_SHIFT = ALPHA_BIAS_SHIFT + 8;
+		private static final int ALPHA_RAD_BIAS = 1 << ALPHA_RAD_BIAS_SHIFT;
+		private static final int GAMMA_SHIFT = 10; // gamma = 1024
+		private static final int BETA_SHIFT = 10;
+		private static final int INIT_ALPHA = 1 << ALPHA_BIAS_SHIFT;
+		private static final int INT_BIAS_SHIFT = 16; // bias for fractions
+		private static final int INT_BIAS = 1 << INT_BIAS_SHIFT;
+		private static final int BETA = INT_BIAS >> BETA_SHIFT; // beta = 1/1024
+		private static final int BETA_GAMMA = INT_BIAS << GAMMA_SHIFT - BETA_SHIFT;
+		private static final int LEARNING_CYCLES = 100; // number of learning cycles
+		private static final int MAX_NET_SIZE = 256;
+		// Prime steps through the samples, the image size must not be divisible by the step
+		private static final int[] PRIMES = { 499, 491, 487, 503 };
+		private static final int NET_BIAS_SHIFT = 4; // bias for colour values
+		private static final int RADIUS_BIAS_SHIFT = 6; // at 32.0 biased by 6 bits
+		private static final int RADIUS_BIAS = 1 << RADIUS_BIAS_SHIFT;
+		private static final int RADIUS_DEC = 30; // factor of 1/30 each cycle
+		private static final int RAD_BIAS = 1 << 8;
+
+		private final int[] bias = new int[MAX_NET_SIZE];
+		private final int[] freq = new int[MAX_NET_SIZE];
+		// Blue, green and red of each neuron
+		private final int[] network = new int[MAX_NET_SIZE * 3];
+		private int netSize;
+		private final int[] radPower = new int[(MAX_NET_SIZE >> 3) + 1];
+		// Opaque pixels of the current image
+		private int[] samples = new int[0];
+
+		// Move the neighbours of the winning neuron towards the color
+		private void alterNeighbours(int rad, int i, int b, int g, int r) {
+			int lo = Math.max(i - rad, -1);
+			int hi = Math.min(i + rad, netSize);
+			int j = i + 1;
+			int k = i - 1;
+			int m = 1;
+			while (j < hi || k > lo) {
+				int a = radPower[m++];
+				if (j < hi) {
+					int n = 3 * j++;
+					network[n] -= a * (network[n] - b) / ALPHA_RAD_BIAS;
+					network[n + 1] -= a * (network[n + 1] - g) / ALPHA_RAD_BIAS;
+					network[n + 2] -= a * (network[n + 2] - r) / ALPHA_RAD_BIAS;
+				}
+				if (k > lo) {
+					int n = 3 * k--;
+					network[n] -= a * (network[n] - b) / ALPHA_RAD_BIAS;
+					network[n + 1] -= a * (network[n + 1] - g) / ALPHA_RAD_BIAS;
+					network[n + 2] -= a * (network[n + 2] - r) / ALPHA_RAD_BIAS;
+				}
+			}
+		}
+
+		// Move the winning neuron towards the color
+		private void alterSingle(int alpha, int i, int b, int g, int r) {
+			int n = 3 * i;
+			network[n] -= alpha * (network[n] - b) / INIT_ALPHA;
+			network[n + 1] -= alpha * (network[n + 1] - g) / INIT_ALPHA;
+			network[n + 2] -= alpha * (network[n + 2] - r) / INIT_ALPHA;
+		}
+
+		/**
+		 * Finds the closest neuron and updates its frequency and bias. Returns the best neuron after taking the biases
+		 * into account, which keeps rarely winning neurons in use.
+		 */
+		private int contest(int b, int g, int r) {
+			int bestd = Integer.MAX_VALUE;
+			int bestBiasd = bestd;
+			int bestPos = -1;
+			int bestBiasPos = bestPos;
+
+			for (int i = 0, n = 0; i < netSize; i++, n += 3) {
+				int dist = Math.abs(network[n] - b) + Math.abs(network[n + 1] - g) + Math.abs(network[n + 2] - r);
+				if (dist < bestd) {
+					bestd = dist;
+					bestPos = i;
+				}
+				int biasDist = dist - (bias[i] >> INT_BIAS_SHIFT - NET_BIAS_SHIFT);
+				if (biasDist < bestBiasd) {
+					bestBiasd = biasDist;
+					bestBiasPos = i;
+				}
+				int betaFreq = freq[i] >> BETA_SHIFT;
+				freq[i] -= betaFreq;
+				bias[i] += betaFreq << GAMMA_SHIFT;
+			}
+			freq[bestPos] += BETA;
+			bias[bestPos] -= BETA_GAMMA;
+
+			return bestBiasPos;
+		}
+
+		private void learn(int sampleCount, int sampleFactor) {
+			int step;
+			if (sampleCount < PRIMES[3]) {
+				sampleFactor = 1;
+				step = 1;
+			} else {
+				step = PRIMES[3];
+				for (int prime : PRIMES) {
+					if (sampleCount % prime != 0) {
+						step = prime;
+						break;
+					}
+				}
+			}
+			int alphaDec = 30 + (sampleFactor - 1) / 3;
+			int samplePixels = sampleCount / sampleFactor;
+			int delta = Math.max(samplePixels / LEARNING_CYCLES, 1);
+			int alpha = INIT_ALPHA;
+			int radius = (netSize >> 3) * RADIUS_BIAS;
+			int rad = setRadPower(alpha, radius >> RADIUS_BIAS_SHIFT);
+
+			for (int i = 0, pix = 0; i < samplePixels;) {
+				int rgb = samples[pix];
+				int b = (rgb & 0xff) << NET_BIAS_SHIFT;
+				int g = (rgb >> 8 & 0xff) << NET_BIAS_SHIFT;
+				int r = (rgb >> 16 & 0xff) << NET_BIAS_SHIFT;
+				int j = contest(b, g, r);
+
+				alterSingle(alpha, j, b, g, r);
+				if (rad != 0) {
+					alterNeighbours(rad, j, b, g, r);
+				}
+				pix += step;
+				if (pix >= sampleCount) {
+					pix -= sampleCount;
+				}
+				if (++i % delta == 0) {
+					alpha -= alpha / alphaDec;
+					radius -= radius / RADIUS_DEC;
+					rad = setRadPower(alpha, radius >> RADIUS_BIAS_SHIFT);
+				}
+			}
+		}
+
+		public int quantize(int[] pixels, int size, int sampleFactor, int lut_size, int[] lut, int[] colorInfo) {
+			int transparent = findTransparentPixel(pixels, size);
+			if (samples.length < size) {
+				samples = new int[size];
+			}
+			int sampleCount = 0;
+			for (int i = 0; i < size; i++) {
+				if (pixels[i] >>> 24 >= 0x80) {
+					samples[sampleCount++] = pixels[i];
+				}
+			}
+			if (sampleCount == 0) {
+				return completePalette(pixels, transparent, 0, lut, colorInfo);
+			}
+			netSize = Math.min(transparent >= 0 ? lut_size - 1 : lut_size, MAX_NET_SIZE);
+			for (int i = 0, n = 0; i < netSize; i++, n += 3) {
+				network[n] = network[n + 1] = network[n + 2] = (i << NET_BIAS_SHIFT + 8) / netSize;
+				freq[i] = INT_BIAS / netSize;
+				bias[i] = 0;
+			}
+			learn(sampleCount, sampleFactor);
+			for (int i = 0, n = 0; i < netSize; i++, n += 3) {
+				int b = Math.min(Math.max(network[n] >> NET_BIAS_SHIFT, 0), 0xff);
+				int g = Math.min(Math.max(network[n + 1] >> NET_BIAS_SHIFT, 0), 0xff);
+				int r = Math.min(Math.max(network[n + 2] >> NET_BIAS_SHIFT, 0), 0xff);
+				lut[i] = 0xff << 24 | r << 16 | g << 8 | b;
+			}
+
+			return completePalette(pixels, transparent, netSize, lut, colorInfo);
+		}
+
+		// Precompute the neighbourhood falloff for the given radius, returns 0 once the radius drops to one
+		private int setRadPower(int alpha, int rad) {
+			if (rad <= 1) {
+				return 0;
+			}
+			for (int i = 0; i < rad; i++) {
+				radPower[i] = alpha * ((rad * rad - i * i) * RAD_BIAS / (rad * rad));
+			}
+			return rad;
+		}
+	}
+
+	/**
+	 * Octree color quantizer (see Gervautz and Purgathofer, "A simple method for color quantization: octree
+	 * quantization", Graphics Gems, pp. 287-293).
+	 *
+	 * The tree has a fixed depth, so a node is addressed by its level and the top bits of its colors and the whole tree
+	 * lives in flat arrays that are reused between images. After the histogram has been summed up the tree, the
+	 * subtrees with the fewest pixels are folded into single colors, deepest level first, until the palette fits.
+	 * Instances are not thread safe.
+	 */
+	private static class Octree {
+		private static final int DEPTH = 5;
+		// Index of the first node of each level, the last entry is the total number of nodes
+		private static final int[] LEVEL_OFFSETS = new int[DEPTH + 2];
+		// Spreads the bits of a five bit color component three bits apart
+		private static final int[] SPREAD = new int[1 << DEPTH];
+
+		static {
+			for (int level = 1; level < LEVEL_OFFSETS.length; level++) {
+				LEVEL_OFFSETS[level] = LEVEL_OFFSETS[level - 1] + (1 << 3 * (level - 1));
+			}
+			for (int i = 0; i < SPREAD.length; i++) {
+				for (int bit = 0; bit < DEPTH; bit++) {
+					SPREAD[i] |= (i >> bit & 1) << 3 * bit;
+				}
+			}
+		}
+
+		private final long[] blue = new long[LEVEL_OFFSETS[DEPTH + 1]];
+		private int colors;
+		private final int[] count = new int[LEVEL_OFFSETS[DEPTH + 1]];
+		private final boolean[] folded = new boolean[LEVEL_OFFSETS[DEPTH + 1]];
+		private final long[] green = new long[LEVEL_OFFSETS[DEPTH + 1]];
+		// Number of palette colors each subtree currently produces
+		private final int[] leaves = new int[LEVEL_OFFSETS[DEPTH + 1]];
+		// Pixel counts and nodes of one level, sorted to find the smallest subtrees
+		private final long[] order = new long[1 << 3 * (DEPTH - 1)];
+		private final long[] red = new long[LEVEL_OFFSETS[DEPTH + 1]];
+
+		// Adds the colors of the leaves below the node to the palette
+		private void addColors(int level, int path, int[] lut) {
+			int node = LEVEL_OFFSETS[level] + path;
+			if (count[node] == 0) {
+				return;
+			}
+			if (level == DEPTH || folded[node]) {
+				int n = count[node];
+				lut[colors++] = 0xff << 24 | (int) (red[node] / n) << 16 | (int) (green[node] / n) << 8
+						| (int) (blue[node] / n);
+				return;
+			}
+			for (int child = 0; child < 8; child++) {
+				addColors(level + 1, path << 3 | child, lut);
+			}
+		}
+
+		public int quantize(int[] pixels, int size, int sampleFactor, int lut_size, int[] lut, int[] colorInfo) {
+			Arrays.fill(count, 0);
+			Arrays.fill(red, 0);
+			Arrays.fill(green, 0);
+			Arrays.fill(blue, 0);
+			Arrays.fill(folded, false);
+
+			int transparent = findTransparentPixel(pixels, size);
+			int leafOffset = LEVEL_OFFSETS[DEPTH];
+			for (int i = 0; i < size; i += sampleFactor) {
+				int rgb = pixels[i];
+				if (rgb >>> 24 < 0x80) { // Transparent
+					continue;
+				}
+				int r = rgb >> 16 & 0xff;
+				int g = rgb >> 8 & 0xff;
+				int b = rgb & 0xff;
+				int node = leafOffset + (SPREAD[r >> 3] << 2 | SPREAD[g >> 3] << 1 | SPREAD[b >> 3]);
+				count[node]++;
+				red[node] += r;
+				green[node] += g;
+				blue[node] += b;
+			}
+
+			int leafCount = 0;
+			for (int node = leafOffset; node < LEVEL_OFFSETS[DEPTH + 1]; node++) {
+				leaves[node] = count[node] > 0 ? 1 : 0;
+				leafCount += leaves[node];
+			}
+			// Sum the statistics of each level into the parent nodes
+			for (int level = DEPTH; level > 0; level--) {
+				for (int path = 0, nodes = 1 << 3 * level; path < nodes; path++) {
+					int node = LEVEL_OFFSETS[level] + path;
+					if (count[node] > 0) {
+						int parent = LEVEL_OFFSETS[level - 1] + (path >> 3);
+						count[parent] += count[node];
+						red[parent] += red[node];
+						green[parent] += green[node];
+						blue[parent] += blue[node];
+					}
+				}
+			}
+
+			int maxColors = transparent >= 0 ? lut_size - 1 : lut_size;
+			for (int level = DEPTH - 1; level >= 0 && leafCount > maxColors; level--) {
+				int candidates = 0;
+				for (int path = 0, nodes = 1 << 3 * level; path < nodes; path++) {
+					int node = LEVEL_OFFSETS[level] + path;
+					int childOffset = LEVEL_OFFSETS[level + 1] + (path << 3);
+					leaves[node] = 0;
+					for (int child = 0; child < 8; child++) {
+						leaves[node] += leaves[childOffset + child];
+					}
+					// Folding a subtree with a single color would not shrink the palette
+					if (leaves[node] > 1) {
+						order[candidates++] = (long) count[node] << 32 | node;
+					}
+				}
+				Arrays.sort(order, 0, candidates);
+				for (int i = 0; i < candidates && leafCount > maxColors; i++) {
+					int node = (int) order[i];
+					leafCount -= leaves[node] - 1;
+					leaves[node] = 1;
+					folded[node] = true;
+				}
+			}
+
+			colors = 0;
+			addColors(0, 0, lut);
+
+			return completePalette(pixels, transparent, colors, lut, colorInfo);
+		}
+	}
+
 	/**
 	 * Java port of C Implementation of Wu's Color Quantizer (v. 2) (see Graphics Gems vol. II, pp. 126-133) Author:
 	 * Xiaolin Wu Dept. of Computer Science Univ. of Western Ontario London, Ontario N6A 5B7 wu@csd.uwo.ca
@@ -437,8 +1070,13 @@ public class AnimatedGIFWriter {
 	 * previous bug.
 	 *
 	 * Free to distribute, comments and suggestions are appreciated.
+	 *
+	 * The moment tables are flat arrays indexed by [r][g][b] and all the working buffers are allocated once, so an
+	 * instance can be reused for any number of images by calling {@link #reset(int[], int, int, int)} before
+	 * quantizing.
+	 * Instances are not thread safe.
 	 */
-	private static class WuQuant {
+	static class WuQuant {
 		private static final class Box {
 			int b0;
 			int b1;
@@ -453,41 +1091,69 @@ public class AnimatedGIFWriter {
 		private static final int GREEN = 1;
 		private static final int MAXCOLOR = 256;
 
-		private static int QUANT_SIZE = 33;// quant size
+		private static final int QUANT_SIZE = 33;// quant size
 
-		private static final int RED = 2;;
+		private static final int RED = 2;
 
+		private static final int TABLE_SIZE = QUANT_SIZE * QUANT_SIZE * QUANT_SIZE;
+
+		private static final int[] SQUARES = new int[256];
+
+		static {
+			for (int i = 0; i < 256; ++i) {
+				SQUARES[i] = i * i;
+			}
+		}
+
+		// Index of [r][g][b] in the flat moment tables
+		private static int index(int r, int g, int b) {
+			return (r << 10) + (r << 6) + r + (g << 5) + g + b;
+		}
+
+		private final long area[] = new long[QUANT_SIZE];
+		private final long area_b[] = new long[QUANT_SIZE];
+		private final long area_g[] = new long[QUANT_SIZE];
+		private final long area_r[] = new long[QUANT_SIZE];
+		private final float area2[] = new float[QUANT_SIZE];
+		private final Box cube[] = new Box[MAXCOLOR];
+		private final int cutb[] = new int[1];
+		private final int cutg[] = new int[1];
+		private final int cutr[] = new int[1];
 		private int lut_size; /* color look-up table size */
-		private float m2[][][] = new float[QUANT_SIZE][QUANT_SIZE][QUANT_SIZE];
-		private long mb[][][] = new long[QUANT_SIZE][QUANT_SIZE][QUANT_SIZE];
-		private long mg[][][] = new long[QUANT_SIZE][QUANT_SIZE][QUANT_SIZE];
-		private long mr[][][] = new long[QUANT_SIZE][QUANT_SIZE][QUANT_SIZE];
+		private final float m2[] = new float[TABLE_SIZE];
+		private final long mb[] = new long[TABLE_SIZE];
+		private final long mg[] = new long[TABLE_SIZE];
+		private final long mr[] = new long[TABLE_SIZE];
+		private boolean moments; /* the tables hold the cumulative moments of the current pixels */
 
 		private int pixels[];
-		private int qadd[];
+		private int qadd[] = new int[0];
+		private int sampleStep; /* only every sampleStep'th pixel is added to the histogram */
 		private int size; /* image size */
+		private final int tag[] = new int[TABLE_SIZE];
 		private int transparent_color = -1;// Transparent color
-		private long wt[][][] = new long[QUANT_SIZE][QUANT_SIZE][QUANT_SIZE];
+		private final float vv[] = new float[MAXCOLOR];
+		private final long wt[] = new long[TABLE_SIZE];
 
-		public WuQuant(int[] pixels, int lut_size) {
-			this.pixels = pixels;
-			this.size = pixels.length;
-			this.lut_size = lut_size;
+		public WuQuant() {
+			for (int i = 0; i < MAXCOLOR; i++) {
+				cube[i] = new Box();
+			}
 		}
 
-		private long Bottom(Box cube, int dir, long mmt[][][]) {
+		private long Bottom(Box cube, int dir, long mmt[]) {
 			/* Compute part of Vol(cube, mmt) that doesn't depend on r1, g1, or b1 */
 			/* (depending on dir) */
 			switch (dir) {
 			case RED:
-				return -mmt[cube.r0][cube.g1][cube.b1] + mmt[cube.r0][cube.g1][cube.b0] + mmt[cube.r0][cube.g0][cube.b1]
-						- mmt[cube.r0][cube.g0][cube.b0];
+				return -mmt[index(cube.r0, cube.g1, cube.b1)] + mmt[index(cube.r0, cube.g1, cube.b0)]
+						+ mmt[index(cube.r0, cube.g0, cube.b1)] - mmt[index(cube.r0, cube.g0, cube.b0)];
 			case GREEN:
-				return -mmt[cube.r1][cube.g0][cube.b1] + mmt[cube.r1][cube.g0][cube.b0] + mmt[cube.r0][cube.g0][cube.b1]
-						- mmt[cube.r0][cube.g0][cube.b0];
+				return -mmt[index(cube.r1, cube.g0, cube.b1)] + mmt[index(cube.r1, cube.g0, cube.b0)]
+						+ mmt[index(cube.r0, cube.g0, cube.b1)] - mmt[index(cube.r0, cube.g0, cube.b0)];
 			case BLUE:
-				return -mmt[cube.r1][cube.g1][cube.b0] + mmt[cube.r1][cube.g0][cube.b0] + mmt[cube.r0][cube.g1][cube.b0]
-						- mmt[cube.r0][cube.g0][cube.b0];
+				return -mmt[index(cube.r1, cube.g1, cube.b0)] + mmt[index(cube.r1, cube.g0, cube.b0)]
+						+ mmt[index(cube.r0, cube.g1, cube.b0)] - mmt[index(cube.r0, cube.g0, cube.b0)];
 			default:
 				return 0;
 			}
@@ -495,9 +1161,6 @@ public class AnimatedGIFWriter {
 
 		private boolean Cut(Box set1, Box set2) {
 			int dir;
-			int cutr[] = new int[1];
-			int cutg[] = new int[1];
-			int cutb[] = new int[1];
 			float maxr, maxg, maxb;
 			long whole_r, whole_g, whole_b, whole_w;
 
@@ -552,16 +1215,11 @@ public class AnimatedGIFWriter {
 		 * Histogram is in elements 1..HISTSIZE along each axis, element 0 is for base or marginal value NB: these must
 		 * start out 0!
 		 */
-		private void Hist3d(long vwt[][][], long vmr[][][], long vmg[][][], long vmb[][][], float m2[][][]) {
+		private void Hist3d(long vwt[], long vmr[], long vmg[], long vmb[], float m2[]) {
 			/* build 3-D color histogram of counts, r/g/b, c^2 */
 			int r, g, b;
-			int i, inr, ing, inb, table[] = new int[256];
-
-			for (i = 0; i < 256; ++i) {
-				table[i] = i * i;
-			}
-
-			qadd = new int[size];
+			int i, inr, ing, inb, ind;
+			int skip = 0;
 
 			for (i = 0; i < size; ++i) {
 				int rgb = pixels[i];
@@ -576,13 +1234,19 @@ public class AnimatedGIFWriter {
 				inr = (r >> 3) + 1;
 				ing = (g >> 3) + 1;
 				inb = (b >> 3) + 1;
-				qadd[i] = (inr << 10) + (inr << 6) + inr + (ing << 5) + ing + inb;
+				qadd[i] = ind = index(inr, ing, inb);
+				/* every pixel is mapped, but only the sampled ones are counted */
+				if (skip > 0) {
+					skip--;
+					continue;
+				}
+				skip = sampleStep - 1;
 				/* [inr][ing][inb] */
-				++vwt[inr][ing][inb];
-				vmr[inr][ing][inb] += r;
-				vmg[inr][ing][inb] += g;
-				vmb[inr][ing][inb] += b;
-				m2[inr][ing][inb] += table[r] + table[g] + table[b];
+				++vwt[ind];
+				vmr[ind] += r;
+				vmg[ind] += g;
+				vmb[ind] += b;
+				m2[ind] += SQUARES[r] + SQUARES[g] + SQUARES[b];
 			}
 		}
 
@@ -597,15 +1261,11 @@ public class AnimatedGIFWriter {
 		 * We now convert histogram into moments so that we can rapidly calculate the sums of the above quantities over
 		 * any desired box.
 		 */
-		private void M3d(long vwt[][][], long vmr[][][], long vmg[][][], long vmb[][][], float m2[][][]) {
+		private void M3d(long vwt[], long vmr[], long vmg[], long vmb[], float m2[]) {
 			/* compute cumulative moments. */
-			int i, r, g, b;
-			int line, line_r, line_g, line_b;
-			int area[] = new int[QUANT_SIZE];
-			int area_r[] = new int[QUANT_SIZE];
-			int area_g[] = new int[QUANT_SIZE];
-			int area_b[] = new int[QUANT_SIZE];
-			float line2, area2[] = new float[QUANT_SIZE];
+			int i, r, g, b, ind, prev;
+			long line, line_r, line_g, line_b;
+			float line2;
 
 			for (r = 1; r < QUANT_SIZE; ++r) {
 				for (i = 0; i < QUANT_SIZE; ++i) {
@@ -614,11 +1274,14 @@ public class AnimatedGIFWriter {
 				for (g = 1; g < QUANT_SIZE; ++g) {
 					line2 = line = line_r = line_g = line_b = 0;
 					for (b = 1; b < QUANT_SIZE; ++b) {
-						line += vwt[r][g][b];
-						line_r += vmr[r][g][b];
-						line_g += vmg[r][g][b];
-						line_b += vmb[r][g][b];
-						line2 += m2[r][g][b];
+						ind = index(r, g, b);
+						prev = index(r - 1, g, b);
+
+						line += vwt[ind];
+						line_r += vmr[ind];
+						line_g += vmg[ind];
+						line_b += vmb[ind];
+						line2 += m2[ind];
 
 						area[b] += line;
 						area_r[b] += line_r;
@@ -626,11 +1289,11 @@ public class AnimatedGIFWriter {
 						area_b[b] += line_b;
 						area2[b] += line2;
 
-						vwt[r][g][b] = vwt[r - 1][g][b] + area[b];
-						vmr[r][g][b] = vmr[r - 1][g][b] + area_r[b];
-						vmg[r][g][b] = vmg[r - 1][g][b] + area_g[b];
-						vmb[r][g][b] = vmb[r - 1][g][b] + area_b[b];
-						m2[r][g][b] = m2[r - 1][g][b] + area2[b];
+						vwt[ind] = vwt[prev] + area[b];
+						vmr[ind] = vmr[prev] + area_r[b];
+						vmg[ind] = vmg[prev] + area_g[b];
+						vmb[ind] = vmb[prev] + area_b[b];
+						m2[ind] = m2[prev] + area2[b];
 					}
 				}
 			}
@@ -642,7 +1305,7 @@ public class AnimatedGIFWriter {
 			for (r = cube.r0 + 1; r <= cube.r1; ++r) {
 				for (g = cube.g0 + 1; g <= cube.g1; ++g) {
 					for (b = cube.b0 + 1; b <= cube.b1; ++b) {
-						tag[(r << 10) + (r << 6) + r + (g << 5) + g + b] = label;
+						tag[index(r, g, b)] = label;
 					}
 				}
 			}
@@ -703,101 +1366,40 @@ public class AnimatedGIFWriter {
 		}
 
 		public int quantize(final byte[] newPixels, final int[] lut, int[] colorInfo) {
-			Box cube[] = new Box[MAXCOLOR];
-			int lut_r, lut_g, lut_b;
-			int tag[] = new int[QUANT_SIZE * QUANT_SIZE * QUANT_SIZE];
+			int colors = quantize(lut, colorInfo);
 
-			int next, i, k;
-			long weight;
-			float vv[] = new float[MAXCOLOR], temp;
-
-			Hist3d(wt, mr, mg, mb, m2);
-			M3d(wt, mr, mg, mb, m2);
-
-			for (i = 0; i < MAXCOLOR; i++) {
-				cube[i] = new Box();
-			}
-
-			cube[0].r0 = cube[0].g0 = cube[0].b0 = 0;
-			cube[0].r1 = cube[0].g1 = cube[0].b1 = QUANT_SIZE - 1;
-			next = 0;
-
-			if (transparent_color >= 0) {
-				lut_size--;
-			}
-
-			for (i = 1; i < lut_size; ++i) {
-				if (Cut(cube[next], cube[i])) {
-					/* volume test ensures we won't try to cut one-cell box */
-					vv[next] = cube[next].vol > 1 ? Var(cube[next]) : 0.0f;
-					vv[i] = cube[i].vol > 1 ? Var(cube[i]) : 0.0f;
-				} else {
-					vv[next] = 0.0f; /* don't try to split this box again */
-					i--; /* didn't create box i */
-				}
-				next = 0;
-				temp = vv[0];
-				for (k = 1; k <= i; ++k) {
-					if (vv[k] > temp) {
-						temp = vv[k];
-						next = k;
-					}
-				}
-				if (temp <= 0.0f) {
-					k = i + 1;
-					break;
-				}
-			}
-
-			for (k = 0; k < lut_size; ++k) {
+			for (int k = 0; k < colors; ++k) {
 				Mark(cube[k], k, tag);
-				weight = Vol(cube[k], wt);
-				if (weight > 0) {
-					lut_r = (int) (Vol(cube[k], mr) / weight);
-					lut_g = (int) (Vol(cube[k], mg) / weight);
-					lut_b = (int) (Vol(cube[k], mb) / weight);
-					lut[k] = 255 << 24 | lut_r << 16 | lut_g << 8 | lut_b;
-				} else {
-					lut[k] = 0;
-				}
 			}
 
-			for (i = 0; i < size; ++i) {
+			for (int i = 0; i < size; ++i) {
 				if (pixels[i] >>> 24 < 0x80) {
-					newPixels[i] = (byte) lut_size;
+					newPixels[i] = (byte) colors;
 				} else {
 					newPixels[i] = (byte) tag[qadd[i]];
 				}
 			}
 
-			int bitsPerPixel = 0;
-			while (1 << bitsPerPixel < lut_size) {
-				bitsPerPixel++;
-			}
-			colorInfo[0] = bitsPerPixel;
-			colorInfo[1] = -1;
-
-			if (transparent_color >= 0) {
-				lut[lut_size] = transparent_color; // Set the transparent color
-				colorInfo[1] = lut_size;
-			}
-
-			return lut_size;
+			return colors;
 		}
 
 		public int quantize(final int[] lut, int[] colorInfo) {
-			Box cube[] = new Box[MAXCOLOR];
 			int lut_r, lut_g, lut_b;
 
 			int next, i, k;
 			long weight;
-			float vv[] = new float[MAXCOLOR], temp;
+			float temp;
 
-			Hist3d(wt, mr, mg, mb, m2);
-			M3d(wt, mr, mg, mb, m2);
+			if (!moments) {
+				Hist3d(wt, mr, mg, mb, m2);
+				M3d(wt, mr, mg, mb, m2);
+				moments = true;
+			}
 
 			for (i = 0; i < MAXCOLOR; i++) {
-				cube[i] = new Box();
+				Box box = cube[i];
+				box.r0 = box.r1 = box.g0 = box.g1 = box.b0 = box.b1 = box.vol = 0;
+				vv[i] = 0.0f;
 			}
 
 			cube[0].r0 = cube[0].g0 = cube[0].b0 = 0;
@@ -858,19 +1460,63 @@ public class AnimatedGIFWriter {
 			return lut_size;
 		}
 
-		private long Top(Box cube, int dir, int pos, long mmt[][][]) {
+		/**
+		 * Prepares the quantizer for another palette size. The moments of the current pixels are kept, so only the
+		 * boxes are cut again, unless the quantizer was last reset for different pixels.
+		 *
+		 * @return true if the moments could be kept, false if the quantizer has to be reset
+		 */
+		public boolean resize(int[] pixels, int size, int lut_size, int sampleStep) {
+			if (!moments || pixels != this.pixels || size != this.size || sampleStep != this.sampleStep) {
+				return false;
+			}
+			this.lut_size = lut_size;
+			return true;
+		}
+
+		/**
+		 * Prepares the quantizer for a new image. The moment tables are cleared in place, nothing is reallocated unless
+		 * the image is larger than any of the previous ones.
+		 *
+		 * @param pixels
+		 *            ARGB pixels of the image
+		 * @param size
+		 *            number of pixels to use from the beginning of the array
+		 * @param lut_size
+		 *            maximum number of colors in the resulting palette
+		 * @param sampleStep
+		 *            only every sampleStep'th pixel is used to build the palette
+		 */
+		public void reset(int[] pixels, int size, int lut_size, int sampleStep) {
+			this.pixels = pixels;
+			this.size = size;
+			this.lut_size = lut_size;
+			this.sampleStep = sampleStep;
+			transparent_color = -1;
+			moments = false;
+			if (qadd.length < size) {
+				qadd = new int[size];
+			}
+			Arrays.fill(wt, 0);
+			Arrays.fill(mr, 0);
+			Arrays.fill(mg, 0);
+			Arrays.fill(mb, 0);
+			Arrays.fill(m2, 0.0f);
+		}
+
+		private long Top(Box cube, int dir, int pos, long mmt[]) {
 			/* Compute remainder of Vol(cube, mmt), substituting pos for */
 			/* r1, g1, or b1 (depending on dir) */
 			switch (dir) {
 			case RED:
-				return mmt[pos][cube.g1][cube.b1] - mmt[pos][cube.g1][cube.b0] - mmt[pos][cube.g0][cube.b1]
-						+ mmt[pos][cube.g0][cube.b0];
+				return mmt[index(pos, cube.g1, cube.b1)] - mmt[index(pos, cube.g1, cube.b0)]
+						- mmt[index(pos, cube.g0, cube.b1)] + mmt[index(pos, cube.g0, cube.b0)];
 			case GREEN:
-				return mmt[cube.r1][pos][cube.b1] - mmt[cube.r1][pos][cube.b0] - mmt[cube.r0][pos][cube.b1]
-						+ mmt[cube.r0][pos][cube.b0];
+				return mmt[index(cube.r1, pos, cube.b1)] - mmt[index(cube.r1, pos, cube.b0)]
+						- mmt[index(cube.r0, pos, cube.b1)] + mmt[index(cube.r0, pos, cube.b0)];
 			case BLUE:
-				return mmt[cube.r1][cube.g1][pos] - mmt[cube.r1][cube.g0][pos] - mmt[cube.r0][cube.g1][pos]
-						+ mmt[cube.r0][cube.g0][pos];
+				return mmt[index(cube.r1, cube.g1, pos)] - mmt[index(cube.r1, cube.g0, pos)]
+						- mmt[index(cube.r0, cube.g1, pos)] + mmt[index(cube.r0, cube.g0, pos)];
 			default:
 				return 0;
 			}
@@ -883,17 +1529,51 @@ public class AnimatedGIFWriter {
 			dr = Vol(cube, mr);
 			dg = Vol(cube, mg);
 			db = Vol(cube, mb);
-			xx = m2[cube.r1][cube.g1][cube.b1] - m2[cube.r1][cube.g1][cube.b0] - m2[cube.r1][cube.g0][cube.b1]
-					+ m2[cube.r1][cube.g0][cube.b0] - m2[cube.r0][cube.g1][cube.b1] + m2[cube.r0][cube.g1][cube.b0]
-					+ m2[cube.r0][cube.g0][cube.b1] - m2[cube.r0][cube.g0][cube.b0];
+			xx = m2[index(cube.r1, cube.g1, cube.b1)] - m2[index(cube.r1, cube.g1, cube.b0)]
+					- m2[index(cube.r1, cube.g0, cube.b1)] + m2[index(cube.r1, cube.g0, cube.b0)]
+					- m2[index(cube.r0, cube.g1, cube.b1)] + m2[index(cube.r0, cube.g1, cube.b0)]
+					+ m2[index(cube.r0, cube.g0, cube.b1)] - m2[index(cube.r0, cube.g0, cube.b0)];
 			return xx - (dr * dr + dg * dg + db * db) / Vol(cube, wt);
 		}
 
-		private long Vol(Box cube, long mmt[][][]) {
+		private long Vol(Box cube, long mmt[]) {
 			/* Compute sum over a box of any given statistic */
-			return mmt[cube.r1][cube.g1][cube.b1] - mmt[cube.r1][cube.g1][cube.b0] - mmt[cube.r1][cube.g0][cube.b1]
-					+ mmt[cube.r1][cube.g0][cube.b0] - mmt[cube.r0][cube.g1][cube.b1] + mmt[cube.r0][cube.g1][cube.b0]
-					+ mmt[cube.r0][cube.g0][cube.b1] - mmt[cube.r0][cube.g0][cube.b0];
+			return mmt[index(cube.r1, cube.g1, cube.b1)] - mmt[index(cube.r1, cube.g1, cube.b0)]
+					- mmt[index(cube.r1, cube.g0, cube.b1)] + mmt[index(cube.r1, cube.g0, cube.b0)]
+					- mmt[index(cube.r0, cube.g1, cube.b1)] + mmt[index(cube.r0, cube.g1, cube.b0)]
+					+ mmt[index(cube.r0, cube.g0, cube.b1)] - mmt[index(cube.r0, cube.g0, cube.b0)];
+		}
+	}
+
+	// Wu's quantizer on the tables of the calling thread, pixels are mapped through the boxes of the quantizer
+	private static final class WuQuantizer implements ColorQuantizer {
+		private final int sampleFactor;
+
+		WuQuantizer(int sampleFactor) {
+			this.sampleFactor = sampleFactor;
+		}
+
+		@Override
+		public int quantize(int[] pixels, int size, int lut_size, byte[] newPixels, int[] lut, int[] colorInfo) {
+			WuQuant quantizer = FRAME_ENCODERS.get().quantizer;
+			quantizer.reset(pixels, size, lut_size, sampleFactor);
+			return quantizer.quantize(newPixels, lut, colorInfo);
+		}
+
+		@Override
+		public int quantize(int[] pixels, int size, int lut_size, int[] lut, int[] colorInfo) {
+			WuQuant quantizer = FRAME_ENCODERS.get().quantizer;
+			quantizer.reset(pixels, size, lut_size, sampleFactor);
+			return quantizer.quantize(lut, colorInfo);
+		}
+
+		@Override
+		public int requantize(int[] pixels, int size, int lut_size, int[] lut, int[] colorInfo) {
+			WuQuant quantizer = FRAME_ENCODERS.get().quantizer;
+			if (!quantizer.resize(pixels, size, lut_size, sampleFactor)) {
+				quantizer.reset(pixels, size, lut_size, sampleFactor);
+			}
+			return quantizer.quantize(lut, colorInfo);
 		}
 	}
 
@@ -902,16 +1582,52 @@ public class AnimatedGIFWriter {
 
 	public static final byte EXTENSION_INTRODUCER = 0x21; // "!"
 
+	// Frame encoders are kept per thread, so their buffers survive between frames and writers
+	private static final ThreadLocal<FrameEncoder> FRAME_ENCODERS = ThreadLocal.withInitial(FrameEncoder::new);
+
 	public static final byte GRAPHIC_CONTROL_LABEL = (byte) 0xf9;
 	// Define constants
 	public static final byte IMAGE_SEPARATOR = 0x2c; // ","
 	public static final byte IMAGE_TRAILER = 0x3b; // ";"
 
-	private static final int MASK[] = { 0x00, 0x01, 0x03, 0x07, 0x0f, 0x1f, 0x3f, 0x7f, 0xff };
+	// Threshold offsets of the ordered dither, indexed by the low three bits of the row and column
+	private static final int[] ORDERED_DITHER = bayerThresholds(8, 32);
+	// Frames with fewer pixels are dithered on the calling thread
+	private static final int ORDERED_DITHER_PARALLEL_PIXELS = 1 << 16;
 
 	public static final byte TEXT_EXTENSION_LABEL = 0x01;
 
-	private static int[] checkColorDepth(int[] rgbTriplets, byte[] newPixels, final int[] colorPalette) {
+	/**
+	 * Builds a Bayer threshold matrix by recursive subdivision and scales its entries to offsets centered around zero.
+	 *
+	 * @param size
+	 *            width and height of the matrix, a power of two
+	 * @param spread
+	 *            distance between the smallest and the largest offset
+	 */
+	private static int[] bayerThresholds(int size, int spread) {
+		int[] matrix = { 0 };
+		for (int n = 1; n < size; n <<= 1) {
+			int[] next = new int[4 * n * n];
+			for (int y = 0; y < n; y++) {
+				for (int x = 0; x < n; x++) {
+					int value = 4 * matrix[y * n + x];
+					next[y * 2 * n + x] = value;
+					next[y * 2 * n + x + n] = value + 2;
+					next[(y + n) * 2 * n + x] = value + 3;
+					next[(y + n) * 2 * n + x + n] = value + 1;
+				}
+			}
+			matrix = next;
+		}
+		for (int i = 0; i < matrix.length; i++) {
+			matrix[i] = (2 * matrix[i] + 1) * spread / (2 * matrix.length) - spread / 2;
+		}
+		return matrix;
+	}
+
+	static int[] checkColorDepth(FrameEncoder encoder, int[] rgbTriplets, byte[] newPixels,
+			final int[] colorPalette) {
 		int index = 0;
 		int temp = 0;
 		int bitsPerPixel = 1;
@@ -919,7 +1635,14 @@ public class AnimatedGIFWriter {
 		int transparent_color = -1;// Transparent color
 		int[] colorInfo = new int[2];// Return value
 
-		IntHashtable<Integer> rgbHash = new IntHashtable<>(1023);
+		int[] colorKeys = encoder.colorKeys;
+		byte[] colorIndices = encoder.colorIndices;
+		int mask = colorKeys.length - 1;
+		int shift = 32 - Integer.numberOfTrailingZeros(colorKeys.length);
+		Arrays.fill(colorKeys, 0);
+		// Neighbouring pixels often share the color, so remember the last lookup
+		int lastKey = 0;
+		byte lastIndex = 0;
 
 		for (int i = 0; i < rgbTriplets.length; i++) {
 			temp = rgbTriplets[i] & 0x00ffffff;
@@ -929,40 +1652,86 @@ public class AnimatedGIFWriter {
 					transparent_index = index;
 					transparent_color = temp;// Remember transparent color
 				}
-				temp = Integer.MAX_VALUE;
+				temp = 0x01000000; // Outside of the RGB range
 			}
 
-			Integer entry = rgbHash.get(temp);
+			int key = temp + 1;
+			if (key == lastKey) {
+				newPixels[i] = lastIndex;
+				continue;
+			}
+			int slot = key * 0x9e3779b1 >>> shift;
+			while (colorKeys[slot] != 0 && colorKeys[slot] != key) {
+				slot = slot + 1 & mask;
+			}
 
-			if (entry != null) {
-				newPixels[i] = entry.byteValue();
-			} else {
+			if (colorKeys[slot] == 0) {
 				if (index > 0xff) {// More than 256 colors, have to reduce
 					// Colors before saving as an indexed color image
 					colorInfo[0] = 24;
 					return colorInfo;
 				}
-				rgbHash.put(temp, index);
-				newPixels[i] = (byte) index;
+				colorKeys[slot] = key;
+				colorIndices[slot] = (byte) index;
 				colorPalette[index++] = 0xff << 24 | temp;
 			}
+			lastKey = key;
+			lastIndex = colorIndices[slot];
+			newPixels[i] = lastIndex;
 		}
 		if (transparent_index >= 0) {
 			colorPalette[transparent_index] = transparent_color;
 		}
-		// Return the actual bits per pixel and the transparent color index if any
-		while (1 << bitsPerPixel < index) {
+		// Return the actual bits per pixel and the transparent color index if any
+		while (1 << bitsPerPixel < index) {
+			bitsPerPixel++;
+		}
+
+		colorInfo[0] = bitsPerPixel;
+		colorInfo[1] = transparent_index;
+
+		return colorInfo;
+	}
+
+	private static void checkSampleFactor(int sampleFactor) {
+		if (sampleFactor < 1) {
+			throw new IllegalArgumentException("Invalid sample factor: " + sampleFactor);
+		}
+	}
+
+	/**
+	 * Appends the transparent entry, if any, after the opaque colors of a palette and fills in the color info.
+	 *
+	 * @return the number of opaque colors
+	 */
+	private static int completePalette(int[] pixels, int transparent, int colors, int[] colorPalette,
+			int[] colorInfo) {
+		int entries = colors;
+		colorInfo[1] = -1;
+		if (transparent >= 0) {
+			colorPalette[entries++] = pixels[transparent];
+			colorInfo[1] = colors;
+		}
+		int bitsPerPixel = 1;
+		while (1 << bitsPerPixel < entries) {
 			bitsPerPixel++;
 		}
-
 		colorInfo[0] = bitsPerPixel;
-		colorInfo[1] = transparent_index;
 
-		return colorInfo;
+		return colors;
 	}
 
-	private static void dither_FloydSteinberg(int[] rgbTriplet, int width, int height, byte[] newPixels,
-			int no_of_color, int[] colorPalette, int transparent_index) {
+	// Copy the pixels inside the given bounds into a new array
+	private static int[] crop(int[] pixels, int width, Rectangle bounds) {
+		int[] cropped = new int[bounds.width * bounds.height];
+		for (int row = 0; row < bounds.height; row++) {
+			System.arraycopy(pixels, (bounds.y + row) * width + bounds.x, cropped, row * bounds.width, bounds.width);
+		}
+		return cropped;
+	}
+
+	static void dither_FloydSteinberg(int[] rgbTriplet, int width, int height, byte[] newPixels,
+			InverseColorMap invMap, int[] colorPalette, int transparent_index) {
 		int index = 0, index1 = 0, err1, err2, err3, red, green, blue;
 		// Define error arrays
 		// Errors for the current line
@@ -975,11 +1744,6 @@ public class AnimatedGIFWriter {
 		int[] nextErrG = new int[width + 2];
 		int[] nextErrB = new int[width + 2];
 
-		InverseColorMap invMap;
-
-		invMap = new InverseColorMap();
-		invMap.createInverseMap(no_of_color, colorPalette);
-
 		for (int row = 0; row < height; row++) {
 			for (int col = 0; col < width; index1++, col++) {
 				// Transparent, no dither
@@ -1054,6 +1818,143 @@ public class AnimatedGIFWriter {
 		}
 	}
 
+	private static void dither_Ordered(int[] rgbTriplet, int width, int height, byte[] newPixels,
+			InverseColorMap invMap, int transparent_index) {
+		if (width * height < ORDERED_DITHER_PARALLEL_PIXELS) {
+			for (int row = 0; row < height; row++) {
+				dither_OrderedRow(rgbTriplet, width, row, newPixels, invMap, transparent_index);
+			}
+		} else {
+			// Forks into the pool of the calling thread, which is the encoding pool when encoding in batches
+			IntStream.range(0, height).parallel()
+					.forEach(row -> dither_OrderedRow(rgbTriplet, width, row, newPixels, invMap, transparent_index));
+		}
+	}
+
+	private static void dither_OrderedRow(int[] rgbTriplet, int width, int row, byte[] newPixels,
+			InverseColorMap invMap, int transparent_index) {
+		int thresholds = (row & 7) << 3;
+		for (int col = 0, index1 = row * width; col < width; index1++, col++) {
+			int rgb = rgbTriplet[index1];
+			// Transparent, no dither
+			if (rgb >>> 24 < 0x80) {
+				newPixels[index1] = (byte) transparent_index;
+				continue;
+			}
+			int threshold = ORDERED_DITHER[thresholds | col & 7];
+			int red = Math.min(Math.max((rgb >> 16 & 0xff) + threshold, 0), 0xff);
+			int green = Math.min(Math.max((rgb >> 8 & 0xff) + threshold, 0), 0xff);
+			int blue = Math.min(Math.max((rgb & 0xff) + threshold, 0), 0xff);
+			newPixels[index1] = (byte) invMap.getNearestColorIndex(red, green, blue);
+		}
+	}
+
+	// Index of the first transparent pixel, -1 if every pixel is opaque
+	private static int findTransparentPixel(int[] pixels, int size) {
+		for (int i = 0; i < size; i++) {
+			if (pixels[i] >>> 24 < 0x80) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// Reads 8 or 16 bit sRGB or 8 bit gray components, such as the RGB(A) and gray(+alpha) layouts of decoded PNG and
+	// JPEG images
+	private static int[] getComponentRGB(Raster raster, ComponentSampleModel sampleModel,
+			ComponentColorModel colorModel, int x0, int y0, int width, int height) {
+		DataBuffer dataBuffer = raster.getDataBuffer();
+		byte[] bytes = dataBuffer instanceof DataBufferByte ? ((DataBufferByte) dataBuffer).getData() : null;
+		short[] shorts = dataBuffer instanceof DataBufferUShort ? ((DataBufferUShort) dataBuffer).getData() : null;
+		int[] bandOffsets = sampleModel.getBandOffsets();
+		int pixelStride = sampleModel.getPixelStride();
+		int scanlineStride = sampleModel.getScanlineStride();
+		boolean gray = colorModel.getNumColorComponents() == 1;
+		boolean premultiplied = colorModel.isAlphaPremultiplied();
+		// Gray is read from the red offset, a missing alpha reads the red offset too and is forced opaque below
+		int red = bandOffsets[0];
+		int green = bandOffsets[gray ? 0 : 1];
+		int blue = bandOffsets[gray ? 0 : 2];
+		int alpha = colorModel.hasAlpha() ? bandOffsets[bandOffsets.length - 1] : red;
+		int opaque = colorModel.hasAlpha() ? 0 : 0xff000000;
+		int[] rgbs = new int[width * height];
+
+		// Gray levels are not sRGB, so they are converted through the color model as BufferedImage.getRGB does
+		int[] grayLevels = null;
+		if (gray) {
+			grayLevels = new int[256];
+			byte[] pixel = new byte[colorModel.getNumComponents()];
+			Arrays.fill(pixel, (byte) 0xff);
+			for (int level = 0; level < grayLevels.length; level++) {
+				pixel[0] = (byte) level;
+				grayLevels[level] = colorModel.getRGB(pixel) & 0xffffff;
+			}
+		}
+
+		for (int y = 0, i = 0; y < height; y++) {
+			int index = dataBuffer.getOffset() + (y0 + y) * scanlineStride + x0 * pixelStride;
+			for (int x = 0; x < width; x++, i++, index += pixelStride) {
+				int r, g, b, a;
+				if (grayLevels != null) {
+					rgbs[i] = opaque | (bytes[index + alpha] & 0xff) << 24 | grayLevels[bytes[index + red] & 0xff];
+					continue;
+				}
+				if (bytes != null) {
+					r = bytes[index + red] & 0xff;
+					g = bytes[index + green] & 0xff;
+					b = bytes[index + blue] & 0xff;
+					a = bytes[index + alpha] & 0xff;
+				} else {
+					r = shorts[index + red] >> 8 & 0xff;
+					g = shorts[index + green] >> 8 & 0xff;
+					b = shorts[index + blue] >> 8 & 0xff;
+					a = shorts[index + alpha] >> 8 & 0xff;
+				}
+				rgbs[i] = opaque | a << 24 | r << 16 | g << 8 | b;
+			}
+		}
+		if (premultiplied) {
+			PremultipliedAlpha.unpremultiply(rgbs);
+		}
+		return rgbs;
+	}
+
+	// Looks up palette indices of 8 bits or less, stored one per byte or packed into bytes
+	private static int[] getIndexedRGB(Raster raster, IndexColorModel colorModel, int x0, int y0, int width,
+			int height) {
+		SampleModel sampleModel = raster.getSampleModel();
+		DataBuffer dataBuffer = raster.getDataBuffer();
+		byte[] bytes = ((DataBufferByte) dataBuffer).getData();
+		int[] palette = new int[Math.max(colorModel.getMapSize(), 256)];
+		colorModel.getRGBs(palette);
+		int[] rgbs = new int[width * height];
+
+		if (sampleModel instanceof MultiPixelPackedSampleModel) {
+			MultiPixelPackedSampleModel packedModel = (MultiPixelPackedSampleModel) sampleModel;
+			int bits = packedModel.getPixelBitStride();
+			int mask = (1 << bits) - 1;
+			int scanlineStride = packedModel.getScanlineStride();
+			for (int y = 0, i = 0; y < height; y++) {
+				int row = dataBuffer.getOffset() + (y0 + y) * scanlineStride;
+				for (int x = 0, bit = packedModel.getDataBitOffset() + x0 * bits; x < width; x++, i++, bit += bits) {
+					rgbs[i] = palette[bytes[row + (bit >> 3)] >> 8 - bits - (bit & 7) & mask];
+				}
+			}
+		} else {
+			ComponentSampleModel componentModel = (ComponentSampleModel) sampleModel;
+			int pixelStride = componentModel.getPixelStride();
+			int scanlineStride = componentModel.getScanlineStride();
+			for (int y = 0, i = 0; y < height; y++) {
+				int index = dataBuffer.getOffset() + (y0 + y) * scanlineStride + x0 * pixelStride
+						+ componentModel.getBandOffsets()[0];
+				for (int x = 0; x < width; x++, i++, index += pixelStride) {
+					rgbs[i] = palette[bytes[index] & 0xff];
+				}
+			}
+		}
+		return rgbs;
+	}
+
 	private static Dimension getLogicalScreenSize(BufferedImage[] images) {
 		// Determine the logical screen dimension assuming all the frames have the same
 		// left and top coordinates (0, 0)
@@ -1072,7 +1973,7 @@ public class AnimatedGIFWriter {
 		return new Dimension(logicalScreenWidth, logicalScreenHeight);
 	}
 
-	private static Dimension getLogicalScreenSize(GIFFrame[] frames) {
+	static Dimension getLogicalScreenSize(GIFFrame[] frames) {
 		// Determine the logical screen dimension given all the frames with different
 		// left and top coordinates.
 		int logicalScreenWidth = 0;
@@ -1093,184 +1994,262 @@ public class AnimatedGIFWriter {
 	}
 
 	/**
-	 * Retrieves RGB values from Raster. This seems to be the fastest way to get RGB values.
+	 * Determines the smallest rectangle containing all the non-transparent pixels of a frame. Pixels outside of it are
+	 * transparent, so leaving them out of the frame does not change what is displayed. A fully transparent frame is
+	 * reduced to its top left pixel, as a GIF image can not be empty.
 	 *
-	 * TYPE_INT_RGB = 1 TYPE_INT_ARGB = 2 TYPE_INT_ARGB_PRE = 3 TYPE_INT_BGR = 4 TYPE_3BYTE_BGR = 5 TYPE_4BYTE_ABGR = 6
-	 * TYPE_4BYTE_ABGR_PRE = 7 TYPE_BYTE_GRAY = 10 TYPE_BYTE_BINARY = 12 TYPE_BYTE_INDEXED = 13 TYPE_USHORT_GRAY = 11
-	 * TYPE_USHORT_565_RGB = 8 TYPE_USHORT_555_RGB = 9 TYPE_CUSTOM = 0.
-	 *
-	 * @param image
-	 *            input BufferedImage
-	 * @return integer array - default RGB color space representation
+	 * @param pixels
+	 *            ARGB pixels of the frame
+	 * @param width
+	 *            frame width
+	 * @param height
+	 *            frame height
+	 * @return bounds of the non-transparent pixels relative to the frame
 	 */
-	private static int[] getRGB(BufferedImage image) {
-		// Get the BufferedImageType
-		int type = image.getType();
-		// Grab the internal data array
-		Raster raster = image.getRaster();
-		Object object = raster.getDataElements(0, 0, image.getWidth(), image.getHeight(), null);
-		// Determine the data transfer type
-		int transferType = raster.getTransferType();
-		// Get image dimension
-		int imageWidth = image.getWidth();
-		int imageHeight = image.getHeight();
-		int imageSize = imageWidth * imageHeight;
-		int[] rgbs = new int[imageSize];
-		// Branch by transfer type
-		switch (transferType) {
-		case DataBuffer.TYPE_INT:
-			rgbs = (int[]) object;
-			if (type == BufferedImage.TYPE_INT_ARGB_PRE) {
-				for (int i = 0; i < imageSize; i++) {
-					float alpha = 255.0f / (rgbs[i] >> 24 & 0xff);
-					byte red = (byte) ((rgbs[i] >> 16 & 0xff) * alpha);
-					byte green = (byte) ((rgbs[i] >> 8 & 0xff) * alpha);
-					byte blue = (byte) ((rgbs[i] & 0xff) * alpha);
-					rgbs[i] = rgbs[i] & 0xff000000 | (red & 0xff) << 16 | (green & 0xff) << 8 | blue & 0xff;
-				}
-			} else if (type == BufferedImage.TYPE_INT_BGR) { // Convert BGR to RGB
-				for (int i = 0; i < rgbs.length; i++) {
-					int blue = rgbs[i] >> 16 & 0xff;
-					int green = rgbs[i] >> 8 & 0xff;
-					int red = rgbs[i] & 0xff;
-					rgbs[i] = 0xff000000 | red << 16 | green << 8 | blue;
-				}
-			} else if (type == BufferedImage.TYPE_INT_RGB) {
-				for (int i = 0; i < rgbs.length; i++) {
-					rgbs[i] = 0xff000000 | rgbs[i];
-				}
-			} else if (type == BufferedImage.TYPE_INT_ARGB) {
-				; // Do nothing
-			} else {
-				return image.getRGB(0, 0, imageWidth, imageHeight, rgbs, 0, imageWidth);
-			}
-			return rgbs;
-		case DataBuffer.TYPE_BYTE:
-			byte[] bpixels = (byte[]) object;
-			// BufferedImage.getRGB() seems a bit faster in this case for small images.
-			if (type == BufferedImage.TYPE_BYTE_INDEXED || type == BufferedImage.TYPE_BYTE_BINARY) {
-				IndexColorModel indexModel = (IndexColorModel) image.getColorModel();
-				int mapSize = indexModel.getMapSize();
-				byte[] reds = new byte[mapSize];
-				byte[] greens = new byte[mapSize];
-				byte[] blues = new byte[mapSize];
-				byte[] alphas = new byte[mapSize];
-				int[] palette = new int[mapSize];
-				indexModel.getReds(reds);
-				indexModel.getGreens(greens);
-				indexModel.getBlues(blues);
-				indexModel.getAlphas(alphas);
-				for (int i = 0; i < mapSize; i++) {
-					palette[i] = (alphas[i] & 0xff) << 24 | (reds[i] & 0xff) << 16 | (greens[i] & 0xff) << 8
-							| blues[i] & 0xff;
-				}
-				for (int i = 0; i < imageSize; i++) {
-					rgbs[i] = palette[bpixels[i] & 0xff];
+	private static Rectangle getOpaqueBounds(int[] pixels, int width, int height) {
+		int top = 0;
+		int bottom = height - 1;
+		int left = width - 1;
+		int right = 0;
+
+		// Skip transparent rows from the top and from the bottom
+		top: for (; top < height; top++) {
+			for (int i = top * width, end = i + width; i < end; i++) {
+				if (pixels[i] >>> 24 >= 0x80) {
+					break top;
 				}
-			} else if (type == BufferedImage.TYPE_4BYTE_ABGR) {
-				for (int i = 0, index = 0; i < imageSize; i++) {
-					rgbs[i] = (bpixels[index++] & 0xff) << 16 | (bpixels[index++] & 0xff) << 8 | bpixels[index++] & 0xff
-							| (bpixels[index++] & 0xff) << 24;
+			}
+		}
+		if (top == height) {
+			return new Rectangle(0, 0, 1, 1);
+		}
+		bottom: for (; bottom > top; bottom--) {
+			for (int i = bottom * width, end = i + width; i < end; i++) {
+				if (pixels[i] >>> 24 >= 0x80) {
+					break bottom;
 				}
-			} else if (type == BufferedImage.TYPE_3BYTE_BGR) {
-				for (int i = 0, index = 0; i < imageSize; i++) {
-					rgbs[i] = 0xff000000 | (bpixels[index++] & 0xff) << 16 | (bpixels[index++] & 0xff) << 8
-							| bpixels[index++] & 0xff;
+			}
+		}
+		// Then find the leftmost and rightmost opaque columns of the remaining rows
+		for (int row = top; row <= bottom; row++) {
+			int offset = row * width;
+			for (int col = 0; col < left; col++) {
+				if (pixels[offset + col] >>> 24 >= 0x80) {
+					left = col;
+					break;
 				}
-			} else if (type == BufferedImage.TYPE_4BYTE_ABGR_PRE) {
-				for (int i = 0, index = 0; i < imageSize; i++, index += 4) {
-					float alpha = 255.0f * (bpixels[index + 3] & 0xff);
-					byte blue = (byte) ((bpixels[index + 2] & 0xff) * alpha);
-					byte green = (byte) ((bpixels[index + 1] & 0xff) * alpha);
-					byte red = (byte) ((bpixels[index] & 0xff) * alpha);
-					rgbs[i] = bpixels[index + 3] & 0xff000000 | (red & 0xff) << 16 | (green & 0xff) << 8 | blue & 0xff;
+			}
+			for (int col = width - 1; col > right; col--) {
+				if (pixels[offset + col] >>> 24 >= 0x80) {
+					right = col;
+					break;
 				}
-			} else if (type == BufferedImage.TYPE_BYTE_GRAY) {
-				for (int i = 0; i < imageSize; i++) {
-					rgbs[i] = 0xff000000 | (bpixels[i] & 0xff) << 16 | (bpixels[i] & 0xff) << 8 | bpixels[i] & 0xff;
+			}
+		}
+
+		return new Rectangle(left, top, right - left + 1, bottom - top + 1);
+	}
+
+	// Reads pixels packed into ints or shorts, such as the INT_* and USHORT_5x5_RGB types
+	private static int[] getPackedRGB(Raster raster, SinglePixelPackedSampleModel sampleModel,
+			DirectColorModel colorModel, int x0, int y0, int width, int height) {
+		DataBuffer dataBuffer = raster.getDataBuffer();
+		int scanlineStride = sampleModel.getScanlineStride();
+		int offset = dataBuffer.getOffset() + y0 * scanlineStride + x0;
+		int[] ints = dataBuffer instanceof DataBufferInt ? ((DataBufferInt) dataBuffer).getData() : null;
+		short[] shorts = ints == null ? ((DataBufferUShort) dataBuffer).getData() : null;
+		int[] masks = { colorModel.getAlphaMask(), colorModel.getRedMask(), colorModel.getGreenMask(),
+				colorModel.getBlueMask() };
+		boolean premultiplied = colorModel.isAlphaPremultiplied();
+
+		if (ints != null && !premultiplied && masks[1] == 0xff0000 && masks[2] == 0xff00 && masks[3] == 0xff) {
+			if (masks[0] == 0xff000000) { // ARGB
+				if (offset == 0 && scanlineStride == width && ints.length == width * height) {
+					return ints;
 				}
-			} else {
-				return image.getRGB(0, 0, imageWidth, imageHeight, rgbs, 0, imageWidth);
-			}
-			return rgbs;
-		case DataBuffer.TYPE_USHORT:
-			short[] spixels = (short[]) object;
-			if (type == BufferedImage.TYPE_USHORT_GRAY) {
-				for (int i = 0; i < imageSize; i++) {
-					int gray = spixels[i] >> 8 & 0xff;
-					rgbs[i] = 0xff000000 | gray << 16 | gray << 8 | gray;
+				int[] rgbs = new int[width * height];
+				for (int y = 0; y < height; y++) {
+					System.arraycopy(ints, offset + y * scanlineStride, rgbs, y * width, width);
 				}
-			} else if (type == BufferedImage.TYPE_USHORT_565_RGB) {
-				for (int i = 0; i < imageSize; i++) {
-					int red = spixels[i] >> 11 & 0x1f;
-					int green = spixels[i] >> 5 & 0x3f;
-					int blue = spixels[i] & 0x1f;
-					rgbs[i] = 0xff000000 | red << 19 | green << 10 | blue << 3;
+				return rgbs;
+			}
+			if (masks[0] == 0) { // RGB
+				int[] rgbs = new int[width * height];
+				for (int y = 0, i = 0; y < height; y++) {
+					for (int x = 0, index = offset + y * scanlineStride; x < width; x++, i++, index++) {
+						rgbs[i] = 0xff000000 | ints[index];
+					}
 				}
-			} else if (type == BufferedImage.TYPE_USHORT_555_RGB) {
-				for (int i = 0; i < imageSize; i++) {
-					int red = spixels[i] >>> 10 & 0x1f;
-					int green = spixels[i] >>> 5 & 0x1f;
-					int blue = spixels[i] & 0x1f;
-					rgbs[i] = 0xff000000 | red << 19 | green << 11 | blue << 3;
+				return rgbs;
+			}
+		}
+
+		// Any other masks, each channel is scaled to eight bits
+		int[] shifts = new int[4];
+		int[] maxValues = new int[4];
+		for (int c = 0; c < 4; c++) {
+			shifts[c] = masks[c] == 0 ? 0 : Integer.numberOfTrailingZeros(masks[c]);
+			maxValues[c] = masks[c] >>> shifts[c];
+		}
+		int[] rgbs = new int[width * height];
+		for (int y = 0, i = 0; y < height; y++) {
+			for (int x = 0, index = offset + y * scanlineStride; x < width; x++, i++, index++) {
+				int pixel = ints != null ? ints[index] : shorts[index] & 0xffff;
+				int argb = 0;
+				for (int c = 0; c < 4; c++) {
+					int value = masks[c] == 0 ? 0xff : (pixel & masks[c]) >>> shifts[c];
+					if (maxValues[c] != 0xff && masks[c] != 0) {
+						value = (value * 0xff + (maxValues[c] >> 1)) / maxValues[c];
+					}
+					argb = argb << 8 | value;
 				}
-			} else {
-				return image.getRGB(0, 0, imageWidth, imageHeight, rgbs, 0, imageWidth);
+				rgbs[i] = argb;
 			}
-			return rgbs;
-		default:
-			return image.getRGB(0, 0, imageWidth, imageHeight, rgbs, 0, imageWidth);
 		}
+		if (premultiplied) {
+			PremultipliedAlpha.unpremultiply(rgbs);
+		}
+		return rgbs;
 	}
 
-	// Color quantization
-	private static int[] reduceColors(int[] rgbTriplets, int colorDepth, byte[] newPixels, final int[] colorPalette) {
-		int[] colorInfo = new int[2];
-		new WuQuant(rgbTriplets, 1 << colorDepth).quantize(newPixels, colorPalette, colorInfo);
+	/**
+	 * Returns the ARGB pixels of the top left width by height area of the image, row by row. Known layouts are read
+	 * straight from the backing data buffer of the raster, taking the scanline stride and the offsets of sub-images
+	 * into account, and only the rest falls back to BufferedImage.getRGB. For an ARGB image that covers its whole
+	 * buffer the backing array itself is returned, so the result must never be modified.
+	 */
+	private static int[] getRGB(BufferedImage image, int width, int height) {
+		Raster raster = image.getRaster();
+		SampleModel sampleModel = raster.getSampleModel();
+		ColorModel colorModel = image.getColorModel();
+		DataBuffer dataBuffer = raster.getDataBuffer();
+		// Location of the image origin in the sample model, non-zero for sub-images
+		int x0 = -raster.getSampleModelTranslateX();
+		int y0 = -raster.getSampleModelTranslateY();
+		int dataType = dataBuffer.getDataType();
+
+		if (dataBuffer.getNumBanks() == 1) {
+			if (sampleModel instanceof SinglePixelPackedSampleModel && colorModel instanceof DirectColorModel
+					&& (dataType == DataBuffer.TYPE_INT || dataType == DataBuffer.TYPE_USHORT)) {
+				return getPackedRGB(raster, (SinglePixelPackedSampleModel) sampleModel, (DirectColorModel) colorModel,
+						x0, y0, width, height);
+			}
+			if (colorModel instanceof IndexColorModel && dataType == DataBuffer.TYPE_BYTE
+					&& (sampleModel instanceof MultiPixelPackedSampleModel
+							|| sampleModel instanceof ComponentSampleModel && sampleModel.getNumBands() == 1)) {
+				return getIndexedRGB(raster, (IndexColorModel) colorModel, x0, y0, width, height);
+			}
+			if (sampleModel instanceof ComponentSampleModel && colorModel instanceof ComponentColorModel
+					&& isComponentLayoutSupported((ComponentSampleModel) sampleModel, colorModel)) {
+				return getComponentRGB(raster, (ComponentSampleModel) sampleModel, (ComponentColorModel) colorModel, x0,
+						y0, width, height);
+			}
+		}
+		return image.getRGB(0, 0, width, height, null, 0, width);
+	}
 
-		return colorInfo;
+	/**
+	 * Returns the ARGB pixels of the whole image, row by row, without copying them if the image is backed by an ARGB
+	 * array of its exact size.
+	 *
+	 * @param image
+	 *            the image, of any type
+	 * @return the pixels in the default RGB color space, never to be modified
+	 */
+	static int[] getRGB(BufferedImage image) {
+		return getRGB(image, image.getWidth(), image.getHeight());
+	}
+
+	// Whether the components are 8 or 16 bit sRGB samples or 8 bit gray samples that are not premultiplied, with or
+	// without alpha, in a single bank
+	private static boolean isComponentLayoutSupported(ComponentSampleModel sampleModel, ColorModel colorModel) {
+		int dataType = sampleModel.getDataType();
+		if (dataType != DataBuffer.TYPE_BYTE && dataType != DataBuffer.TYPE_USHORT) {
+			return false;
+		}
+		for (int bank : sampleModel.getBankIndices()) {
+			if (bank != 0) {
+				return false;
+			}
+		}
+		int bits = DataBuffer.getDataTypeSize(dataType);
+		for (int size : colorModel.getComponentSize()) {
+			if (size != bits) {
+				return false;
+			}
+		}
+		ColorSpace colorSpace = colorModel.getColorSpace();
+		return colorSpace.isCS_sRGB() || colorSpace.getType() == ColorSpace.TYPE_GRAY && dataType == DataBuffer.TYPE_BYTE
+				&& !colorModel.isAlphaPremultiplied();
 	}
 
-	private static int[] reduceColorsDiffusionDither(int[] rgbTriplets, int width, int height, int colorDepth,
-			byte[] newPixels, final int[] colorPalette) {
-		if (colorDepth > 8 || colorDepth < 1) {
-			throw new IllegalArgumentException("Invalid color depth " + colorDepth);
+	// Map pixels to an existing palette, spreading the color error with Floyd-Steinberg or a Bayer matrix as the dither
+	// mode tells, or to the nearest colors for DitherMode.NONE
+	private static void mapToPalette(DitherMode ditherMode, int[] rgbTriplets, int width, int height,
+			byte[] newPixels, InverseColorMap invMap, int[] colorPalette, int transparent_index) {
+		switch (ditherMode) {
+		case FLOYD_STEINBERG:
+			dither_FloydSteinberg(rgbTriplets, width, height, newPixels, invMap, colorPalette, transparent_index);
+			break;
+		case ORDERED:
+			dither_Ordered(rgbTriplets, width, height, newPixels, invMap, transparent_index);
+			break;
+		default:
+			mapToPalette(rgbTriplets, newPixels, invMap, transparent_index);
+		}
+	}
+
+	// Map pixels to the nearest colors of an existing palette without dithering
+	private static void mapToPalette(int[] rgbTriplets, byte[] newPixels, InverseColorMap invMap,
+			int transparent_index) {
+		for (int i = 0; i < rgbTriplets.length; i++) {
+			int rgb = rgbTriplets[i];
+			if (rgb >>> 24 < 0x80) { // Transparent
+				newPixels[i] = (byte) transparent_index;
+			} else {
+				newPixels[i] = (byte) invMap.getNearestColorIndex(rgb >> 16 & 0xff, rgb >> 8 & 0xff, rgb & 0xff);
+			}
 		}
+	}
+
+	// Color quantization
+	private static int[] reduceColors(ColorQuantizer quantizer, int[] rgbTriplets, int colorDepth, byte[] newPixels,
+			final int[] colorPalette) {
 		int[] colorInfo = new int[2];
-		int colors = 0;
-		colors = new WuQuant(rgbTriplets, 1 << colorDepth).quantize(colorPalette, colorInfo);
-		// Call Floyd-Steinberg dither
-		dither_FloydSteinberg(rgbTriplets, width, height, newPixels, colors, colorPalette, colorInfo[1]);
-		// Return the actual bits per pixel and the transparent color index if any
+		quantizer.quantize(rgbTriplets, rgbTriplets.length, 1 << colorDepth, newPixels, colorPalette, colorInfo);
 
 		return colorInfo;
 	}
 
+	// Fields
 	private boolean animated;
-	private int bitsPerPixel = 0x08;
-	private int bufIndex;
-	private byte bytes_buf[] = new byte[256];
-	/**
-	 * A child is made up of a parent(or prefix) code plus a suffix color and siblings are strings with a common
-	 * parent(or prefix) and different suffix colors
-	 */
-	int child[] = new int[4097];
-	private int clearCode;
 
-	private int codeIndex;
+	private ColorQuantizer colorQuantizer = ColorQuantizer.wu(1);
 
-	// Fields
-	private int codeLen;
+	private boolean cropTransparentBorders = true;
 
-	private int[] colorPalette;
+	private DitherMode ditherMode;
 
-	private int empty_bits = 0x08;
+	private EncodeListener encodeListener = EncodeListener.NONE;
 
-	private int endOfImage;
+	// Pool used to encode the frames concurrently in the batch methods
+	private ForkJoinPool encodingPool = ForkJoinPool.commonPool();
 
 	private boolean firstFrame = true;
 
-	private boolean isApplyDither;
+	private int globalBitsPerPixel;
+
+	private InverseColorMap globalInverseMap;
+
+	// Color table shared by all frames, null unless setGlobalPalette has been called
+	private int[] globalPalette;
+
+	// Pixels sampled for the global palette, kept to quantize it again with another size
+	private int globalSampleCount;
+
+	private int[] globalSamples;
+
+	private int globalTransparentIndex = -1;
 
 	private int logicalScreenHeight;
 
@@ -1278,94 +2257,105 @@ public class AnimatedGIFWriter {
 
 	private int loopCount;
 
-	int siblings[] = new int[4097];
+	// Largest color error allowed by lossy LZW compression, 0 for lossless
+	private int lossyColorError;
 
-	int suffix[] = new int[4097];
+	// Frames written since the header, the index of the next frame written one at a time
+	private int writtenFrames;
 
 	public AnimatedGIFWriter() {
 		this(false);
 	}
 
 	public AnimatedGIFWriter(boolean isApplyDither) {
-		this.isApplyDither = isApplyDither;
+		this(isApplyDither ? DitherMode.FLOYD_STEINBERG : DitherMode.NONE);
 	}
 
-	private void encode(byte[] pixels, OutputStream os) throws Exception {
-		// Define local variables
-		int parent = 0;
-		int son = 0;
-		int brother = 0;
-		int color = 0;
-		int index = 0;
-		int dimension = pixels.length;
-
-		// Write out the length of the root
-		os.write(bitsPerPixel = bitsPerPixel == 1 ? 2 : bitsPerPixel);
-		// Initialize the encoder
-		init_encoder(bitsPerPixel);
-		// Tell the decoder to initialize the string table
-		send_code_to_buffer(clearCode, os);
-		// Get the first color and assign it to parent
-		parent = pixels[index++] & 0xff;
-
-		while (index < dimension) {
-			color = pixels[index++] & 0xff;
-			son = child[parent];
-
-			if (son > 0) {
-				if (suffix[son] == color) {
-					parent = son;
+	public AnimatedGIFWriter(DitherMode ditherMode) {
+		setDitherMode(ditherMode);
+	}
+
+	/**
+	 * Quantizes and LZW encodes a single frame using the frame encoder of the calling thread. This only reads the
+	 * configuration of the writer, so any number of frames can be encoded concurrently.
+	 */
+	private EncodedFrame encodeFrame(int frameIndex, int[] pixels, int imageWidth, int imageHeight,
+			int imageLeftPosition, int imageTopPosition, int delay, int disposalMethod, int userInputFlag)
+			throws Exception {
+		FrameEncoder encoder = FRAME_ENCODERS.get();
+		StageMeter meter = new StageMeter(encodeListener);
+		int bitsPerPixel;
+		int[] colorPalette;
+		int[] colorInfo;
+
+		if (cropTransparentBorders) {
+			Rectangle bounds = getOpaqueBounds(pixels, imageWidth, imageHeight);
+			if (bounds.width < imageWidth || bounds.height < imageHeight) {
+				pixels = crop(pixels, imageWidth, bounds);
+				imageWidth = bounds.width;
+				imageHeight = bounds.height;
+				imageLeftPosition += bounds.x;
+				imageTopPosition += bounds.y;
+			}
+			meter.restart();
+		}
+
+		// Reduce colors, if the color depth is less than 8 bits, reduce colors
+		// to the actual bits needed, otherwise reduce to 8 bits.
+		byte[] newPixels = new byte[imageWidth * imageHeight];
+
+		if (globalPalette != null) {
+			// Shared palette, only map the pixels to it
+			colorPalette = globalPalette;
+			colorInfo = new int[] { globalBitsPerPixel, globalTransparentIndex };
+			mapToPalette(ditherMode, pixels, imageWidth, imageHeight, newPixels, globalInverseMap, colorPalette,
+					globalTransparentIndex);
+			meter.stageCompleted(Stage.DITHER, frameIndex, pixels.length, 1 << globalBitsPerPixel);
+		} else {
+			colorPalette = new int[256];
+
+			colorInfo = checkColorDepth(encoder, pixels, newPixels, colorPalette);
+
+			if (colorInfo[0] > 0x08) {
+				bitsPerPixel = 8;
+				if (ditherMode != DitherMode.NONE) {
+					colorInfo = new int[2];
+					int colors = colorQuantizer.quantize(pixels, pixels.length, 1 << bitsPerPixel, colorPalette,
+							colorInfo);
+					meter.stageCompleted(Stage.QUANTIZE, frameIndex, pixels.length, 1 << colorInfo[0]);
+					InverseColorMap invMap = InverseColorMap.forPalette(colors, colorPalette);
+					mapToPalette(ditherMode, pixels, imageWidth, imageHeight, newPixels, invMap, colorPalette,
+							colorInfo[1]);
+					meter.stageCompleted(Stage.DITHER, frameIndex, pixels.length, 1 << colorInfo[0]);
 				} else {
-					brother = son;
-					while (true) {
-						if (siblings[brother] > 0) {
-							brother = siblings[brother];
-							if (suffix[brother] == color) {
-								parent = brother;
-								break;
-							}
-						} else {
-							siblings[brother] = codeIndex;
-							suffix[codeIndex] = color;
-							send_code_to_buffer(parent, os);
-							parent = color;
-							codeIndex++;
-							// Check code length
-							if (codeIndex > 1 << codeLen) {
-								if (codeLen == 12) {
-									send_code_to_buffer(clearCode, os);
-									init_encoder(bitsPerPixel);
-								} else {
-									codeLen++;
-								}
-							}
-							break;
-						}
-					}
+					// The quantizer maps the pixels to the palette as it goes
+					colorInfo = reduceColors(colorQuantizer, pixels, bitsPerPixel, newPixels, colorPalette);
+					meter.stageCompleted(Stage.QUANTIZE, frameIndex, pixels.length, 1 << colorInfo[0]);
 				}
 			} else {
-				child[parent] = codeIndex;
-				suffix[codeIndex] = color;
-				send_code_to_buffer(parent, os);
-				parent = color;
-				codeIndex++;
-				// Check code length
-				if (codeIndex > 1 << codeLen) {
-					if (codeLen == 12) {
-						send_code_to_buffer(clearCode, os);
-						init_encoder(bitsPerPixel);
-					} else {
-						codeLen++;
-					}
-				}
+				meter.stageCompleted(Stage.QUANTIZE, frameIndex, pixels.length, 1 << colorInfo[0]);
 			}
 		}
-		// Send the last color code to the buffer
-		send_code_to_buffer(parent, os);
-		// Send the endOfImage code to the buffer
-		send_code_to_buffer(endOfImage, os);
-		// Flush the last code buffer
-		flush_buf(os, bufIndex + 1);
+
+		bitsPerPixel = colorInfo[0];
+
+		EncodedFrame frame = new EncodedFrame();
+		frame.bitsPerPixel = bitsPerPixel;
+		frame.colorPalette = colorPalette;
+		frame.transparentIndex = colorInfo[1];
+		frame.width = imageWidth;
+		frame.height = imageHeight;
+		frame.leftPosition = imageLeftPosition;
+		frame.topPosition = imageTopPosition;
+		frame.delay = delay;
+		frame.disposalMethod = disposalMethod;
+		frame.userInputFlag = userInputFlag;
+		// LZW encode the image
+		frame.imageData = encoder.encode(newPixels, bitsPerPixel, colorPalette, frame.transparentIndex,
+				lossyColorError);
+		meter.stageCompleted(Stage.LZW, frameIndex, newPixels.length, 1 << bitsPerPixel);
+
+		return frame;
 	}
 
 	/**
@@ -1380,25 +2370,6 @@ public class AnimatedGIFWriter {
 		os.close();
 	}
 
-	private void flush_buf(OutputStream os, int len) throws Exception {
-		os.write(len);
-		os.write(bytes_buf, 0, len);
-		// Clear the bytes buffer
-		bufIndex = 0;
-		Arrays.fill(bytes_buf, 0, 0xff, (byte) 0x00);
-	}
-
-	private void init_encoder(int bitsPerPixel) {
-		clearCode = 1 << bitsPerPixel;
-		endOfImage = clearCode + 1;
-		codeLen = bitsPerPixel + 1;
-		codeIndex = endOfImage + 1;
-		// Reset arrays
-		Arrays.fill(child, 0);
-		Arrays.fill(siblings, 0);
-		Arrays.fill(suffix, 0);
-	}
-
 	/**
 	 * This is intended to be called first when writing an animated GIF frame by frame.
 	 *
@@ -1417,33 +2388,193 @@ public class AnimatedGIFWriter {
 		writeHeader(os, true);
 		this.logicalScreenWidth = logicalScreenWidth;
 		this.logicalScreenHeight = logicalScreenHeight;
+		writtenFrames = 0;
 		// We are going to write animated GIF, so enable animated flag
 		animated = true;
 	}
 
-	// Translate codes into bytes
-	private void send_code_to_buffer(int code, OutputStream os) throws Exception {
-		int temp = codeLen;
-		// Shift the code to the left of the last byte in bytes_buf
-		bytes_buf[bufIndex] |= (code & MASK[empty_bits]) << 8 - empty_bits;
-		code >>= empty_bits;
-		temp -= empty_bits;
-		// If the code is longer than the empty_bits
-		while (temp > 0) {
-			if (++bufIndex >= 0xff) {
-				flush_buf(os, 0xff);
+	/**
+	 * Sets the quantizer used to build the palettes. Wu's quantizer on every pixel is used by default.
+	 *
+	 * @param colorQuantizer
+	 *            quantizer for the local palettes of the frames and for the global palette
+	 * @see ColorQuantizer#neuQuant(int)
+	 * @see ColorQuantizer#octree(int)
+	 * @see ColorQuantizer#wu(int)
+	 */
+	public void setColorQuantizer(ColorQuantizer colorQuantizer) {
+		if (colorQuantizer == null) {
+			throw new IllegalArgumentException("Null color quantizer");
+		}
+		this.colorQuantizer = colorQuantizer;
+	}
+
+	/**
+	 * Sets whether the transparent borders of the frames are cropped away before encoding. The frames are then written
+	 * at an offset within the logical screen, which results in fewer pixels to quantize, dither and encode without
+	 * changing how the animation looks. Enabled by default.
+	 *
+	 * @param cropTransparentBorders
+	 *            true to encode only the non-transparent bounding box of each frame
+	 */
+	public void setCropTransparentBorders(boolean cropTransparentBorders) {
+		this.cropTransparentBorders = cropTransparentBorders;
+	}
+
+	/**
+	 * Sets how colors missing from the palette are approximated in the frames written after this call.
+	 *
+	 * @param ditherMode
+	 *            the dither mode
+	 */
+	public void setDitherMode(DitherMode ditherMode) {
+		if (ditherMode == null) {
+			throw new IllegalArgumentException("Null dither mode");
+		}
+		this.ditherMode = ditherMode;
+	}
+
+	/**
+	 * Sets the listener that receives the time, allocated bytes, pixels and palette size of the quantization,
+	 * dithering and LZW encoding of every frame, and of building the global palette. Nothing is measured by default.
+	 *
+	 * @param encodeListener
+	 *            listener of the encoding stages, {@link EncodeListener#NONE} to measure nothing
+	 */
+	public void setEncodeListener(EncodeListener encodeListener) {
+		if (encodeListener == null) {
+			throw new IllegalArgumentException("Null encode listener");
+		}
+		this.encodeListener = encodeListener;
+	}
+
+	/**
+	 * Sets the pool used by the batch writeAnimatedGIF methods to encode frames concurrently. The common pool is used
+	 * by default.
+	 *
+	 * @param encodingPool
+	 *            pool to encode the frames on
+	 */
+	public void setEncodingPool(ForkJoinPool encodingPool) {
+		if (encodingPool == null) {
+			throw new IllegalArgumentException("Null encoding pool");
+		}
+		this.encodingPool = encodingPool;
+	}
+
+	/**
+	 * Quantizes a single color table from the given image and uses it as the global color table for all the frames
+	 * written after this call.
+	 *
+	 * @param image
+	 *            image to build the palette from, typically the source image of the animation
+	 * @see #setGlobalPalette(List, int)
+	 */
+	public void setGlobalPalette(BufferedImage image) {
+		setGlobalPalette(Arrays.asList(image), 1);
+	}
+
+	/**
+	 * Quantizes a single color table from a sampled union of the given images and uses it as the global color table
+	 * for all the frames written after this call. Frames are then only mapped to the shared palette instead of being
+	 * quantized one by one, and no local color tables are written. One palette entry is always reserved for
+	 * transparency. This has to be called before the first frame is written.
+	 *
+	 * @param images
+	 *            images to sample the palette from
+	 * @param sampleStep
+	 *            only every sampleStep'th pixel of each image is used to build the palette
+	 */
+	public void setGlobalPalette(List<BufferedImage> images, int sampleStep) {
+		if (images == null || images.isEmpty()) {
+			throw new IllegalArgumentException("No images to build the global palette from");
+		}
+		if (sampleStep < 1) {
+			throw new IllegalArgumentException("Invalid sample step: " + sampleStep);
+		}
+		StageMeter meter = new StageMeter(encodeListener);
+		int sampleCount = 0;
+		for (BufferedImage image : images) {
+			sampleCount += (image.getWidth() * image.getHeight() + sampleStep - 1) / sampleStep;
+		}
+		// One extra slot for the transparent sample appended below
+		int[] samples = new int[sampleCount + 1];
+		int index = 0;
+		for (BufferedImage image : images) {
+			int[] rgbs = getRGB(image);
+			for (int i = 0; i < rgbs.length; i += sampleStep) {
+				// Transparent pixels are always written as the transparent index, so their colors, usually black,
+				// must not pull the palette towards them.
+				if (rgbs[i] >>> 24 >= 0x80) {
+					samples[index++] = rgbs[i];
+				}
 			}
-			bytes_buf[bufIndex] |= code & 0xff;
-			code >>= 8;
-			temp -= 8;
 		}
-		empty_bits = -temp;
+		// Animation frames rarely cover the whole logical screen, so make sure that the
+		// quantizer reserves a palette entry for transparency.
+		samples[index++] = 0;
+
+		int[] colorInfo = new int[2];
+		int[] palette = new int[256];
+		int colors = colorQuantizer.quantize(samples, index, 256, palette, colorInfo);
+
+		globalSamples = samples;
+		globalSampleCount = index;
+		setGlobalPalette(colors, palette, colorInfo);
+		meter.stageCompleted(Stage.QUANTIZE, -1, index, 1 << globalBitsPerPixel);
+	}
+
+	private void setGlobalPalette(int colors, int[] palette, int[] colorInfo) {
+		globalInverseMap = InverseColorMap.forPalette(colors, palette);
+		globalBitsPerPixel = colorInfo[0];
+		globalTransparentIndex = colorInfo[1];
+		globalPalette = palette;
+	}
+
+	/**
+	 * Quantizes the global palette again from the pixels sampled by the last {@link #setGlobalPalette(List, int)}
+	 * call, with at most the given number of entries. A smaller palette gives shorter LZW codes and smaller frames.
+	 * The sampled pixels are not read again, and Wu's quantizer only cuts its boxes again when called on the same
+	 * thread as before.
+	 *
+	 * @param maxColors
+	 *            maximum number of palette entries from 4 to 256, including the entry reserved for transparency
+	 */
+	public void setGlobalPaletteSize(int maxColors) {
+		if (globalSamples == null) {
+			throw new IllegalStateException("No global palette to resize");
+		}
+		if (maxColors < 4 || maxColors > 256) {
+			throw new IllegalArgumentException("Invalid palette size: " + maxColors);
+		}
+		StageMeter meter = new StageMeter(encodeListener);
+		int[] colorInfo = new int[2];
+		int[] palette = new int[256];
+		int colors = colorQuantizer.requantize(globalSamples, globalSampleCount, maxColors, palette, colorInfo);
+
+		setGlobalPalette(colors, palette, colorInfo);
+		meter.stageCompleted(Stage.QUANTIZE, -1, globalSampleCount, 1 << globalBitsPerPixel);
 	}
 
 	public void setLoopCount(int loopCount) {
 		this.loopCount = loopCount;
 	}
 
+	/**
+	 * Enables lossy LZW compression. Pixels may then be replaced by palette colors close to them wherever that lets
+	 * the encoder extend the current string, which gives much longer strings and smaller files on noisy or dithered
+	 * frames. Disabled by default.
+	 *
+	 * @param lossyColorError
+	 *            largest allowed distance between the RGB values of a pixel and its replacement, 0 for lossless
+	 */
+	public void setLossyColorError(int lossyColorError) {
+		if (lossyColorError < 0) {
+			throw new IllegalArgumentException("Invalid lossy color error: " + lossyColorError);
+		}
+		this.lossyColorError = lossyColorError;
+	}
+
 	// Write as a single frame GIF
 	public void write(BufferedImage img, OutputStream os) throws Exception {
 		if (img == null) {
@@ -1461,6 +2592,7 @@ public class AnimatedGIFWriter {
 		logicalScreenWidth = imageWidth;
 		logicalScreenHeight = imageHeight;
 		firstFrame = true;
+		writtenFrames = 0;
 		// We only need to write one frame, so disable animated flag
 		animated = false;
 		// Write the image frame
@@ -1471,7 +2603,8 @@ public class AnimatedGIFWriter {
 	}
 
 	/**
-	 * Writes an array of BufferedImage as an animated GIF
+	 * Writes an array of BufferedImage as an animated GIF. The frames are encoded concurrently using the encoding pool
+	 * and written out in order.
 	 *
 	 * @param images
 	 *            an array of BufferedImage
@@ -1484,6 +2617,9 @@ public class AnimatedGIFWriter {
 	public void writeAnimatedGIF(BufferedImage[] images, int[] delays, OutputStream os) throws Exception {
 		// Header first
 		writeHeader(os, true);
+		// The writer may be reused for another animation
+		firstFrame = true;
+		writtenFrames = 0;
 
 		Dimension logicalScreenSize = getLogicalScreenSize(images);
 
@@ -1492,19 +2628,23 @@ public class AnimatedGIFWriter {
 		// We are going to write animated GIF, so enable animated flag
 		animated = true;
 
+		List<Callable<EncodedFrame>> encoders = new ArrayList<>(images.length);
 		for (int i = 0; i < images.length; i++) {
-			// Retrieve image dimension
-			int imageWidth = images[i].getWidth();
-			int imageHeight = images[i].getHeight();
-			writeFrame(getRGB(images[i]), imageWidth, imageHeight, 0, 0, delays[i], os);
+			BufferedImage image = images[i];
+			int delay = delays[i];
+			int frameIndex = i;
+			encoders.add(() -> encodeFrame(frameIndex, getRGB(image), image.getWidth(), image.getHeight(), 0, 0,
+					delay, GIFFrame.DISPOSAL_RESTORE_TO_BACKGROUND, GIFFrame.USER_INPUT_NONE));
 		}
+		writeConcurrently(encoders, os);
 
 		os.write(IMAGE_TRAILER);
 		os.close();
 	}
 
 	/**
-	 * Writes an array of GIFFrame as an animated GIF
+	 * Writes an array of GIFFrame as an animated GIF. The frames are encoded concurrently using the encoding pool and
+	 * written out in order.
 	 *
 	 * @param frames
 	 *            an array of GIFFrame
@@ -1515,6 +2655,9 @@ public class AnimatedGIFWriter {
 	public void writeAnimatedGIF(GIFFrame[] frames, OutputStream os) throws Exception {
 		// Header first
 		writeHeader(os, true);
+		// The writer may be reused for another animation
+		firstFrame = true;
+		writtenFrames = 0;
 
 		Dimension logicalScreenSize = getLogicalScreenSize(frames);
 
@@ -1523,30 +2666,40 @@ public class AnimatedGIFWriter {
 		// We are going to write animated GIF, so enable animated flag
 		animated = true;
 
-		for (GIFFrame frame : frames) {
-			// Retrieve image dimension
-			int imageWidth = frame.getFrameWidth();
-			int imageHeight = frame.getFrameHeight();
-			int[] pixels = getRGB(frame.getFrame());
-			if (frame.getTransparencyFlag() == GIFFrame.TRANSPARENCY_INDEX_SET && frame.getTransparentColor() != -1) {
-				int transColor = frame.getTransparentColor() & 0x00ffffff;
-				for (int j = pixels.length - 1; j > 0; j--) {
-					int pixel = pixels[j] & 0x00ffffff;
-					if (pixel == transColor) {
-						pixels[j] = pixel;
+		List<Callable<EncodedFrame>> encoders = new ArrayList<>(frames.length);
+		for (int i = 0; i < frames.length; i++) {
+			GIFFrame frame = frames[i];
+			int frameIndex = i;
+			encoders.add(() -> {
+				// Retrieve image dimension
+				int imageWidth = frame.getFrameWidth();
+				int imageHeight = frame.getFrameHeight();
+				int[] pixels = getRGB(frame.getFrame());
+				if (frame.getTransparencyFlag() == GIFFrame.TRANSPARENCY_INDEX_SET
+						&& frame.getTransparentColor() != -1) {
+					// The pixels may be the backing array of the image
+					pixels = pixels.clone();
+					int transColor = frame.getTransparentColor() & 0x00ffffff;
+					for (int j = pixels.length - 1; j >= 0; j--) {
+						int pixel = pixels[j] & 0x00ffffff;
+						if (pixel == transColor) {
+							pixels[j] = pixel;
+						}
 					}
 				}
-			}
-			writeFrame(pixels, imageWidth, imageHeight, frame.getLeftPosition(), frame.getTopPosition(),
-					frame.getDelay(), frame.getDisposalMethod(), frame.getUserInputFlag(), os);
+				return encodeFrame(frameIndex, pixels, imageWidth, imageHeight, frame.getLeftPosition(),
+						frame.getTopPosition(), frame.getDelay(), frame.getDisposalMethod(), frame.getUserInputFlag());
+			});
 		}
+		writeConcurrently(encoders, os);
 
 		os.write(IMAGE_TRAILER);
 		os.close();
 	}
 
 	/**
-	 * Writes a list of GIFFrame as an animated GIF
+	 * Writes a list of GIFFrame as an animated GIF. The frames are encoded concurrently using the encoding pool and
+	 * written out in order.
 	 *
 	 * @param frames
 	 *            a list of GIFFrame
@@ -1558,6 +2711,22 @@ public class AnimatedGIFWriter {
 		writeAnimatedGIF(frames.toArray(new GIFFrame[0]), os);
 	}
 
+	/**
+	 * Writes a list of GIFFrame as an animated GIF to a channel. The GIF is collected in a buffer and handed to the
+	 * channel in a single write.
+	 *
+	 * @param frames
+	 *            a list of GIFFrame
+	 * @param channel
+	 *            WritableByteChannel for the animated GIF, it is not closed
+	 * @throws Exception
+	 */
+	public void writeAnimatedGIF(List<GIFFrame> frames, WritableByteChannel channel) throws Exception {
+		ByteBufferOutputStream os = new ByteBufferOutputStream();
+		writeAnimatedGIF(frames, os);
+		os.writeTo(channel);
+	}
+
 	private void writeComment(OutputStream os, String comment) throws Exception {
 		os.write(EXTENSION_INTRODUCER);
 		os.write(COMMENT_EXTENSION_LABEL);
@@ -1579,35 +2748,36 @@ public class AnimatedGIFWriter {
 		os.write(0);
 	}
 
-	private void writeFrame(int[] pixels, int imageWidth, int imageHeight, int imageLeftPosition, int imageTopPosition,
-			int delay, int disposalMethod, int userInputFlag, OutputStream os) throws Exception {
-		// Reset empty_bits
-		empty_bits = 0x08;
-
-		int transparent_color = -1;
-		int[] colorInfo;
-
-		// Reduce colors, if the color depth is less than 8 bits, reduce colors
-		// to the actual bits needed, otherwise reduce to 8 bits.
-		byte[] newPixels = new byte[imageWidth * imageHeight];
-		colorPalette = new int[256];
-
-		colorInfo = checkColorDepth(pixels, newPixels, colorPalette);
-
-		if (colorInfo[0] > 0x08) {
-			bitsPerPixel = 8;
-			if (isApplyDither) {
-				colorInfo = reduceColorsDiffusionDither(pixels, imageWidth, imageHeight, bitsPerPixel, newPixels,
-						colorPalette);
-			} else {
-				colorInfo = reduceColors(pixels, bitsPerPixel, newPixels, colorPalette);
+	/**
+	 * Encodes the frames on the encoding pool, each into its own buffer, and writes them out in the original order as
+	 * soon as they are ready.
+	 */
+	private void writeConcurrently(List<Callable<EncodedFrame>> encoders, OutputStream os) throws Exception {
+		List<ForkJoinTask<EncodedFrame>> tasks = new ArrayList<>(encoders.size());
+		for (Callable<EncodedFrame> encoder : encoders) {
+			tasks.add(encodingPool.submit(encoder));
+		}
+		try {
+			for (ForkJoinTask<EncodedFrame> task : tasks) {
+				writeEncodedFrame(os, task.get());
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof Exception ? (Exception) cause : e;
+		} finally {
+			// Nothing to cancel once every frame is written. After a failed frame, a failed write or an interrupt,
+			// the frames still queued are not encoded for nothing on the shared pool. Cancelling does not interrupt
+			// the frames already running, they finish on their own.
+			for (ForkJoinTask<EncodedFrame> task : tasks) {
+				task.cancel(false);
 			}
 		}
+	}
 
-		bitsPerPixel = colorInfo[0];
-
-		transparent_color = colorInfo[1];
-
+	// Write out an encoded frame, preceded by the logical screen descriptor and global color table for the first frame
+	private void writeEncodedFrame(OutputStream os, EncodedFrame frame) throws Exception {
+		int bitsPerPixel = frame.bitsPerPixel;
+		int transparent_color = frame.transparentIndex;
 		int num_of_color = 1 << bitsPerPixel;
 
 		if (firstFrame) {
@@ -1624,7 +2794,7 @@ public class AnimatedGIFWriter {
 			// Write logical screen descriptor
 			writeLSD(os, (short) logicalScreenWidth, (short) logicalScreenHeight, flags, bgcolor, aspectRatio);
 			// Write the global colorPalette
-			writePalette(os, num_of_color);
+			writePalette(os, frame.colorPalette, num_of_color);
 			writeComment(os, "Created by ICAFE - https://github.com/dragon66/icafe");
 			if (animated) {
 				writeNetscapeApplicationBlock(os, loopCount);
@@ -1632,20 +2802,28 @@ public class AnimatedGIFWriter {
 		}
 
 		// Output the graphic control block
-		writeGraphicControlBlock(os, delay, transparent_color, disposalMethod, userInputFlag);
+		writeGraphicControlBlock(os, frame.delay, transparent_color, frame.disposalMethod, frame.userInputFlag);
 		// Output image descriptor
-		if (firstFrame) {
-			writeImageDescriptor(os, imageWidth, imageHeight, imageLeftPosition, imageTopPosition, -1);
+		if (firstFrame || globalPalette != null) {
+			writeImageDescriptor(os, frame.width, frame.height, frame.leftPosition, frame.topPosition, -1);
 			firstFrame = false;
 		} else {
-			writeImageDescriptor(os, imageWidth, imageHeight, imageLeftPosition, imageTopPosition, bitsPerPixel - 1);
+			writeImageDescriptor(os, frame.width, frame.height, frame.leftPosition, frame.topPosition,
+					bitsPerPixel - 1);
 			// Write local colorPalette
-			writePalette(os, num_of_color);
+			writePalette(os, frame.colorPalette, num_of_color);
 		}
-		// LZW encode the image
-		encode(newPixels, os);
+		// LZW encoded image data
+		os.write(frame.imageData);
 		/** Write out a zero length data sub-block */
 		os.write(0x00);
+		writtenFrames++;
+	}
+
+	private void writeFrame(int[] pixels, int imageWidth, int imageHeight, int imageLeftPosition, int imageTopPosition,
+			int delay, int disposalMethod, int userInputFlag, OutputStream os) throws Exception {
+		writeEncodedFrame(os, encodeFrame(writtenFrames, pixels, imageWidth, imageHeight, imageLeftPosition,
+				imageTopPosition, delay, disposalMethod, userInputFlag));
 	}
 
 	private void writeFrame(int[] pixels, int imageWidth, int imageHeight, int imageLeftPosition, int imageTopPosition,
@@ -1680,7 +2858,7 @@ public class AnimatedGIFWriter {
 		if (imageHeight > logicalScreenHeight) {
 			imageHeight = logicalScreenHeight;
 		}
-		writeFrame(getRGB(frame.getSubimage(0, 0, imageWidth, imageHeight)), imageWidth, imageHeight, 0, 0, delay, os);
+		writeFrame(getRGB(frame, imageWidth, imageHeight), imageWidth, imageHeight, 0, 0, delay, os);
 	}
 
 	public void writeFrame(OutputStream os, GIFFrame frame) throws Exception {
@@ -1708,11 +2886,13 @@ public class AnimatedGIFWriter {
 		if (frameTop + imageHeight > logicalScreenHeight) {
 			imageHeight = logicalScreenHeight - frameTop;
 		}
-		int[] pixels = getRGB(image.getSubimage(0, 0, imageWidth, imageHeight));
+		int[] pixels = getRGB(image, imageWidth, imageHeight);
 		// Handle transparency color if explicitly set
 		if (frame.getTransparencyFlag() == GIFFrame.TRANSPARENCY_INDEX_SET && frame.getTransparentColor() != -1) {
+			// The pixels may be the backing array of the image
+			pixels = pixels.clone();
 			int transColor = frame.getTransparentColor() & 0x00ffffff;
-			for (int j = pixels.length - 1; j > 0; j--) {
+			for (int j = pixels.length - 1; j >= 0; j--) {
 				int pixel = pixels[j] & 0x00ffffff;
 				if (pixel == transColor) {
 					pixels[j] = pixel;
@@ -1822,7 +3002,7 @@ public class AnimatedGIFWriter {
 		os.write(buf);
 	}
 
-	private void writePalette(OutputStream os, int num_of_color) throws Exception {
+	private void writePalette(OutputStream os, int[] colorPalette, int num_of_color) throws Exception {
 		int index = 0;
 		byte colors[] = new byte[num_of_color * 3];
 
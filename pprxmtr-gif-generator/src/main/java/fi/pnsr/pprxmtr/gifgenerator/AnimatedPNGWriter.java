@@ -0,0 +1,345 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import fi.pnsr.pprxmtr.gifgenerator.AnimatedGIFWriter.GIFFrame;
+
+/**
+ * Writes animated PNG (APNG) images. The frames are stored as 8-bit RGBA with full alpha, so unlike
+ * {@link AnimatedGIFWriter} nothing is quantized or dithered: each scanline is only filtered and the frame is
+ * compressed with a {@link Deflater}. Frames are described with the same {@link GIFFrame} objects as for the GIF
+ * writer, so the same animation can be written in either format. Browsers and Slack clients that do not support APNG
+ * show the first frame.
+ */
+public class AnimatedPNGWriter {
+
+	private static final int APNG_BLEND_OP_OVER = 1;
+
+	private static final int APNG_DISPOSE_OP_BACKGROUND = 1;
+
+	private static final int APNG_DISPOSE_OP_NONE = 0;
+
+	private static final int APNG_DISPOSE_OP_PREVIOUS = 2;
+
+	private static final int BYTES_PER_PIXEL = 4;
+
+	private static final int COLOR_TYPE_RGBA = 6;
+
+	private static final int FILTER_AVERAGE = 3;
+
+	private static final int FILTER_NONE = 0;
+
+	private static final int FILTER_PAETH = 4;
+
+	private static final int FILTER_SUB = 1;
+
+	private static final int FILTER_UP = 2;
+
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	// Applies every filter type to the scanline and returns the one that looks the most compressible
+	private static byte[] filter(byte[] row, byte[] previous, byte[][] filtered) {
+		int length = row.length;
+		for (int i = 1; i < length; i++) {
+			int raw = row[i] & 0xff;
+			int left = i > BYTES_PER_PIXEL ? row[i - BYTES_PER_PIXEL] & 0xff : 0;
+			int up = previous[i] & 0xff;
+			int upLeft = i > BYTES_PER_PIXEL ? previous[i - BYTES_PER_PIXEL] & 0xff : 0;
+			filtered[FILTER_NONE][i] = (byte) raw;
+			filtered[FILTER_SUB][i] = (byte) (raw - left);
+			filtered[FILTER_UP][i] = (byte) (raw - up);
+			filtered[FILTER_AVERAGE][i] = (byte) (raw - (left + up >> 1));
+			filtered[FILTER_PAETH][i] = (byte) (raw - paeth(left, up, upLeft));
+		}
+		int bestType = FILTER_NONE;
+		int bestScore = Integer.MAX_VALUE;
+		for (int type = FILTER_NONE; type <= FILTER_PAETH; type++) {
+			filtered[type][0] = (byte) type;
+			int score = score(filtered[type]);
+			if (score < bestScore) {
+				bestScore = score;
+				bestType = type;
+			}
+		}
+		return filtered[bestType];
+	}
+
+	private static boolean isColumnInvisible(int[] pixels, int stride, int x, int y, int height) {
+		for (int row = y, end = y + height; row < end; row++) {
+			if (pixels[row * stride + x] >>> 24 != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isRowInvisible(int[] pixels, int stride, int x, int y, int width) {
+		for (int i = y * stride + x, end = i + width; i < end; i++) {
+			if (pixels[i] >>> 24 != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) {
+			return a;
+		}
+		return pb <= pc ? b : c;
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	private static void putShort(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 8);
+		buffer[offset + 1] = (byte) value;
+	}
+
+	// Sum of the filtered bytes as signed values, the usual heuristic for picking the filter that compresses best
+	private static int score(byte[] row) {
+		int sum = 0;
+		for (int i = 1; i < row.length; i++) {
+			sum += Math.abs(row[i]);
+		}
+		return sum;
+	}
+
+	private final byte[] chunkHeader = new byte[8];
+
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+	private final CRC32 crc = new CRC32();
+
+	private boolean cropTransparentBorders = true;
+
+	private byte[] deflated = new byte[8192];
+
+	private int loopCount;
+
+	private int sequenceNumber;
+
+	// Deflates the filtered scanlines of the area into the deflated buffer and returns the compressed length
+	private int deflate(int[] pixels, int stride, int x, int y, int width, int height, Deflater deflater) {
+		int rowLength = 1 + width * BYTES_PER_PIXEL;
+		byte[] previous = new byte[rowLength];
+		byte[] current = new byte[rowLength];
+		byte[][] filtered = new byte[FILTER_PAETH + 1][rowLength];
+		int length = 0;
+
+		deflater.reset();
+		for (int row = 0; row < height; row++) {
+			int offset = (y + row) * stride + x;
+			for (int col = 0, i = 1; col < width; col++) {
+				int argb = pixels[offset + col];
+				if (argb >>> 24 == 0) {
+					// The color of invisible pixels does not matter, zeros compress best
+					argb = 0;
+				}
+				current[i++] = (byte) (argb >> 16);
+				current[i++] = (byte) (argb >> 8);
+				current[i++] = (byte) argb;
+				current[i++] = (byte) (argb >>> 24);
+			}
+			byte[] best = filter(current, previous, filtered);
+
+			deflater.setInput(best);
+			while (!deflater.needsInput()) {
+				length = deflateMore(deflater, length);
+			}
+
+			byte[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		deflater.finish();
+		while (!deflater.finished()) {
+			length = deflateMore(deflater, length);
+		}
+		return length;
+	}
+
+	// Compresses some of the pending input into the deflated buffer, growing it when it is full
+	private int deflateMore(Deflater deflater, int length) {
+		if (length == deflated.length) {
+			deflated = Arrays.copyOf(deflated, length * 2);
+		}
+		return length + deflater.deflate(deflated, length, deflated.length - length);
+	}
+
+	/**
+	 * Sets the compression level of the frame data. The default level of {@link Deflater} is used by default.
+	 *
+	 * @param compressionLevel
+	 *            compression level from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+		}
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Sets whether fully transparent rows and columns on the borders of the frames are left out. The first frame is
+	 * always written whole, as it doubles as the still image. Enabled by default.
+	 *
+	 * @param cropTransparentBorders
+	 *            true to crop the frames to their visible pixels
+	 */
+	public void setCropTransparentBorders(boolean cropTransparentBorders) {
+		this.cropTransparentBorders = cropTransparentBorders;
+	}
+
+	/**
+	 * @param loopCount
+	 *            number of times the animation is played, 0 to loop forever
+	 */
+	public void setLoopCount(int loopCount) {
+		this.loopCount = loopCount;
+	}
+
+	/**
+	 * Writes a list of frames as an animated PNG. The logical screen is the smallest area covering all the frames.
+	 *
+	 * @param frames
+	 *            the frames, the delays are in milliseconds
+	 * @param os
+	 *            OutputStream for the animated PNG, it is not closed
+	 * @throws IOException
+	 */
+	public void writeAnimatedPNG(List<GIFFrame> frames, OutputStream os) throws IOException {
+		if (frames.isEmpty()) {
+			throw new IllegalArgumentException("No frames to write");
+		}
+		Dimension screen = AnimatedGIFWriter.getLogicalScreenSize(frames.toArray(new GIFFrame[0]));
+		sequenceNumber = 0;
+
+		os.write(SIGNATURE);
+
+		byte[] header = new byte[13];
+		putInt(header, 0, screen.width);
+		putInt(header, 4, screen.height);
+		header[8] = 8; // bit depth
+		header[9] = COLOR_TYPE_RGBA;
+		writeChunk(os, "IHDR", header, 0, header.length);
+
+		byte[] animationControl = new byte[8];
+		putInt(animationControl, 0, frames.size());
+		putInt(animationControl, 4, loopCount);
+		writeChunk(os, "acTL", animationControl, 0, animationControl.length);
+
+		Deflater deflater = new Deflater(compressionLevel);
+		try {
+			for (int i = 0; i < frames.size(); i++) {
+				writeFrame(os, frames.get(i), i == 0, screen, deflater);
+			}
+		} finally {
+			deflater.end();
+		}
+
+		writeChunk(os, "IEND", deflated, 0, 0);
+	}
+
+	// Writes a chunk whose data is the given bytes, preceded by the next sequence number if sequenced is true
+	private void writeChunk(OutputStream os, String type, boolean sequenced, byte[] data, int offset, int length)
+			throws IOException {
+		putInt(chunkHeader, 0, sequenced ? length + 4 : length);
+		for (int i = 0; i < 4; i++) {
+			chunkHeader[4 + i] = (byte) type.charAt(i);
+		}
+		os.write(chunkHeader);
+		crc.reset();
+		crc.update(chunkHeader, 4, 4);
+		if (sequenced) {
+			byte[] sequence = new byte[4];
+			putInt(sequence, 0, sequenceNumber++);
+			os.write(sequence);
+			crc.update(sequence);
+		}
+		os.write(data, offset, length);
+		crc.update(data, offset, length);
+		byte[] checksum = new byte[4];
+		putInt(checksum, 0, (int) crc.getValue());
+		os.write(checksum);
+	}
+
+	private void writeChunk(OutputStream os, String type, byte[] data, int offset, int length) throws IOException {
+		writeChunk(os, type, false, data, offset, length);
+	}
+
+	private void writeFrame(OutputStream os, GIFFrame frame, boolean first, Dimension screen, Deflater deflater)
+			throws IOException {
+		int stride = frame.getFrameWidth();
+		int[] pixels = AnimatedGIFWriter.getRGB(frame.getFrame());
+		int x = 0;
+		int y = 0;
+		int width = frame.getFrameWidth();
+		int height = frame.getFrameHeight();
+		int left = frame.getLeftPosition();
+		int top = frame.getTopPosition();
+
+		if (first && (left != 0 || top != 0 || width != screen.width || height != screen.height)) {
+			throw new IllegalArgumentException("The first frame must cover the whole logical screen");
+		}
+		if (cropTransparentBorders && !first) {
+			// Skip invisible rows from the top and the bottom, then invisible columns from both sides
+			while (height > 1 && isRowInvisible(pixels, stride, x, y, width)) {
+				y++;
+				height--;
+			}
+			while (height > 1 && isRowInvisible(pixels, stride, x, y + height - 1, width)) {
+				height--;
+			}
+			while (width > 1 && isColumnInvisible(pixels, stride, x, y, height)) {
+				x++;
+				width--;
+			}
+			while (width > 1 && isColumnInvisible(pixels, stride, x + width - 1, y, height)) {
+				width--;
+			}
+		}
+
+		byte[] frameControl = new byte[22];
+		putInt(frameControl, 0, width);
+		putInt(frameControl, 4, height);
+		putInt(frameControl, 8, left + x);
+		putInt(frameControl, 12, top + y);
+		putShort(frameControl, 16, Math.min(frame.getDelay(), 0xffff));
+		putShort(frameControl, 18, 1000);
+		switch (frame.getDisposalMethod()) {
+		case GIFFrame.DISPOSAL_RESTORE_TO_BACKGROUND:
+			frameControl[20] = APNG_DISPOSE_OP_BACKGROUND;
+			break;
+		case GIFFrame.DISPOSAL_RESTORE_TO_PREVIOUS:
+			frameControl[20] = APNG_DISPOSE_OP_PREVIOUS;
+			break;
+		default:
+			frameControl[20] = APNG_DISPOSE_OP_NONE;
+		}
+		frameControl[21] = APNG_BLEND_OP_OVER;
+		writeChunk(os, "fcTL", true, frameControl, 0, frameControl.length);
+
+		int length = deflate(pixels, stride, x, y, width, height, deflater);
+		if (first) {
+			writeChunk(os, "IDAT", deflated, 0, length);
+		} else {
+			writeChunk(os, "fdAT", true, deflated, 0, length);
+		}
+	}
+}
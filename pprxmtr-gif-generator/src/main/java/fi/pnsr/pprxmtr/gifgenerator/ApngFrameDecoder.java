@@ -0,0 +1,361 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Decodes the frames of a PNG image one at a time, following the APNG extension when the image is animated. The
+ * chunks are read sequentially from the stream and only the compressed data of the current frame is buffered. Each
+ * frame is turned into a standalone PNG with the header chunks of the image and decoded with ImageIO. A PNG without
+ * animation control decodes as a single frame straight from the stream, subsampled like any other still image.
+ *
+ * @see StillFrameDecoder
+ */
+class ApngFrameDecoder implements FrameDecoder {
+
+	// Frame control of a frame, see the fcTL chunk
+	private static final class FrameControl {
+		int blend;
+		int delay;
+		int disposal;
+		int height;
+		int width;
+		int x;
+		int y;
+	}
+
+	private static final int ACTL = chunkType("acTL");
+	private static final int FCTL = chunkType("fcTL");
+	private static final int FDAT = chunkType("fdAT");
+	private static final int IDAT = chunkType("IDAT");
+	private static final int IEND = chunkType("IEND");
+	private static final int IHDR = chunkType("IHDR");
+
+	private static final int BLEND_SOURCE = 0;
+
+	private static final int DEFAULT_DELAY_IN_MS = 100;
+
+	// Chunks other than image data hold palettes, color profiles and metadata, larger ones are rejected
+	private static final int MAX_CHUNK_BYTES = 1 << 22;
+
+	// Compressed data of a frame is also limited by the size of the image, see maxDataBytes
+	private static final long MAX_DATA_BYTES = 1L << 26;
+
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	static boolean isPng(byte[] signature) {
+		for (int i = 0; i < SIGNATURE.length; i++) {
+			if (signature[i] != SIGNATURE[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int chunkType(String name) {
+		return name.charAt(0) << 24 | name.charAt(1) << 16 | name.charAt(2) << 8 | name.charAt(3);
+	}
+
+	private boolean animated;
+
+	// Allocated once the image turns out to be animated
+	private FrameCanvas canvas;
+
+	// Compressed data of the frame being read
+	private final ByteBufferOutputStream data = new ByteBufferOutputStream();
+
+	private int delay;
+
+	private boolean ended;
+
+	// Ancillary chunks before the image data, such as PLTE and tRNS, copied to every frame
+	private final List<byte[]> headerChunks = new ArrayList<>();
+
+	private final int height;
+
+	private final byte[] ihdr;
+
+	private final DataInputStream input;
+
+	// Compressed data of a frame never needs to be much larger than its pixels with their filter bytes
+	private final long maxDataBytes;
+
+	// Control of the frame being read, null before the first one and for a default image outside of the animation
+	private FrameControl pending;
+
+	private boolean seenImageData;
+
+	private final int targetSize;
+
+	// Type of the latest chunk read by readChunkHeader
+	private int type;
+
+	private final int width;
+
+	ApngFrameDecoder(InputStream is, int targetSize) throws IOException {
+		this.targetSize = targetSize;
+		input = new DataInputStream(is);
+		byte[] signature = new byte[SIGNATURE.length];
+		input.readFully(signature);
+		if (!isPng(signature)) {
+			throw new IOException("Not a PNG image");
+		}
+		ihdr = readChunk(readChunkHeader());
+		if (type != IHDR || ihdr.length != 13) {
+			throw new IOException("Missing PNG header");
+		}
+		width = readInt(ihdr, 0);
+		height = readInt(ihdr, 4);
+		if (width <= 0 || height <= 0 || (long) width * height > StillFrameDecoder.MAX_PIXELS) {
+			throw new IOException("Unsupported PNG dimensions " + width + "x" + height);
+		}
+		int channels;
+		switch (ihdr[9]) {
+		case 0:
+		case 3:
+			channels = 1;
+			break;
+		case 2:
+			channels = 3;
+			break;
+		case 4:
+			channels = 2;
+			break;
+		case 6:
+			channels = 4;
+			break;
+		default:
+			throw new IOException("Unsupported PNG color type " + ihdr[9]);
+		}
+		long rawBytes = ((long) width * channels * (ihdr[8] & 0xff) + 7) / 8 * height + height;
+		// Room for the extra filter bytes of interlaced images and for deflate blocks stored without compression
+		maxDataBytes = Math.min(rawBytes + rawBytes / 1024 + 7L * height + 0x1000, MAX_DATA_BYTES);
+	}
+
+	// Buffer the compressed data of the frame being read, starting at the offset of the chunk
+	private void appendData(byte[] chunk, int offset) throws IOException {
+		if (data.size() + chunk.length - offset > maxDataBytes) {
+			throw new IOException("PNG image data too large");
+		}
+		data.write(chunk, offset, chunk.length - offset);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (canvas != null) {
+			canvas.dispose();
+		}
+		input.close();
+	}
+
+	@Override
+	public int getDelay() {
+		return delay;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public BufferedImage nextFrame() throws IOException {
+		while (!ended) {
+			int length = readChunkHeader();
+			if (type == IEND) {
+				ended = true;
+				break;
+			}
+			if (type == IDAT && !animated) {
+				ended = true;
+				return decodeStill(length);
+			}
+			byte[] chunk = readChunk(length);
+			if (type == FCTL) {
+				FrameControl control = readFrameControl(chunk);
+				if (data.size() > 0) {
+					// The previous frame is complete
+					FrameControl current = pending;
+					pending = control;
+					return drawFrame(current);
+				}
+				pending = control;
+			} else if (type == IDAT) {
+				seenImageData = true;
+				// The default image is not part of the animation unless a frame control precedes it
+				if (pending != null) {
+					appendData(chunk, 0);
+				}
+			} else if (type == FDAT) {
+				appendData(chunk, 4);
+			} else if (type == ACTL) {
+				if (!animated) {
+					animated = true;
+					canvas = new FrameCanvas(width, height);
+				}
+			} else if (!seenImageData) {
+				headerChunks.add(concat(type, chunk));
+			}
+		}
+		if (data.size() > 0) {
+			FrameControl current = pending;
+			pending = null;
+			return drawFrame(current);
+		}
+		return null;
+	}
+
+	/**
+	 * Decodes a still PNG from the stream, positioned at the data of its first IDAT chunk. The chunks already read are
+	 * written again in front of the rest of the stream, so none of the image data is buffered here.
+	 */
+	private BufferedImage decodeStill(int length) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream os = new DataOutputStream(header);
+		writeHeader(os, width, height);
+		os.writeInt(length);
+		os.writeInt(IDAT);
+		delay = 0;
+		InputStream png = new SequenceInputStream(new ByteArrayInputStream(header.toByteArray()), input);
+		try (StillFrameDecoder still = new StillFrameDecoder(png, targetSize)) {
+			return still.nextFrame();
+		}
+	}
+
+	// Decode the buffered frame data and draw it on the canvas
+	private BufferedImage drawFrame(FrameControl control) throws IOException {
+		ByteBufferOutputStream png = new ByteBufferOutputStream(data.size() + 0x100);
+		DataOutputStream os = new DataOutputStream(png);
+		writeHeader(os, control.width, control.height);
+		// The frame data goes straight from its buffer to the PNG, checksummed on the way
+		os.writeInt(data.size());
+		CheckedOutputStream checked = new CheckedOutputStream(os, new CRC32());
+		new DataOutputStream(checked).writeInt(IDAT);
+		data.writeTo(checked);
+		os.writeInt((int) checked.getChecksum().getValue());
+		writeChunk(os, IEND, new byte[0], 0, 0);
+		data.reset();
+
+		BufferedImage frame = ImageIO.read(new ByteBufferInputStream(png.toByteBuffer()));
+		if (frame == null) {
+			throw new IOException("Could not decode APNG frame");
+		}
+		delay = control.delay;
+		return canvas.draw(frame, control.x, control.y, control.blend == BLEND_SOURCE, control.disposal);
+	}
+
+	// Read the data of the chunk whose header was read last
+	private byte[] readChunk(int length) throws IOException {
+		if (type == IEND) {
+			return new byte[0];
+		}
+		byte[] chunk = new byte[length];
+		input.readFully(chunk);
+		// CRC, ImageIO verifies the data once the frame is decoded
+		input.readInt();
+		return chunk;
+	}
+
+	// Read the length and the type of the next chunk, returning the length and setting the type
+	private int readChunkHeader() throws IOException {
+		int length;
+		try {
+			length = input.readInt();
+		} catch (EOFException e) {
+			// Truncated file, treat it as ended
+			type = IEND;
+			return 0;
+		}
+		type = input.readInt();
+		if (length < 0 || length > (type == IDAT || type == FDAT ? maxDataBytes + 4 : MAX_CHUNK_BYTES)) {
+			throw new IOException("Invalid PNG chunk length " + length);
+		}
+		return length;
+	}
+
+	private FrameControl readFrameControl(byte[] chunk) throws IOException {
+		if (chunk.length < 26) {
+			throw new IOException("Invalid APNG frame control");
+		}
+		FrameControl control = new FrameControl();
+		control.width = readInt(chunk, 4);
+		control.height = readInt(chunk, 8);
+		control.x = readInt(chunk, 12);
+		control.y = readInt(chunk, 16);
+		int delayNumerator = (chunk[20] & 0xff) << 8 | chunk[21] & 0xff;
+		int delayDenominator = (chunk[22] & 0xff) << 8 | chunk[23] & 0xff;
+		control.delay = delayNumerator * 1000 / (delayDenominator == 0 ? 100 : delayDenominator);
+		if (control.delay == 0) {
+			control.delay = DEFAULT_DELAY_IN_MS;
+		}
+		control.disposal = chunk[24];
+		control.blend = chunk[25];
+		if (control.width <= 0 || control.height <= 0 || control.x < 0 || control.y < 0
+				|| control.x + control.width > width || control.y + control.height > height) {
+			throw new IOException("APNG frame outside of the image");
+		}
+		return control;
+	}
+
+	private static byte[] concat(int type, byte[] chunk) {
+		byte[] typed = new byte[chunk.length + 4];
+		writeInt(typed, 0, type);
+		System.arraycopy(chunk, 0, typed, 4, chunk.length);
+		return typed;
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8
+				| b[offset + 3] & 0xff;
+	}
+
+	private static void writeChunk(DataOutputStream os, int type, byte[] b, int offset, int length)
+			throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] typeBytes = new byte[4];
+		writeInt(typeBytes, 0, type);
+		crc.update(typeBytes);
+		crc.update(b, offset, length);
+		os.writeInt(length);
+		os.write(typeBytes);
+		os.write(b, offset, length);
+		os.writeInt((int) crc.getValue());
+	}
+
+	// Write the signature, the header with the given dimensions and the ancillary chunks that precede the image data
+	private void writeHeader(DataOutputStream os, int imageWidth, int imageHeight) throws IOException {
+		os.write(SIGNATURE);
+		byte[] header = ihdr.clone();
+		writeInt(header, 0, imageWidth);
+		writeInt(header, 4, imageHeight);
+		writeChunk(os, IHDR, header, 0, header.length);
+		for (byte[] chunk : headerChunks) {
+			writeChunk(os, readInt(chunk, 0), chunk, 4, chunk.length - 4);
+		}
+	}
+
+	private static void writeInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+}
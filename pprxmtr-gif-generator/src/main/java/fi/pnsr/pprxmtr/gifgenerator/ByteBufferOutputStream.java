@@ -0,0 +1,136 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An unsynchronized output stream that collects the written bytes into a growable {@link ByteBuffer}, heap or
+ * direct. Unlike {@link java.io.ByteArrayOutputStream} the result can be handed on as a buffer view without copying
+ * it.
+ */
+public class ByteBufferOutputStream extends OutputStream {
+
+	private static final int DEFAULT_CAPACITY = 8192;
+
+	private ByteBuffer buffer;
+
+	public ByteBufferOutputStream() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a stream backed by a buffer from the heap.
+	 *
+	 * @param initialCapacity
+	 *            initial size of the buffer in bytes
+	 */
+	public ByteBufferOutputStream(int initialCapacity) {
+		this(initialCapacity, false);
+	}
+
+	/**
+	 * @param initialCapacity
+	 *            initial size of the buffer in bytes
+	 * @param direct
+	 *            true to allocate a direct buffer
+	 */
+	public ByteBufferOutputStream(int initialCapacity, boolean direct) {
+		if (initialCapacity < 0) {
+			throw new IllegalArgumentException("Negative initial capacity: " + initialCapacity);
+		}
+		this.buffer = direct ? ByteBuffer.allocateDirect(initialCapacity) : ByteBuffer.allocate(initialCapacity);
+	}
+
+	/**
+	 * Creates a stream that writes into the given buffer, for example a pre-sized direct buffer reused between
+	 * requests. The buffer is cleared first. If more bytes are written than fit in it, the content is moved to a
+	 * larger buffer of the same kind.
+	 *
+	 * @param buffer
+	 *            buffer to write into
+	 */
+	public ByteBufferOutputStream(ByteBuffer buffer) {
+		if (buffer == null || buffer.isReadOnly()) {
+			throw new IllegalArgumentException("Buffer must be writable");
+		}
+		buffer.clear();
+		this.buffer = buffer;
+	}
+
+	private void ensureRemaining(int length) {
+		if (buffer.remaining() < length) {
+			int capacity = Math.max(buffer.capacity() << 1, buffer.position() + length);
+			ByteBuffer grown = buffer.isDirect() ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+			buffer.flip();
+			grown.put(buffer);
+			buffer = grown;
+		}
+	}
+
+	/**
+	 * Discards everything written so far, keeping the buffer for reuse.
+	 */
+	public void reset() {
+		buffer.clear();
+	}
+
+	public int size() {
+		return buffer.position();
+	}
+
+	/**
+	 * @return a read-only view of the bytes written so far, sharing the content with this stream
+	 */
+	public ByteBuffer toByteBuffer() {
+		ByteBuffer view = buffer.duplicate();
+		view.flip();
+		return view.asReadOnlyBuffer();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		ensureRemaining(len);
+		buffer.put(b, off, len);
+	}
+
+	@Override
+	public void write(int b) {
+		ensureRemaining(1);
+		buffer.put((byte) b);
+	}
+
+	/**
+	 * Writes all the bytes written so far to the stream, straight from the buffer if it is on the heap.
+	 *
+	 * @param os
+	 *            destination stream
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream os) throws IOException {
+		if (buffer.hasArray()) {
+			os.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+		} else {
+			writeTo(Channels.newChannel(os));
+		}
+	}
+
+	/**
+	 * Writes all the bytes written so far to the channel.
+	 *
+	 * @param channel
+	 *            destination channel
+	 * @throws IOException
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		ByteBuffer content = toByteBuffer();
+		while (content.hasRemaining()) {
+			channel.write(content);
+		}
+	}
+}
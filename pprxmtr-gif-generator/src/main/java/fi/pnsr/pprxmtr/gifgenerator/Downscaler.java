@@ -0,0 +1,287 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.awt.image.BufferedImage;
+import java.util.stream.IntStream;
+
+/**
+ * Downscales images in two steps. Blocks of source pixels are first averaged down by an integer factor, which reads
+ * every source pixel once and stays cheap even for multi-megapixel images, and then a single pass of the chosen quality
+ * resamples the result to the exact target size. Colors are averaged premultiplied by alpha, so transparent pixels do
+ * not darken the edges. Large sources are averaged in bands of rows in parallel, and only one band at a time is read
+ * out of the source image.
+ */
+final class Downscaler {
+
+	/**
+	 * How the final pass resamples the averaged image to the target size.
+	 */
+	enum Quality {
+		/**
+		 * Every target pixel is averaged over exactly the area of the source it covers. No aliasing, a little soft.
+		 */
+		BALANCED,
+		/**
+		 * The source is averaged down to two to four times the target size and finished with a Catmull-Rom filter
+		 * widened to the remaining scale. The sharpest, comparable to Scalr's ULTRA_QUALITY.
+		 */
+		QUALITY,
+		/**
+		 * The source is averaged down to just above the target size and interpolated bilinearly from there. The
+		 * fastest, but fine patterns may alias.
+		 */
+		SPEED
+	}
+
+	// Coefficient of the Catmull-Rom kernel
+	private static final double CUBIC_A = -0.5;
+
+	// Sources with more pixels are averaged in parallel, one band of rows per task
+	static final int PARALLEL_PIXELS = 1 << 20;
+
+	// Weights of the final pass are fixed point numbers with this many fraction bits
+	private static final int WEIGHT_BITS = 14;
+
+	/**
+	 * Averages blocks of factor by factor pixels into one. The blocks on the right and bottom edges may be smaller.
+	 *
+	 * @param parallel
+	 *            whether the rows are averaged in parallel, which gives the same pixels
+	 * @return the premultiplied ARGB pixels of the averaged image, row by row
+	 */
+	static int[] boxAverage(BufferedImage image, int factor, int width, int height, boolean parallel) {
+		int[] averaged = new int[width * height];
+		if (parallel) {
+			// Forks into the pool of the calling thread, which is the common pool unless called from another pool
+			IntStream.range(0, height).parallel().forEach(row -> boxAverageRow(image, factor, row, averaged, width));
+		} else {
+			for (int row = 0; row < height; row++) {
+				boxAverageRow(image, factor, row, averaged, width);
+			}
+		}
+		return averaged;
+	}
+
+	private static void boxAverageRow(BufferedImage image, int factor, int row, int[] averaged, int width) {
+		int sourceWidth = image.getWidth();
+		int top = row * factor;
+		int rows = Math.min(factor, image.getHeight() - top);
+		int[] band = AnimatedGIFWriter.getRGB(image.getSubimage(0, top, sourceWidth, rows));
+		int[] sums = new int[width * 4];
+
+		for (int y = 0, i = 0; y < rows; y++) {
+			for (int x = 0, column = 0, left = factor; x < sourceWidth; x++, i++) {
+				int pixel = band[i];
+				int alpha = pixel >>> 24;
+				if (alpha == 0xff) {
+					sums[column] += 0xff;
+					sums[column + 1] += pixel >> 16 & 0xff;
+					sums[column + 2] += pixel >> 8 & 0xff;
+					sums[column + 3] += pixel & 0xff;
+				} else if (alpha != 0) {
+					sums[column] += alpha;
+					sums[column + 1] += PremultipliedAlpha.premultiply(pixel >> 16 & 0xff, alpha);
+					sums[column + 2] += PremultipliedAlpha.premultiply(pixel >> 8 & 0xff, alpha);
+					sums[column + 3] += PremultipliedAlpha.premultiply(pixel & 0xff, alpha);
+				}
+				if (--left == 0) {
+					column += 4;
+					left = factor;
+				}
+			}
+		}
+
+		for (int x = 0, i = row * width; x < width; x++, i++) {
+			int count = rows * Math.min(factor, sourceWidth - x * factor);
+			int half = count >> 1;
+			averaged[i] = (sums[x * 4] + half) / count << 24 | (sums[x * 4 + 1] + half) / count << 16
+					| (sums[x * 4 + 2] + half) / count << 8 | (sums[x * 4 + 3] + half) / count;
+		}
+	}
+
+	// Catmull-Rom kernel at the given distance
+	private static double cubic(double distance) {
+		double t = Math.abs(distance);
+		if (t < 1.0) {
+			return ((CUBIC_A + 2.0) * t - (CUBIC_A + 3.0)) * t * t + 1.0;
+		}
+		if (t < 2.0) {
+			return ((CUBIC_A * t - 5.0 * CUBIC_A) * t + 8.0 * CUBIC_A) * t - 4.0 * CUBIC_A;
+		}
+		return 0.0;
+	}
+
+	/**
+	 * Resamples premultiplied pixels separably, first the rows and then the columns.
+	 */
+	private static int[] resample(int[] pixels, int sourceWidth, int sourceHeight, int width, int height,
+			Quality quality) {
+		int[][] xTaps = taps(sourceWidth, width, quality);
+		int[][] yTaps = taps(sourceHeight, height, quality);
+
+		int[] columns = xTaps[0];
+		int[] xWeights = xTaps[1];
+		int xCount = columns.length / width;
+		int[] horizontal = new int[width * sourceHeight];
+		for (int y = 0, i = 0; y < sourceHeight; y++) {
+			int row = y * sourceWidth;
+			for (int x = 0, t = 0; x < width; x++, i++) {
+				int alpha = 0;
+				int red = 0;
+				int green = 0;
+				int blue = 0;
+				for (int k = 0; k < xCount; k++, t++) {
+					int pixel = pixels[row + columns[t]];
+					int weight = xWeights[t];
+					alpha += weight * (pixel >>> 24);
+					red += weight * (pixel >> 16 & 0xff);
+					green += weight * (pixel >> 8 & 0xff);
+					blue += weight * (pixel & 0xff);
+				}
+				horizontal[i] = toPremultiplied(alpha, red, green, blue);
+			}
+		}
+
+		int[] rows = yTaps[0];
+		int[] yWeights = yTaps[1];
+		int yCount = rows.length / height;
+		int[] resampled = new int[width * height];
+		for (int y = 0, i = 0; y < height; y++) {
+			for (int x = 0; x < width; x++, i++) {
+				int alpha = 0;
+				int red = 0;
+				int green = 0;
+				int blue = 0;
+				for (int k = 0, t = y * yCount; k < yCount; k++, t++) {
+					int pixel = horizontal[rows[t] * width + x];
+					int weight = yWeights[t];
+					alpha += weight * (pixel >>> 24);
+					red += weight * (pixel >> 16 & 0xff);
+					green += weight * (pixel >> 8 & 0xff);
+					blue += weight * (pixel & 0xff);
+				}
+				resampled[i] = toPremultiplied(alpha, red, green, blue);
+			}
+		}
+		return resampled;
+	}
+
+	/**
+	 * Scales the image to the given size.
+	 *
+	 * @param image
+	 *            the image to scale, which is only read
+	 * @param width
+	 *            width of the scaled image
+	 * @param height
+	 *            height of the scaled image
+	 * @param quality
+	 *            quality of the final pass
+	 * @return a new array with the ARGB pixels of the scaled image, row by row
+	 */
+	static int[] resize(BufferedImage image, int width, int height, Quality quality) {
+		if (width < 1 || height < 1) {
+			throw new IllegalArgumentException("Invalid size: " + width + "x" + height);
+		}
+		int sourceWidth = image.getWidth();
+		int sourceHeight = image.getHeight();
+		if (sourceWidth == width && sourceHeight == height) {
+			// Nothing to scale, and premultiplying would lose the precision of translucent colors
+			return AnimatedGIFWriter.getRGB(image).clone();
+		}
+		double ratio = Math.min((double) sourceWidth / width, (double) sourceHeight / height);
+		// The Catmull-Rom filter needs a few source pixels per target pixel to be sharp without aliasing
+		int factor = (int) (quality == Quality.QUALITY ? ratio / 2.0 : ratio);
+
+		int[] pixels;
+		if (factor >= 2) {
+			sourceWidth = (sourceWidth + factor - 1) / factor;
+			sourceHeight = (sourceHeight + factor - 1) / factor;
+			pixels = boxAverage(image, factor, sourceWidth, sourceHeight,
+					(long) image.getWidth() * image.getHeight() >= PARALLEL_PIXELS);
+		} else {
+			pixels = PremultipliedAlpha.premultiply(AnimatedGIFWriter.getRGB(image));
+		}
+		if (sourceWidth != width || sourceHeight != height) {
+			pixels = resample(pixels, sourceWidth, sourceHeight, width, height, quality);
+		}
+		PremultipliedAlpha.unpremultiply(pixels);
+		return pixels;
+	}
+
+	/**
+	 * Computes which source pixels each target pixel along one axis is made of and with what weights. Every target
+	 * pixel has the same number of taps, padded with zero weights, and the source positions are clamped to the edges.
+	 *
+	 * @return the source positions and the fixed point weights of the taps, target pixel by target pixel
+	 */
+	private static int[][] taps(int sourceSize, int size, Quality quality) {
+		double ratio = (double) sourceSize / size;
+		// Distance from the center of a target pixel to the farthest source pixel center that contributes to it
+		double support;
+		switch (quality) {
+		case BALANCED:
+			support = Math.max(ratio, 1.0) / 2.0 + 0.5;
+			break;
+		case QUALITY:
+			support = 2.0 * Math.max(ratio, 1.0);
+			break;
+		default:
+			support = 1.0;
+		}
+		int count = (int) Math.ceil(2.0 * support) + 1;
+		int[] positions = new int[size * count];
+		int[] weights = new int[size * count];
+		double[] values = new double[count];
+
+		for (int i = 0; i < size; i++) {
+			double center = (i + 0.5) * ratio;
+			int first = (int) Math.floor(center - support);
+			double sum = 0.0;
+			for (int k = 0; k < count; k++) {
+				int position = first + k;
+				double value;
+				switch (quality) {
+				case BALANCED:
+					// Overlap of the source pixel with the area covered by the target pixel, at least one pixel wide
+					double half = Math.max(ratio, 1.0) / 2.0;
+					value = Math.max(0.0, Math.min(position + 1.0, center + half) - Math.max(position, center - half));
+					break;
+				case QUALITY:
+					value = cubic((position + 0.5 - center) / Math.max(ratio, 1.0));
+					break;
+				default:
+					value = Math.max(0.0, 1.0 - Math.abs(position + 0.5 - center));
+				}
+				values[k] = value;
+				sum += value;
+			}
+			// Normalized so that the weights add up to exactly one, rounding errors going to the largest weight
+			int total = 0;
+			int largest = 0;
+			for (int k = 0; k < count; k++) {
+				int t = i * count + k;
+				positions[t] = Math.min(Math.max(first + k, 0), sourceSize - 1);
+				weights[t] = (int) Math.round(values[k] / sum * (1 << WEIGHT_BITS));
+				total += weights[t];
+				if (weights[t] > weights[i * count + largest]) {
+					largest = k;
+				}
+			}
+			weights[i * count + largest] += (1 << WEIGHT_BITS) - total;
+		}
+		return new int[][] { positions, weights };
+	}
+
+	// Rounds weighted sums of premultiplied channels to a premultiplied pixel, clamping the overshoot of the filters
+	private static int toPremultiplied(int alpha, int red, int green, int blue) {
+		int round = 1 << WEIGHT_BITS - 1;
+		int a = Math.min(Math.max(alpha + round >> WEIGHT_BITS, 0), 0xff);
+		int r = Math.min(Math.max(red + round >> WEIGHT_BITS, 0), a);
+		int g = Math.min(Math.max(green + round >> WEIGHT_BITS, 0), a);
+		int b = Math.min(Math.max(blue + round >> WEIGHT_BITS, 0), a);
+		return a << 24 | r << 16 | g << 8 | b;
+	}
+
+	private Downscaler() {
+	}
+}
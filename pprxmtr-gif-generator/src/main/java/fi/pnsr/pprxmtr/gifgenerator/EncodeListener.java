@@ -0,0 +1,82 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+/**
+ * Receives measurements of the stages of generating an approximation, from decoding the original image to LZW
+ * encoding the frames of the gif. Frames are processed concurrently, so implementations must be thread safe. Measuring
+ * has a cost of its own, so nothing is measured when the listener is {@link #NONE}.
+ *
+ * @see GifGenerator#generate(byte[], OutputFormat, int, EncodeListener)
+ * @see AnimatedGIFWriter#setEncodeListener(EncodeListener)
+ */
+public interface EncodeListener {
+
+	/**
+	 * Stages of generating an approximation.
+	 */
+	enum Stage {
+		/**
+		 * Decoding a frame of the original image.
+		 */
+		DECODE,
+		/**
+		 * Mapping the pixels of a frame to the palette, with or without dithering.
+		 */
+		DITHER,
+		/**
+		 * LZW encoding the palette indices of a frame.
+		 */
+		LZW,
+		/**
+		 * Building a palette, either the global one from the sampled pixels of all frames or a local one for a frame.
+		 */
+		QUANTIZE,
+		/**
+		 * Scaling a source frame to the target size, or a rendered frame down to fit in the size budget.
+		 */
+		RESIZE,
+		/**
+		 * Rendering a frame of the fall from the source image.
+		 */
+		WARP
+	}
+
+	/**
+	 * Listener that ignores everything, the default.
+	 */
+	EncodeListener NONE = new EncodeListener() {
+	};
+
+	/**
+	 * Called once the approximation has been generated. Not called if the generation fails.
+	 *
+	 * @param format
+	 *            format of the approximation
+	 * @param frames
+	 *            number of frames in the approximation
+	 * @param sizeInBytes
+	 *            size of the approximation
+	 * @param attempts
+	 *            number of times the frames were encoded to fit in the size budget
+	 */
+	default void encodeCompleted(OutputFormat format, int frames, int sizeInBytes, int attempts) {
+	}
+
+	/**
+	 * Called on the thread that did the work every time a stage has been completed for a frame.
+	 *
+	 * @param stage
+	 *            the completed stage
+	 * @param frame
+	 *            index of the frame, -1 for work shared by all frames such as the global palette
+	 * @param nanos
+	 *            time spent in the stage
+	 * @param allocatedBytes
+	 *            bytes allocated by the thread during the stage, 0 if the JVM cannot measure it
+	 * @param pixels
+	 *            number of pixels processed
+	 * @param colors
+	 *            number of palette entries used by the stage, 0 where there is no palette
+	 */
+	default void stageCompleted(Stage stage, int frame, long nanos, long allocatedBytes, int pixels, int colors) {
+	}
+}
@@ -0,0 +1,109 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The canvas animation frames are composited onto. Disposal of the previous frame is applied before the next frame is
+ * drawn, and the previous-frame buffer is only allocated if a frame asks to be restored to it.
+ */
+class FrameCanvas {
+
+	// Dispose operations, numbered as in the APNG fcTL chunk
+	static final int DISPOSE_NONE = 0;
+	static final int DISPOSE_BACKGROUND = 1;
+	static final int DISPOSE_PREVIOUS = 2;
+
+	// The canvas takes 4 bytes per pixel, and as much again if frames are restored to the previous one, so larger
+	// animations are rejected before anything is allocated. 2048x2048 is 16 MB, plenty for an animated emoji.
+	static final long MAX_PIXELS = 1L << 22;
+
+	private final BufferedImage canvas;
+
+	private int disposal = DISPOSE_NONE;
+
+	private final Graphics2D graphics;
+
+	private final int[] pixels;
+
+	private int[] previous;
+
+	// Area of the previous frame
+	private final Rectangle region = new Rectangle();
+
+	FrameCanvas(int width, int height) throws IOException {
+		if ((long) width * height > MAX_PIXELS) {
+			throw new IOException("Animation too large: " + width + "x" + height);
+		}
+		canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		pixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+		graphics = canvas.createGraphics();
+	}
+
+	void dispose() {
+		graphics.dispose();
+	}
+
+	/**
+	 * Disposes of the previous frame and draws the next one.
+	 *
+	 * @param frame
+	 *            the frame
+	 * @param x
+	 *            left position of the frame on the canvas
+	 * @param y
+	 *            top position of the frame on the canvas
+	 * @param replace
+	 *            true to replace the pixels under the frame, false to blend the frame over them
+	 * @param nextDisposal
+	 *            how the frame is disposed of before drawing the frame after it
+	 * @return the canvas
+	 */
+	BufferedImage draw(BufferedImage frame, int x, int y, boolean replace, int nextDisposal) {
+		if (disposal == DISPOSE_BACKGROUND) {
+			clear(region);
+		} else if (disposal == DISPOSE_PREVIOUS && previous != null) {
+			System.arraycopy(previous, 0, pixels, 0, pixels.length);
+		}
+
+		if (nextDisposal == DISPOSE_PREVIOUS) {
+			if (previous == null) {
+				previous = new int[pixels.length];
+			}
+			System.arraycopy(pixels, 0, previous, 0, pixels.length);
+		}
+		region.setBounds(x, y, frame.getWidth(), frame.getHeight());
+		disposal = nextDisposal;
+
+		if (replace) {
+			clear(region);
+		}
+		graphics.drawImage(frame, x, y, null);
+
+		return canvas;
+	}
+
+	int getHeight() {
+		return canvas.getHeight();
+	}
+
+	int getWidth() {
+		return canvas.getWidth();
+	}
+
+	// Clear the area to transparent black
+	private void clear(Rectangle area) {
+		Rectangle clipped = area.intersection(new Rectangle(canvas.getWidth(), canvas.getHeight()));
+		if (clipped.isEmpty()) {
+			return;
+		}
+		for (int row = clipped.y; row < clipped.y + clipped.height; row++) {
+			int start = row * canvas.getWidth() + clipped.x;
+			Arrays.fill(pixels, start, start + clipped.width, 0);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes the frames of a still or animated image one at a time. Each frame is composited onto a single canvas as the
+ * image would be displayed, so memory use is bounded by the canvas and one previous-frame buffer regardless of the
+ * number of frames.
+ */
+public interface FrameDecoder extends Closeable {
+
+	/**
+	 * Opens a decoder for the image in the stream. Animated GIF and APNG images are decoded frame by frame, any other
+	 * format readable by ImageIO is decoded as a single frame. Still images are decoded subsampled to no less than
+	 * twice the target size, so their frames may be smaller than the image. Images too large to decode safely are
+	 * rejected from their dimensions before any pixels are allocated.
+	 *
+	 * @param is
+	 *            stream of the image file, closed when the decoder is closed
+	 * @param targetSize
+	 *            size the longer side of the frames will be scaled to, 0 to decode at full resolution
+	 * @return the decoder
+	 * @throws IOException
+	 *             if the image cannot be read or is too large
+	 */
+	static FrameDecoder open(InputStream is, int targetSize) throws IOException {
+		InputStream in = is.markSupported() ? is : new BufferedInputStream(is);
+		byte[] signature = new byte[8];
+		in.mark(signature.length);
+		int length = 0;
+		for (int n; length < signature.length && (n = in.read(signature, length, signature.length - length)) > 0;) {
+			length += n;
+		}
+		in.reset();
+
+		if (length >= 6 && signature[0] == 'G' && signature[1] == 'I' && signature[2] == 'F') {
+			return new GifFrameDecoder(in, targetSize);
+		}
+		if (length == 8 && ApngFrameDecoder.isPng(signature)) {
+			return new ApngFrameDecoder(in, targetSize);
+		}
+		return new StillFrameDecoder(in, targetSize);
+	}
+
+	/**
+	 * @return the delay of the frame returned by the latest {@link #nextFrame()} call in milliseconds
+	 */
+	int getDelay();
+
+	/**
+	 * @return the height of the image
+	 */
+	int getHeight();
+
+	/**
+	 * @return the width of the image
+	 */
+	int getWidth();
+
+	/**
+	 * Decodes the next frame onto the canvas of an animation.
+	 *
+	 * @return the frame, which may be overwritten by the next call, or null if there are no more frames
+	 * @throws IOException
+	 *             if the frame cannot be decoded
+	 */
+	BufferedImage nextFrame() throws IOException;
+}
@@ -0,0 +1,207 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Decodes the frames of a GIF image one at a time. The part of the stream that has already been decoded is released as
+ * the frames are read. A GIF of a single frame is a still image, and is decoded subsampled like one. The frames of an
+ * animation are decoded at full resolution, but only the part of a frame that falls on the canvas is allocated.
+ *
+ * @see StillFrameDecoder
+ */
+class GifFrameDecoder implements FrameDecoder {
+
+	// Browsers treat very short delays as a tenth of a second, and so do we
+	private static final int DEFAULT_DELAY_IN_MS = 100;
+
+	private static final String IMAGE_METADATA_FORMAT = "javax_imageio_gif_image_1.0";
+
+	private static final int MIN_DELAY_IN_MS = 20;
+
+	private static final String STREAM_METADATA_FORMAT = "javax_imageio_gif_stream_1.0";
+
+	// Created with the first frame, once it is known whether the GIF is animated
+	private FrameCanvas canvas;
+
+	// Stream position after the frame before the latest one, the reader never seeks back before it
+	private long decodedBefore;
+
+	private int delay;
+
+	private final int height;
+
+	private int index;
+
+	private final ImageInputStream input;
+
+	private final ImageReader reader;
+
+	private final InputStream source;
+
+	// Scale of the canvas, the number of source pixels per pixel in both directions
+	private int subsampling = 1;
+
+	private final int targetSize;
+
+	private final int width;
+
+	GifFrameDecoder(InputStream is, int targetSize) throws IOException {
+		this.targetSize = targetSize;
+		source = is;
+		input = new MemoryCacheImageInputStream(is);
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+		if (!readers.hasNext()) {
+			input.close();
+			is.close();
+			throw new IOException("No GIF reader available");
+		}
+		reader = readers.next();
+		// Not seeking forward only lets the reader look for the second frame before the first one is decoded
+		reader.setInput(input, false, false);
+
+		try {
+			Node screen = findChild(reader.getStreamMetadata().getAsTree(STREAM_METADATA_FORMAT),
+					"LogicalScreenDescriptor");
+			int screenWidth = getIntAttribute(screen, "logicalScreenWidth");
+			int screenHeight = getIntAttribute(screen, "logicalScreenHeight");
+			if (screenWidth <= 0 || screenHeight <= 0) {
+				// Broken logical screen, fall back to the size of the first frame
+				screenWidth = reader.getWidth(0);
+				screenHeight = reader.getHeight(0);
+			}
+			width = screenWidth;
+			height = screenHeight;
+			if (width <= 0 || height <= 0 || (long) width * height > StillFrameDecoder.MAX_PIXELS) {
+				throw new IOException("Unsupported GIF dimensions " + width + "x" + height);
+			}
+		} catch (IOException e) {
+			reader.dispose();
+			input.close();
+			is.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (canvas != null) {
+			canvas.dispose();
+		}
+		reader.dispose();
+		input.close();
+		source.close();
+	}
+
+	@Override
+	public int getDelay() {
+		return delay;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public BufferedImage nextFrame() throws IOException {
+		IIOMetadata metadata;
+		try {
+			metadata = reader.getImageMetadata(index);
+		} catch (IndexOutOfBoundsException e) {
+			// No more frames
+			return null;
+		}
+		Node tree = metadata.getAsTree(IMAGE_METADATA_FORMAT);
+		Node descriptor = findChild(tree, "ImageDescriptor");
+		Node control = findChild(tree, "GraphicControlExtension");
+		int left = getIntAttribute(descriptor, "imageLeftPosition");
+		int top = getIntAttribute(descriptor, "imageTopPosition");
+		int frameWidth = reader.getWidth(index);
+		int frameHeight = reader.getHeight(index);
+		// Decoding reads every pixel of the frame, even the ones that are not allocated
+		if ((long) frameWidth * frameHeight > StillFrameDecoder.MAX_PIXELS) {
+			throw new IOException("Unsupported GIF frame dimensions " + frameWidth + "x" + frameHeight);
+		}
+
+		if (canvas == null) {
+			if (!hasImage(1)) {
+				subsampling = StillFrameDecoder.subsampling(width, height, targetSize);
+			}
+			canvas = new FrameCanvas((width + subsampling - 1) / subsampling,
+					(height + subsampling - 1) / subsampling);
+		}
+		ImageReadParam param = reader.getDefaultReadParam();
+		if (left + frameWidth > width || top + frameHeight > height) {
+			// Frames larger than the logical screen are cut to it, at least one pixel is read even if none is shown
+			param.setSourceRegion(new Rectangle(Math.max(1, Math.min(frameWidth, width - left)),
+					Math.max(1, Math.min(frameHeight, height - top))));
+		}
+		if (subsampling > 1) {
+			param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+		}
+		BufferedImage frame = reader.read(index++, param);
+		// The next frame is found from the start of this one at the earliest, so the data before it is released
+		input.flushBefore(decodedBefore);
+		decodedBefore = input.getStreamPosition();
+
+		int disposal = FrameCanvas.DISPOSE_NONE;
+		delay = DEFAULT_DELAY_IN_MS;
+		if (control != null) {
+			String disposalMethod = control.getAttributes().getNamedItem("disposalMethod").getNodeValue();
+			if ("restoreToBackgroundColor".equals(disposalMethod)) {
+				disposal = FrameCanvas.DISPOSE_BACKGROUND;
+			} else if ("restoreToPrevious".equals(disposalMethod)) {
+				disposal = FrameCanvas.DISPOSE_PREVIOUS;
+			}
+			int delayTime = getIntAttribute(control, "delayTime") * 10;
+			if (delayTime >= MIN_DELAY_IN_MS) {
+				delay = delayTime;
+			}
+		}
+
+		return canvas.draw(frame, left / subsampling, top / subsampling, false, disposal);
+	}
+
+	private static Node findChild(Node parent, String name) {
+		for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (name.equals(child.getNodeName())) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	private static int getIntAttribute(Node node, String name) {
+		NamedNodeMap attributes = node.getAttributes();
+		return Integer.parseInt(attributes.getNamedItem(name).getNodeValue());
+	}
+
+	// Whether the GIF has an image with the index, found by skipping over the images before it without decoding them
+	private boolean hasImage(int imageIndex) throws IOException {
+		try {
+			reader.getImageMetadata(imageIndex);
+			return true;
+		} catch (IndexOutOfBoundsException e) {
+			return false;
+		}
+	}
+}
@@ -1,147 +1,656 @@
 package fi.pnsr.pprxmtr.gifgenerator;
 
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
+import java.awt.Dimension;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.awt.image.BufferedImageOp;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-import javax.imageio.ImageIO;
-
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.math3.util.Precision;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.imgscalr.Scalr;
 
+import fi.pnsr.pprxmtr.gifgenerator.AnimatedGIFWriter.DitherMode;
+import fi.pnsr.pprxmtr.gifgenerator.AffineWarp.Interpolation;
+import fi.pnsr.pprxmtr.gifgenerator.Downscaler.Quality;
 import fi.pnsr.pprxmtr.gifgenerator.AnimatedGIFWriter.GIFFrame;
+import fi.pnsr.pprxmtr.gifgenerator.EncodeListener.Stage;
 
 public class GifGenerator {
 
+	// Encoder settings for one attempt to fit the gif in the size budget
+	private static final class EncodingAttempt {
+		final int colors;
+		final DitherMode ditherMode;
+		final int frameStep;
+		final int lossyColorError;
+		final double scale;
+
+		EncodingAttempt(int colors, DitherMode ditherMode, int lossyColorError, int frameStep, double scale) {
+			this.colors = colors;
+			this.ditherMode = ditherMode;
+			this.lossyColorError = lossyColorError;
+			this.frameStep = frameStep;
+			this.scale = scale;
+		}
+
+		@Override
+		public String toString() {
+			return colors + " colors, " + ditherMode + " dither, lossy error " + lossyColorError + ", every "
+					+ frameStep + ". frame at scale " + scale;
+		}
+	}
+
+	// Each attempt gives up a little more quality than the previous one. Lossy LZW compression saves the most while
+	// the palette is large, and the frames are only dropped or scaled down when fewer colors are not enough.
+	private static final List<EncodingAttempt> ENCODING_ATTEMPTS = Arrays.asList(
+			new EncodingAttempt(256, DitherMode.FLOYD_STEINBERG, 0, 1, 1.0),
+			new EncodingAttempt(256, DitherMode.FLOYD_STEINBERG, 32, 1, 1.0),
+			new EncodingAttempt(256, DitherMode.NONE, 32, 1, 1.0),
+			new EncodingAttempt(128, DitherMode.NONE, 32, 1, 1.0),
+			new EncodingAttempt(64, DitherMode.NONE, 32, 1, 1.0),
+			new EncodingAttempt(32, DitherMode.NONE, 32, 1, 1.0),
+			new EncodingAttempt(32, DitherMode.NONE, 32, 2, 1.0),
+			new EncodingAttempt(32, DitherMode.NONE, 32, 2, 0.75),
+			new EncodingAttempt(32, DitherMode.NONE, 32, 2, 0.5),
+			new EncodingAttempt(16, DitherMode.NONE, 32, 2, 0.5));
+
+	// Red, green, blue and alpha masks of ARGB pixels
+	private static final int[] ARGB_MASKS = { 0xff0000, 0xff00, 0xff, 0xff000000 };
+
+	// Quality of downscaling the source frames to the target size and the frames down to fit in the size budget
+	private static final Quality DOWNSCALE_QUALITY = Quality.QUALITY;
+
+	/**
+	 * Pixels of the fall frames, one set of arrays for each size generated at once, kept per thread so that the next
+	 * image of the same sizes is rendered into the same arrays. They are taken out while in use, so a generation
+	 * started on the same thread in the meantime, such as a pool thread running another task while it waits,
+	 * allocates its own.
+	 */
+	private static final ThreadLocal<List<int[][]>> FALL_FRAME_PIXELS = ThreadLocal.withInitial(ArrayList::new);
+
+	// Each set of maps takes 8 bytes per pixel and frame, about two megabytes at 128x128, so this keeps some ten
+	// megabytes alive at most. Nearly every image is scaled to the target sizes on its longer side, so this holds the
+	// maps of all the sizes of a couple of aspect ratios.
+	private static final int FALL_MAP_CACHE_SIZE = 8;
+
+	// Sampling maps of the fall frames by image size, least recently used evicted first. The maps are never modified
+	// once compiled, so they are shared by every thread.
+	private static final Map<Dimension, int[][]> FALL_MAP_CACHE = new LinkedHashMap<Dimension, int[][]>(
+			FALL_MAP_CACHE_SIZE, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Dimension, int[][]> eldest) {
+			return size() > FALL_MAP_CACHE_SIZE;
+		}
+	};
+
 	private static final int FRAME_DELAY_IN_MS = 33;
 
 	private static final Logger LOG = LogManager.getLogger();
 
+	// The global palette is quantized from at most about this many pixels of the source frames.
+	private static final int MAX_PALETTE_SAMPLES = 64 * 1024;
+
+	// Longer animations are cut to keep the gif size reasonable.
+	private static final int MAX_SOURCE_FRAMES = 100;
+
 	private static final int NUMBER_OF_ANIMATED_FRAMES = 14;
 
+	// Generated gifs are typically a few tens of kilobytes, so this is usually enough to avoid growing the buffer.
+	private static final int OUTPUT_BUFFER_SIZE_IN_BYTES = 64 * 1024;
+
+	private static final int STILL_FRAME_DELAY_IN_MS = 1200;
+
 	private static final int TARGET_SIZE_IN_PIXELS = 96;
 
-	public static byte[] generateGif(byte[] original) {
+	/**
+	 * Adds the fall to the source frames. Every frame of the fall is rendered into the given pixels, one array per
+	 * frame, which are reallocated if they are not of the size of the source frames.
+	 *
+	 * @return the frames of the approximation
+	 */
+	private static List<GIFFrame> animate(List<BufferedImage> sourceFrames, List<Integer> sourceDelays,
+			int[][] fallFramePixels, EncodeListener listener) {
+		BufferedImage image = sourceFrames.get(sourceFrames.size() - 1);
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		List<GIFFrame> frames = new ArrayList<>(sourceFrames.size() + NUMBER_OF_ANIMATED_FRAMES);
+		if (sourceFrames.size() == 1) {
+			// The first frame, where the "face" is stationary for a while.
+			frames.add(new GIFFrame(image, STILL_FRAME_DELAY_IN_MS, GIFFrame.DISPOSAL_RESTORE_TO_BACKGROUND));
+		} else {
+			// Animated images play through once with their own timing.
+			for (int i = 0; i < sourceFrames.size(); ++i) {
+				frames.add(new GIFFrame(sourceFrames.get(i), sourceDelays.get(i),
+						GIFFrame.DISPOSAL_RESTORE_TO_BACKGROUND));
+			}
+		}
+
+		// Every frame of the fall is rendered straight from the source image with its own sampling map. The
+		// frames do not depend on each other, so they are rendered concurrently on the same pool that encodes
+		// them.
+		int[] sourcePixels = PremultipliedAlpha.premultiply(AnimatedGIFWriter.getRGB(image));
+		int[][] fallMaps = fallMaps(width, height);
+		List<ForkJoinTask<BufferedImage>> renderedFrames = new ArrayList<>(NUMBER_OF_ANIMATED_FRAMES);
+		for (int i = 0; i < NUMBER_OF_ANIMATED_FRAMES; ++i) {
+			if (fallFramePixels[i].length != width * height) {
+				fallFramePixels[i] = new int[width * height];
+			}
+			int[] pixels = fallFramePixels[i];
+			int[] map = fallMaps[i];
+			int frameIndex = frames.size() + i;
+			renderedFrames.add(ForkJoinPool.commonPool()
+					.submit(() -> warp(sourcePixels, map, pixels, width, height, frameIndex, listener)));
+		}
 
-		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		for (int i = 0; i < NUMBER_OF_ANIMATED_FRAMES; ++i) {
+			BufferedImage processedImage = renderedFrames.get(i).join();
+
+			// Add the new frame to the gif. GIFFrame.DISPOSAL_RESTORE_TO_BACKGROUND is
+			// needed to make sure that the next frame starts from a blank slate.
+			// Last empty frame is displayed longer to make the gif feel more "natural".
+			GIFFrame frame = null;
+			if (i == NUMBER_OF_ANIMATED_FRAMES - 1) {
+				frame = new GIFFrame(processedImage, 200, GIFFrame.DISPOSAL_RESTORE_TO_BACKGROUND);
+			} else {
+				frame = new GIFFrame(processedImage, FRAME_DELAY_IN_MS, GIFFrame.DISPOSAL_RESTORE_TO_BACKGROUND);
+			}
+			frames.add(frame);
+		}
+		return frames;
+	}
 
-		try {
-			InputStream is = new ByteArrayInputStream(original);
-			BufferedImage image = ImageIO.read(is);
+	/**
+	 * Decodes the original image once and generates the approximation at each of the given sizes, from the largest
+	 * to the smallest. The source frames of each size are downscaled from those of the previous size, and a single
+	 * global palette quantized from the largest ones is shared by every size.
+	 *
+	 * @param sizes
+	 *            target sizes of the longer side, distinct and from the largest to the smallest
+	 * @return the encoded approximations in the order of the sizes, the same one for sizes that scale the image to the
+	 *         same dimensions
+	 */
+	private static List<ByteBufferOutputStream> approximate(InputStream original, int[] sizes, OutputFormat format,
+			int maxSizeInBytes, EncodeListener listener) throws Exception {
+
+		List<ByteBufferOutputStream> approximations = new ArrayList<>(sizes.length);
+		StageMeter meter = new StageMeter(listener);
+		List<int[][]> fallFramePixels = FALL_FRAME_PIXELS.get();
+		FALL_FRAME_PIXELS.remove();
+		while (fallFramePixels.size() < sizes.length) {
+			fallFramePixels.add(new int[NUMBER_OF_ANIMATED_FRAMES][0]);
+		}
+
+		try (FrameDecoder decoder = FrameDecoder.open(original, sizes[0])) {
 
-			LOG.info("Original image read successfully, starting to create gif.");
+			LOG.info("Original image opened successfully, starting to create gif.");
 
-			int originalWidth = image.getWidth();
-			int originalHeight = image.getHeight();
+			int originalWidth = decoder.getWidth();
+			int originalHeight = decoder.getHeight();
 
 			LOG.debug("Original image dimensions: {}x{}", originalWidth, originalHeight);
 
-			int targetWidth = Math.min(originalWidth, TARGET_SIZE_IN_PIXELS);
-			int targetHeight = Math.min(originalHeight, TARGET_SIZE_IN_PIXELS);
-
-			if (originalWidth > originalHeight) {
-				double downscaleRatio = (double) targetWidth / (double) originalWidth;
-				targetHeight = (int) Precision.round(downscaleRatio * originalHeight, 0);
-				LOG.debug("New target height is {}", targetHeight);
-			} else if (originalHeight > originalWidth) {
-				double downscaleRatio = (double) targetHeight / (double) originalHeight;
-				targetWidth = (int) Precision.round(downscaleRatio * originalWidth, 0);
-				LOG.debug("New target width is {}", targetWidth);
+			Dimension target = targetSize(originalWidth, originalHeight, sizes[0]);
+
+			// Source frames are downscaled as soon as they are decoded, so only the small
+			// frames are kept in memory.
+			List<BufferedImage> sourceFrames = new ArrayList<>();
+			List<Integer> sourceDelays = new ArrayList<>();
+			BufferedImage sourceFrame;
+			while (sourceFrames.size() < MAX_SOURCE_FRAMES && (sourceFrame = decoder.nextFrame()) != null) {
+				int frameIndex = sourceFrames.size();
+				meter.stageCompleted(Stage.DECODE, frameIndex, sourceFrame.getWidth() * sourceFrame.getHeight(), 0);
+				// The decoder draws the next frame on the same canvas, so the resized frame is always a new image.
+				sourceFrames.add(toImage(Downscaler.resize(sourceFrame, target.width, target.height,
+						DOWNSCALE_QUALITY), target.width, target.height));
+				sourceDelays.add(decoder.getDelay());
+				meter.stageCompleted(Stage.RESIZE, frameIndex, target.width * target.height, 0);
+			}
+			if (sourceFrames.isEmpty()) {
+				throw new IOException("No frames in the original image");
+			}
+
+			LOG.debug("Read {} frame(s) from the original image.", sourceFrames.size());
+
+			AnimatedGIFWriter gifWriter = null;
+			if (format != OutputFormat.APNG) {
+				gifWriter = new AnimatedGIFWriter(true);
+				gifWriter.setEncodeListener(listener);
+				// Every frame of every size is derived from the source frames, so a single
+				// palette quantized from them is shared by the whole animation.
+				BufferedImage image = sourceFrames.get(0);
+				int sampleStep = Math.max(1, sourceFrames.size() * image.getWidth() * image.getHeight()
+						/ MAX_PALETTE_SAMPLES);
+				gifWriter.setGlobalPalette(sourceFrames, sampleStep);
 			}
 
-			LOG.debug("Target image dimensions: {}x{}.", targetWidth, targetHeight);
-			image = Scalr.resize(image, Scalr.Method.ULTRA_QUALITY, Scalr.Mode.FIT_EXACT, targetWidth, targetHeight,
-					(BufferedImageOp) null);
-
-			originalWidth = image.getWidth();
-			originalHeight = image.getHeight();
-
-			// Write the first frame, where the "face" is stationary for a while.
-			AnimatedGIFWriter writer = new AnimatedGIFWriter(true);
-			writer.prepareForWrite(os, -1, -1);
-			writer.writeFrame(os, image, 1200);
-
-			// Transformation variables
-
-			// Negative X shear creates a parallelogram that leans to the right =>
-			// . _________
-			//  /        / . = origin after shear
-			// /________/
-			//
-			// Shear does not move the actual origin, so some compensation is added to
-			// translation transform to get some sort of approximation where the "actual"
-			// origin is.
-			double shearX = -0.05;
-			double shearY = 0.00;
-			int shearCompensation = (int) Precision.round(targetWidth / 24, 0);
-
-			// Initial scaling values. Y axis scale value is decremented after every frame
-			// in order to create a better approximation of falling gradually.
-			double scaleX = 0.95;
-			double scaleY = 0.95;
-			double yScaleDecrement = 0.03;
-
-			for (int i = 0; i < NUMBER_OF_ANIMATED_FRAMES; ++i) {
-
-				int newX = (int) (image.getWidth() * scaleX);
-				int newY = (int) (image.getHeight() * scaleY);
-
-				BufferedImage processedImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
-				Graphics2D g = processedImage.createGraphics();
-
-				// Three transformations are applied to the new frame:
-				// 1. Origin is moved so that the bottom right corner after scaling matches the original
-				// bottom right corner (before shear and "sliding out of image" compensation).
-				// 2. Then, the image is scaled to the new dimensions calculated above.
-				// 3. Finally, negative X shear is applied (explained above).
-				g.translate(originalWidth - newX + shearCompensation, originalHeight - newY + 0.5);
-				g.scale(scaleX, scaleY);
-				g.shear(shearX, shearY);
-
-				// Bicubic interpolation results in better image quality in downscaled images.
-				// Dithering is handled by the gif writer.
-				Map<RenderingHints.Key, Object> renderingHints = new HashMap<>();
-				renderingHints.put(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
-				renderingHints.put(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
-				renderingHints.put(RenderingHints.KEY_DITHERING, RenderingHints.VALUE_DITHER_DISABLE);
-
-				g.setRenderingHints(renderingHints);
-				g.drawRenderedImage(image, null);
-
-				// Set the newly created frame as basis for the next one.
-				image = processedImage;
-				scaleY -= yScaleDecrement;
-
-				// Write the new frame to the gif. GIFFrame.DISPOSAL_RESTORE_TO_BACKGROUND is
-				// needed to make sure that the next frame starts from a blank slate.
-				// Last empty frame is displayed longer to make the gif feel more "natural".
-				GIFFrame frame = null;
-				if (i == NUMBER_OF_ANIMATED_FRAMES - 1) {
-					frame = new GIFFrame(processedImage, 200, GIFFrame.DISPOSAL_RESTORE_TO_BACKGROUND);
-				} else {
-					frame = new GIFFrame(processedImage, FRAME_DELAY_IN_MS, GIFFrame.DISPOSAL_RESTORE_TO_BACKGROUND);
+			EncodingAttempt settings = ENCODING_ATTEMPTS.get(0);
+			for (int i = 0; i < sizes.length; ++i) {
+				if (i > 0) {
+					Dimension previous = target;
+					target = targetSize(originalWidth, originalHeight, sizes[i]);
+					if (target.equals(previous)) {
+						// The image is not scaled up, so a size larger than the image gets the same gif as the next
+						approximations.add(approximations.get(i - 1));
+						continue;
+					}
+					List<BufferedImage> downscaledFrames = new ArrayList<>(sourceFrames.size());
+					for (int j = 0; j < sourceFrames.size(); ++j) {
+						meter.restart();
+						downscaledFrames.add(toImage(Downscaler.resize(sourceFrames.get(j), target.width,
+								target.height, DOWNSCALE_QUALITY), target.width, target.height));
+						meter.stageCompleted(Stage.RESIZE, j, target.width * target.height, 0);
+					}
+					sourceFrames = downscaledFrames;
 				}
-				writer.writeFrame(os, frame);
+
+				List<GIFFrame> frames = animate(sourceFrames, sourceDelays, fallFramePixels.get(i), listener);
+				ByteBufferOutputStream os = new ByteBufferOutputStream(OUTPUT_BUFFER_SIZE_IN_BYTES);
+				settings = encode(format, gifWriter, settings, frames, maxSizeInBytes, os, listener);
+				approximations.add(os);
+			}
+		} finally {
+			FALL_FRAME_PIXELS.set(fallFramePixels);
+		}
+		return approximations;
+	}
+
+	/**
+	 * Encodes the frames with the settings of each attempt in turn until the image fits in the size budget. The
+	 * rendered frames and the palette samples are reused by every attempt. APNG frames are written as they are, so for
+	 * APNG only the attempts that drop or scale down frames are made. The last attempt is kept even if it does not fit.
+	 *
+	 * @param gifWriter
+	 *            writer with the global palette set, null for APNG
+	 * @param settings
+	 *            the attempt the writer is currently set up for
+	 * @return the attempt the writer is set up for afterwards
+	 */
+	private static EncodingAttempt encode(OutputFormat format, AnimatedGIFWriter gifWriter, EncodingAttempt settings,
+			List<GIFFrame> frames, int maxSizeInBytes, ByteBufferOutputStream os, EncodeListener listener)
+			throws Exception {
+		EncodingAttempt previous = ENCODING_ATTEMPTS.get(0);
+		AnimatedPNGWriter pngWriter = null;
+		if (gifWriter == null) {
+			pngWriter = new AnimatedPNGWriter();
+			pngWriter.writeAnimatedPNG(frames, os);
+		} else {
+			// The writer may have been left with the settings of a later attempt by another size.
+			if (settings.colors != previous.colors) {
+				gifWriter.setGlobalPaletteSize(previous.colors);
+			}
+			gifWriter.setDitherMode(previous.ditherMode);
+			gifWriter.setLossyColorError(previous.lossyColorError);
+			// Frames are encoded concurrently and written out in order.
+			gifWriter.writeAnimatedGIF(frames, os);
+		}
+
+		int attempts = 1;
+		List<GIFFrame> attemptFrames = frames;
+		for (int i = 1; maxSizeInBytes > 0 && i < ENCODING_ATTEMPTS.size() && os.size() > maxSizeInBytes; ++i) {
+			EncodingAttempt attempt = ENCODING_ATTEMPTS.get(i);
+			boolean resample = attempt.frameStep != previous.frameStep || attempt.scale != previous.scale;
+			if (pngWriter != null && !resample) {
+				continue;
+			}
+			LOG.debug("{} of {} bytes does not fit in {} bytes with {}.", format, os.size(), maxSizeInBytes,
+					previous);
+
+			if (resample) {
+				attemptFrames = resample(frames, attempt.frameStep, attempt.scale, listener);
+			}
+			os.reset();
+			if (pngWriter != null) {
+				pngWriter.writeAnimatedPNG(attemptFrames, os);
+			} else {
+				if (attempt.colors != previous.colors) {
+					gifWriter.setGlobalPaletteSize(attempt.colors);
+				}
+				gifWriter.setDitherMode(attempt.ditherMode);
+				gifWriter.setLossyColorError(attempt.lossyColorError);
+				gifWriter.writeAnimatedGIF(attemptFrames, os);
+			}
+			previous = attempt;
+			attempts++;
+		}
+		if (maxSizeInBytes > 0 && os.size() > maxSizeInBytes) {
+			LOG.warn("{} of {} bytes does not fit in {} bytes even with {}.", format, os.size(), maxSizeInBytes,
+					previous);
+		}
+		LOG.info("{} of {} bytes created in {} attempt(s).", format, os.size(), attempts);
+		listener.encodeCompleted(format, attemptFrames.size(), os.size(), attempts);
+		return previous;
+	}
+
+	/**
+	 * Returns the sampling maps of the fall frames of an image of the given size, compiling them on first use. The
+	 * fall is the same for every image, so the maps only depend on the size.
+	 */
+	static int[][] fallMaps(int width, int height) {
+		Dimension key = new Dimension(width, height);
+		synchronized (FALL_MAP_CACHE) {
+			int[][] maps = FALL_MAP_CACHE.get(key);
+			if (maps != null) {
+				return maps;
 			}
+		}
+		// Compile outside the lock, two threads racing on the same size just produce equal maps
+		List<AffineTransform> transforms = fallTransforms(width, height);
+		int[][] maps = new int[transforms.size()][];
+		for (int i = 0; i < maps.length; ++i) {
+			maps[i] = AffineWarp.compile(width, height, transforms.get(i), width, height);
+		}
+		synchronized (FALL_MAP_CACHE) {
+			FALL_MAP_CACHE.put(key, maps);
+		}
+		return maps;
+	}
 
-			writer.finishWrite(os);
-			os.close();
+	/**
+	 * Returns the transforms from the source image to each frame of the fall. Each frame moves the previous frame a
+	 * little further, so the transforms of all the frames so far are combined. Every frame can then be rendered
+	 * straight from the source image, which is only resampled once instead of getting blurrier with every frame.
+	 */
+	private static List<AffineTransform> fallTransforms(int width, int height) {
+
+		// Transformation variables
+
+		// Negative X shear creates a parallelogram that leans to the right =>
+		// . _________
+		//  /        / . = origin after shear
+		// /________/
+		//
+		// Shear does not move the actual origin, so some compensation is added to
+		// translation transform to get some sort of approximation where the "actual"
+		// origin is.
+		double shearX = -0.05;
+		double shearY = 0.00;
+		int shearCompensation = (int) Precision.round(width / 24, 0);
+
+		// Initial scaling values. Y axis scale value is decremented after every frame
+		// in order to create a better approximation of falling gradually.
+		double scaleX = 0.95;
+		double scaleY = 0.95;
+		double yScaleDecrement = 0.03;
+
+		List<AffineTransform> transforms = new ArrayList<>(NUMBER_OF_ANIMATED_FRAMES);
+		AffineTransform transform = new AffineTransform();
+		for (int i = 0; i < NUMBER_OF_ANIMATED_FRAMES; ++i) {
+
+			int newX = (int) (width * scaleX);
+			int newY = (int) (height * scaleY);
+
+			// Three transformations are applied to the new frame:
+			// 1. Origin is moved so that the bottom right corner after scaling matches the original
+			// bottom right corner (before shear and "sliding out of image" compensation).
+			// 2. Then, the image is scaled to the new dimensions calculated above.
+			// 3. Finally, negative X shear is applied (explained above).
+			AffineTransform step = new AffineTransform();
+			step.translate(width - newX + shearCompensation, height - newY + 0.5);
+			step.scale(scaleX, scaleY);
+			step.shear(shearX, shearY);
+
+			transform = new AffineTransform(transform);
+			transform.preConcatenate(step);
+			transforms.add(transform);
+			scaleY -= yScaleDecrement;
+		}
+		return transforms;
+	}
+
+	/**
+	 * Generates the approximation of the given image in the given format. Animated GIF and APNG images play through
+	 * once before the fall, which starts from their last frame. If the image does not fit in the given number of
+	 * bytes, quality is traded for size: lossy LZW compression is enabled first, then dithering is turned off, the
+	 * palette gets smaller, every other frame is dropped and finally the frames are scaled down.
+	 *
+	 * @param original
+	 *            the original image file
+	 * @param format
+	 *            format of the approximation
+	 * @param maxSizeInBytes
+	 *            size budget of the approximation, 0 for no limit
+	 * @return a read-only buffer with the approximation, empty if it could not be generated
+	 * @see #generate(byte[], OutputFormat, int, EncodeListener)
+	 */
+	public static ByteBuffer generate(byte[] original, OutputFormat format, int maxSizeInBytes) {
+		return generate(original, format, maxSizeInBytes, EncodeListener.NONE);
+	}
 
+	/**
+	 * Generates the approximation of the given image in the given format, reporting the time, allocated bytes, pixels
+	 * and palette size of every stage and frame to the given listener.
+	 *
+	 * @param original
+	 *            the original image file
+	 * @param format
+	 *            format of the approximation
+	 * @param maxSizeInBytes
+	 *            size budget of the approximation, 0 for no limit
+	 * @param listener
+	 *            listener of the stages, {@link EncodeListener#NONE} to measure nothing
+	 * @return a read-only buffer with the approximation, empty if it could not be generated
+	 * @see #generate(byte[], OutputFormat, int)
+	 */
+	public static ByteBuffer generate(byte[] original, OutputFormat format, int maxSizeInBytes,
+			EncodeListener listener) {
+
+		try {
+			ByteBuffer approximation = approximate(new ByteArrayInputStream(original),
+					new int[] { TARGET_SIZE_IN_PIXELS }, format, maxSizeInBytes, listener).get(0).toByteBuffer();
+			LOG.info("{} created, returning buffer.", format);
+			return approximation;
+		} catch (Exception e) {
+			LOG.error("Exception occured when generating {}.", format, e);
+			return ByteBuffer.allocate(0);
+		}
+	}
+
+	/**
+	 * Generates the approximation of the image read from the given stream in the given format and writes it to the
+	 * given stream, reporting the stages to the given listener. The image is decoded straight from the stream without
+	 * reading it into memory first. Only the encoded approximation is buffered, because it is not known to fit in the
+	 * size budget until it has been encoded, and it is written out once it is complete.
+	 *
+	 * @param original
+	 *            stream of the original image file, closed before returning
+	 * @param destination
+	 *            stream the approximation is written to, left open
+	 * @param format
+	 *            format of the approximation
+	 * @param maxSizeInBytes
+	 *            size budget of the approximation, 0 for no limit
+	 * @param listener
+	 *            listener of the stages, {@link EncodeListener#NONE} to measure nothing
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if the image could not be read or the approximation could not be generated or written, in which
+	 *             case nothing has been written
+	 * @see #generate(byte[], OutputFormat, int, EncodeListener)
+	 */
+	public static int generate(InputStream original, OutputStream destination, OutputFormat format,
+			int maxSizeInBytes, EncodeListener listener) throws IOException {
+		ByteBufferOutputStream os;
+		try {
+			os = approximate(original, new int[] { TARGET_SIZE_IN_PIXELS }, format, maxSizeInBytes, listener).get(0);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Could not generate " + format, e);
+		}
+		os.writeTo(destination);
+		LOG.info("{} created, written to the stream.", format);
+		return os.size();
+	}
+
+	/**
+	 * Generates approximations of the image read from the given stream at several sizes from a single decode. The
+	 * source frames of each size are downscaled from those of the next larger size, and every gif is mapped to the
+	 * same global palette, so each additional size costs a fraction of a generation of its own. Images are never scaled
+	 * up, so the sizes larger than the image all get the gif of the image at its own size, generated once and returned
+	 * in the same buffer.
+	 *
+	 * @param original
+	 *            stream of the original image file, closed before returning
+	 * @param format
+	 *            format of the approximations
+	 * @param maxSizeInBytes
+	 *            size budget of each approximation, 0 for no limit
+	 * @param listener
+	 *            listener of the stages, {@link EncodeListener#encodeCompleted} is called once for every gif
+	 * @param sizes
+	 *            target sizes of the longer side of the approximations in pixels
+	 * @return read-only buffers with the approximations by target size, from the largest to the smallest
+	 * @throws IOException
+	 *             if the image could not be read or the approximations could not be generated
+	 */
+	public static Map<Integer, ByteBuffer> generate(InputStream original, OutputFormat format, int maxSizeInBytes,
+			EncodeListener listener, int... sizes) throws IOException {
+		if (sizes.length == 0 || Arrays.stream(sizes).anyMatch(size -> size < 1)) {
+			throw new IllegalArgumentException("Invalid sizes: " + Arrays.toString(sizes));
+		}
+		int[] distinctSizes = Arrays.stream(sizes).map(size -> -size).sorted().distinct().map(size -> -size).toArray();
+		List<ByteBufferOutputStream> approximations;
+		try {
+			approximations = approximate(original, distinctSizes, format, maxSizeInBytes, listener);
+		} catch (IOException e) {
+			throw e;
 		} catch (Exception e) {
-			LOG.error("Exception occured when generating gif.", e);
-			return ArrayUtils.EMPTY_BYTE_ARRAY;
+			throw new IOException("Could not generate " + format, e);
+		}
+		Map<Integer, ByteBuffer> buffers = new LinkedHashMap<>();
+		ByteBuffer buffer = null;
+		for (int i = 0; i < distinctSizes.length; ++i) {
+			if (i == 0 || approximations.get(i) != approximations.get(i - 1)) {
+				buffer = approximations.get(i).toByteBuffer();
+			}
+			buffers.put(distinctSizes[i], buffer);
 		}
+		LOG.info("{} created in {} sizes.", format, distinctSizes.length);
+		return buffers;
+	}
+
+	/**
+	 * Generates the approximation gif of the given image.
+	 *
+	 * @param original
+	 *            the original image file
+	 * @return a read-only buffer with the gif, empty if the gif could not be generated
+	 * @see #generate(byte[], OutputFormat, int)
+	 */
+	public static ByteBuffer generateGif(byte[] original) {
+		return generate(original, OutputFormat.GIF, 0);
+	}
+
+	/**
+	 * Generates the approximation gif of the given image, trading quality for size until it fits in the given number
+	 * of bytes.
+	 *
+	 * @param original
+	 *            the original image file
+	 * @param maxSizeInBytes
+	 *            size budget of the gif, 0 for no limit
+	 * @return a read-only buffer with the gif, empty if the gif could not be generated
+	 * @see #generate(byte[], OutputFormat, int)
+	 */
+	public static ByteBuffer generateGif(byte[] original, int maxSizeInBytes) {
+		return generate(original, OutputFormat.GIF, maxSizeInBytes);
+	}
+
+	/**
+	 * Generates the approximation gif of the image read from the given stream and writes it to the given stream.
+	 *
+	 * @param original
+	 *            stream of the original image file, closed before returning
+	 * @param destination
+	 *            stream the gif is written to, left open
+	 * @return the number of bytes written
+	 * @throws IOException
+	 *             if the gif could not be generated or written
+	 * @see #generate(InputStream, OutputStream, OutputFormat, int, EncodeListener)
+	 */
+	public static int generateGif(InputStream original, OutputStream destination) throws IOException {
+		return generate(original, destination, OutputFormat.GIF, 0, EncodeListener.NONE);
+	}
+
+	// Keeps every frameStep'th frame, shown for as long as the frames it replaces, scaled by the given factor
+	private static List<GIFFrame> resample(List<GIFFrame> frames, int frameStep, double scale,
+			EncodeListener listener) {
+		List<GIFFrame> resampled = new ArrayList<>(frames.size() / frameStep + 1);
+		StageMeter meter = new StageMeter(listener);
+		for (int i = 0; i < frames.size(); i += frameStep) {
+			int delay = 0;
+			for (int j = i; j < Math.min(i + frameStep, frames.size()); ++j) {
+				delay += frames.get(j).getDelay();
+			}
+			BufferedImage image = frames.get(i).getFrame();
+			if (scale < 1.0) {
+				int width = Math.max(1, (int) Precision.round(image.getWidth() * scale, 0));
+				int height = Math.max(1, (int) Precision.round(image.getHeight() * scale, 0));
+				meter.restart();
+				image = toImage(Downscaler.resize(image, width, height, DOWNSCALE_QUALITY), width, height);
+				meter.stageCompleted(Stage.RESIZE, resampled.size(), width * height, 0);
+			}
+			resampled.add(new GIFFrame(image, delay, GIFFrame.DISPOSAL_RESTORE_TO_BACKGROUND));
+		}
+		return resampled;
+	}
+
+	// Size of the image scaled to the given size on its longer side, never scaled up
+	private static Dimension targetSize(int width, int height, int size) {
+		int targetWidth = Math.min(width, size);
+		int targetHeight = Math.min(height, size);
+
+		if (width > height) {
+			double downscaleRatio = (double) targetWidth / (double) width;
+			targetHeight = (int) Precision.round(downscaleRatio * height, 0);
+			LOG.debug("New target height is {}", targetHeight);
+		} else if (height > width) {
+			double downscaleRatio = (double) targetHeight / (double) height;
+			targetWidth = (int) Precision.round(downscaleRatio * width, 0);
+			LOG.debug("New target width is {}", targetWidth);
+		}
+
+		LOG.debug("Target image dimensions: {}x{}.", targetWidth, targetHeight);
+		return new Dimension(targetWidth, targetHeight);
+	}
+
+	// Wraps ARGB pixels in an image without copying them, so the writers read them directly
+	private static BufferedImage toImage(int[] pixels, int width, int height) {
+		return new BufferedImage(ColorModel.getRGBdefault(),
+				Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), width, height, width, ARGB_MASKS,
+						null),
+				false, null);
+	}
 
-		LOG.info("GIF created, returning byte array.");
-		return os.toByteArray();
+	/**
+	 * Renders the premultiplied source pixels with the given sampling map into the given pixels, which then back the
+	 * returned frame. The writers read the pixels of such an image without copying them.
+	 */
+	private static BufferedImage warp(int[] source, int[] map, int[] pixels, int width, int height, int frameIndex,
+			EncodeListener listener) {
+		StageMeter meter = new StageMeter(listener);
+		// Bicubic interpolation results in better image quality in downscaled images.
+		// Dithering is handled by the gif writer.
+		AffineWarp.warp(source, width, height, map, Interpolation.BICUBIC, pixels);
+		BufferedImage processedImage = toImage(pixels, width, height);
+		meter.stageCompleted(Stage.WARP, frameIndex, width * height, 0);
+		return processedImage;
 	}
 }
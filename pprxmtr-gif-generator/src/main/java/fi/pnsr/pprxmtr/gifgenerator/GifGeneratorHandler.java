@@ -1,14 +1,18 @@
 package fi.pnsr.pprxmtr.gifgenerator;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.validator.routines.UrlValidator;
 import org.apache.http.HttpHeaders;
@@ -34,8 +38,55 @@ import fi.pnsr.pprxmtr.sns.SNS;
 
 public class GifGeneratorHandler implements RequestHandler<SNSEvent, ApiGatewayResponse> {
 
+	// Size of the gif posted to Slack, stored under the key it is looked up with. The other sizes are stored for retina
+	// clients and thumbnails under keys with the size in them.
+	private static final int DEFAULT_GIF_SIZE_IN_PIXELS = 96;
+
+	// All the sizes are generated from a single decode of the original image.
+	private static final int[] GIF_SIZES_IN_PIXELS = { 32, 64, DEFAULT_GIF_SIZE_IN_PIXELS, 128 };
+
 	private static final Logger LOG = LogManager.getLogger();
 
+	// Larger gifs are encoded again with lower quality, they preview poorly in Slack and cost more to serve from S3.
+	private static final int MAX_GIF_SIZE_IN_BYTES = 128 * 1024;
+
+	private static final OutputFormat OUTPUT_FORMAT = OutputFormat.GIF;
+
+	/**
+	 * Generates the approximations of an image with the sizes, output format and size budget of the handler. The
+	 * regression gate of pprxmtr-benchmarks measures this same call.
+	 *
+	 * @param imageFile
+	 *            stream of the original image file
+	 * @return read-only buffers with the approximations by size
+	 * @throws IOException
+	 *             if the image cannot be read or the approximations cannot be generated
+	 */
+	static Map<Integer, ByteBuffer> generate(InputStream imageFile) throws IOException {
+		// One summary line per gif tells which stage a slow request spent its time in.
+		return GifGenerator.generate(imageFile, OUTPUT_FORMAT, MAX_GIF_SIZE_IN_BYTES, new LoggingEncodeListener(),
+				GIF_SIZES_IN_PIXELS);
+	}
+
+	/**
+	 * Picks the sizes whose approximations are stored. An image smaller than some of the sizes gets one gif for all of
+	 * them, which is stored once, under the key of the default size if it is one of them.
+	 *
+	 * @param gifs
+	 *            approximations by size, as returned by {@link #generate(InputStream)}
+	 * @return the sizes to store, the default size first
+	 */
+	static List<Integer> sizesToStore(Map<Integer, ByteBuffer> gifs) {
+		List<Integer> sizes = new ArrayList<>(gifs.keySet());
+		if (sizes.remove(Integer.valueOf(DEFAULT_GIF_SIZE_IN_PIXELS))) {
+			sizes.add(0, DEFAULT_GIF_SIZE_IN_PIXELS);
+		}
+		// Sizes that got the same gif share its buffer
+		Set<ByteBuffer> stored = Collections.newSetFromMap(new IdentityHashMap<>());
+		sizes.removeIf(size -> !stored.add(gifs.get(size)));
+		return sizes;
+	}
+
 	@Override
 	public ApiGatewayResponse handleRequest(SNSEvent input, Context context) {
 		LOG.info("Loading Gif Generator Java Lambda handler.");
@@ -45,7 +96,7 @@ public class GifGeneratorHandler implements RequestHandler<SNSEvent, ApiGatewayR
 		if (CollectionUtils.isNotEmpty(input.getRecords())) {
 			try {
 				JsonNode json = mapper.readTree(input.getRecords().get(0).getSNS().getMessage());
-				byte[] gif = ArrayUtils.EMPTY_BYTE_ARRAY;
+				Map<Integer, ByteBuffer> gifs = Collections.emptyMap();
 
 				if (json.has("emojiUrl")) {
 					HttpClient client = HttpClientBuilder.create().build();
@@ -56,38 +107,49 @@ public class GifGeneratorHandler implements RequestHandler<SNSEvent, ApiGatewayR
 					LOG.info("Get image status: {}.", getImageStatus);
 
 					if (StringUtils.contains(getImageResponse.getFirstHeader(HttpHeaders.CONTENT_TYPE).getValue(), "image")) {
-						byte[] imageFile = IOUtils.toByteArray(getImageResponse.getEntity().getContent());
-						gif = GifGenerator.generateGif(imageFile);
+						// The image is decoded straight from the response without reading it into memory first.
+						try (InputStream imageFile = getImageResponse.getEntity().getContent()) {
+							gifs = generate(imageFile);
+						} catch (IOException e) {
+							LOG.error("Exception occured when generating {}.", OUTPUT_FORMAT, e);
+						}
 					} else {
 						LOG.error("Given image URL did not return an image according to mime type!");
 					}
 				}
 
-				if (ArrayUtils.isNotEmpty(gif)) {
-					LOG.info("Gif created successfully, storing in S3.");
+				if (!gifs.isEmpty()) {
+					LOG.info("Gifs created successfully, storing in S3.");
 					String emoji = json.get("text").asText();
 					String emojiName = StringUtils.removeEnd(StringUtils.removeStart(StringUtils.strip(emoji), ":"), ":");
 					emojiName = emojiName.replaceAll("ä", "a").replaceAll("ö", "o").replaceAll("å", "o");
 
-					InputStream is = new ByteArrayInputStream(gif);
-					ObjectMetadata metadata = new ObjectMetadata();
-					metadata.setContentLength(gif.length);
-					metadata.setContentType("image/gif");
-
 					if (UrlValidator.getInstance().isValid(emojiName)) {
 						emojiName = CharMatcher.inRange('a', 'z').or(CharMatcher.inRange('0', '9'))
 								.retainFrom(StringUtils.substringAfterLast(emojiName, "/"));
 					}
 
-					String filenamePrefix = emojiName + "_approximated_";
-					if (!S3.fileExistsInBucket(filenamePrefix)) {
-						S3.storeFileInBucket(filenamePrefix + System.currentTimeMillis() + ".gif", is, metadata);
+					for (int size : sizesToStore(gifs)) {
+						ByteBuffer gif = gifs.get(size);
+						String filenamePrefix = size == DEFAULT_GIF_SIZE_IN_PIXELS ? emojiName + "_approximated_"
+								: emojiName + "_" + size + "px_approximated_";
+						if (!S3.fileExistsInBucket(filenamePrefix)) {
+							// The gif buffer is streamed to S3 as is, without copying it to an array first.
+							InputStream is = new ByteBufferInputStream(gif);
+							ObjectMetadata metadata = new ObjectMetadata();
+							metadata.setContentLength(gif.remaining());
+							metadata.setContentType(OUTPUT_FORMAT.getContentType());
+
+							String filename = filenamePrefix + System.currentTimeMillis() + "."
+									+ OUTPUT_FORMAT.getFileExtension();
+							S3.storeFileInBucket(filename, is, metadata);
+						}
 					}
 
-					LOG.info("Image stored in S3, publishing to topic s3-file-ready");
+					LOG.info("Images stored in S3, publishing to topic s3-file-ready");
 					SNS.publish("s3-file-ready", mapper.writeValueAsString(json)).get();
 				} else {
-					LOG.error("Gif generator returned an empty byte array, sending error response");
+					LOG.error("Gif generator returned no gifs, sending error response");
 					SNS.publish("gif-generator-error", mapper.writeValueAsString(json)).get();
 				}
 			} catch (IOException | InterruptedException | ExecutionException e) {
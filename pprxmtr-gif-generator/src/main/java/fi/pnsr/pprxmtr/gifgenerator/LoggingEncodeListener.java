@@ -0,0 +1,72 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Sums up the measurements of each stage and logs them as a single line of key=value pairs when the approximation is
+ * complete, for example {@code format=GIF bytes=27788 frames=15 attempts=1 decode.frames=1 decode.ms=3.1 ...}. For
+ * each stage the line has the number of frames it was completed for, the total time, the slowest frame, the bytes
+ * allocated and the pixels processed, and the largest palette used. The sums start over after every line, so when
+ * several sizes are generated at once each line covers the work done since the previous one.
+ */
+public class LoggingEncodeListener implements EncodeListener {
+
+	private static final Logger LOG = LogManager.getLogger();
+
+	private final long[] allocatedBytes = new long[Stage.values().length];
+
+	private final int[] colors = new int[Stage.values().length];
+
+	private final int[] frames = new int[Stage.values().length];
+
+	private final long[] maxNanos = new long[Stage.values().length];
+
+	private final long[] nanos = new long[Stage.values().length];
+
+	private final long[] pixels = new long[Stage.values().length];
+
+	@Override
+	public synchronized void encodeCompleted(OutputFormat format, int frameCount, int sizeInBytes, int attempts) {
+		StringBuilder summary = new StringBuilder(512);
+		summary.append("format=").append(format).append(" bytes=").append(sizeInBytes).append(" frames=")
+				.append(frameCount).append(" attempts=").append(attempts);
+		for (Stage stage : Stage.values()) {
+			int i = stage.ordinal();
+			if (frames[i] == 0) {
+				continue;
+			}
+			String prefix = " " + stage.name().toLowerCase(Locale.ROOT) + ".";
+			summary.append(prefix).append("frames=").append(frames[i]);
+			summary.append(prefix).append("ms=").append(String.format(Locale.ROOT, "%.2f", nanos[i] / 1e6));
+			summary.append(prefix).append("maxFrameMs=").append(String.format(Locale.ROOT, "%.2f", maxNanos[i] / 1e6));
+			summary.append(prefix).append("allocatedBytes=").append(allocatedBytes[i]);
+			summary.append(prefix).append("pixels=").append(pixels[i]);
+			if (colors[i] > 0) {
+				summary.append(prefix).append("colors=").append(colors[i]);
+			}
+		}
+		LOG.info(summary);
+		Arrays.fill(allocatedBytes, 0);
+		Arrays.fill(colors, 0);
+		Arrays.fill(frames, 0);
+		Arrays.fill(maxNanos, 0);
+		Arrays.fill(nanos, 0);
+		Arrays.fill(pixels, 0);
+	}
+
+	@Override
+	public synchronized void stageCompleted(Stage stage, int frame, long nanos, long allocatedBytes, int pixels,
+			int colors) {
+		int i = stage.ordinal();
+		this.frames[i]++;
+		this.nanos[i] += nanos;
+		this.maxNanos[i] = Math.max(this.maxNanos[i], nanos);
+		this.allocatedBytes[i] += allocatedBytes;
+		this.pixels[i] += pixels;
+		this.colors[i] = Math.max(this.colors[i], colors);
+	}
+}
@@ -0,0 +1,33 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+/**
+ * Image formats the approximation can be generated in.
+ */
+public enum OutputFormat {
+	/**
+	 * Animated PNG with full 8-bit alpha. Nothing is quantized or dithered, so it is cheaper to generate than a GIF,
+	 * but usually larger.
+	 */
+	APNG("image/apng", "png"),
+	/**
+	 * Animated GIF with a single palette shared by all frames.
+	 */
+	GIF("image/gif", "gif");
+
+	private final String contentType;
+
+	private final String fileExtension;
+
+	private OutputFormat(String contentType, String fileExtension) {
+		this.contentType = contentType;
+		this.fileExtension = fileExtension;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public String getFileExtension() {
+		return fileExtension;
+	}
+}
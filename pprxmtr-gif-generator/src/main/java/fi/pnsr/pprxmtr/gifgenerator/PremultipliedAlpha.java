@@ -0,0 +1,56 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+/**
+ * Conversions between ARGB pixels and pixels whose colors are premultiplied by their alpha, as the resamplers
+ * interpolate them and as the premultiplied image types store them. Both directions round to the nearest value.
+ */
+final class PremultipliedAlpha {
+
+	/**
+	 * @return the color channel value multiplied by alpha / 255, rounded, without a division
+	 */
+	static int premultiply(int value, int alpha) {
+		int t = value * alpha + 0x80;
+		return t + (t >> 8) >> 8;
+	}
+
+	/**
+	 * Converts ARGB pixels to premultiplied ARGB.
+	 *
+	 * @return a new array with the premultiplied pixels, fully transparent pixels being 0
+	 */
+	static int[] premultiply(int[] argb) {
+		int[] premultiplied = new int[argb.length];
+		for (int i = 0; i < argb.length; i++) {
+			int alpha = argb[i] >>> 24;
+			if (alpha == 0xff) {
+				premultiplied[i] = argb[i];
+			} else if (alpha != 0) {
+				premultiplied[i] = alpha << 24 | premultiply(argb[i] >> 16 & 0xff, alpha) << 16
+						| premultiply(argb[i] >> 8 & 0xff, alpha) << 8 | premultiply(argb[i] & 0xff, alpha);
+			}
+		}
+		return premultiplied;
+	}
+
+	/**
+	 * Converts premultiplied ARGB pixels to ARGB in place. Colors larger than their alpha are clamped, fully
+	 * transparent pixels become 0.
+	 */
+	static void unpremultiply(int[] pixels) {
+		for (int i = 0; i < pixels.length; i++) {
+			int alpha = pixels[i] >>> 24;
+			if (alpha == 0) {
+				pixels[i] = 0;
+			} else if (alpha != 0xff) {
+				int red = Math.min(((pixels[i] >> 16 & 0xff) * 0xff + (alpha >> 1)) / alpha, 0xff);
+				int green = Math.min(((pixels[i] >> 8 & 0xff) * 0xff + (alpha >> 1)) / alpha, 0xff);
+				int blue = Math.min(((pixels[i] & 0xff) * 0xff + (alpha >> 1)) / alpha, 0xff);
+				pixels[i] = alpha << 24 | red << 16 | green << 8 | blue;
+			}
+		}
+	}
+
+	private PremultipliedAlpha() {
+	}
+}
@@ -0,0 +1,64 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.lang.management.ManagementFactory;
+
+import com.sun.management.ThreadMXBean;
+
+import fi.pnsr.pprxmtr.gifgenerator.EncodeListener.Stage;
+
+/**
+ * Measures consecutive stages on the calling thread and reports them to an {@link EncodeListener}. Each reported stage
+ * starts where the previous one ended, so a meter is confined to one thread. Nothing is measured for
+ * {@link EncodeListener#NONE}.
+ */
+final class StageMeter {
+
+	private static final ThreadMXBean THREADS;
+
+	static {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		THREADS = threads instanceof ThreadMXBean && ((ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+				? (ThreadMXBean) threads : null;
+	}
+
+	// Bytes allocated so far by the calling thread, 0 if the JVM cannot tell
+	private static long allocatedBytes() {
+		return THREADS != null ? THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+
+	private long allocatedBytes;
+
+	private final boolean enabled;
+
+	private final EncodeListener listener;
+
+	private long nanos;
+
+	StageMeter(EncodeListener listener) {
+		this.listener = listener;
+		enabled = listener != EncodeListener.NONE;
+		restart();
+	}
+
+	/**
+	 * Starts measuring the next stage from now, leaving out everything done since the previous stage.
+	 */
+	void restart() {
+		if (enabled) {
+			allocatedBytes = allocatedBytes();
+			nanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Reports the stage that started when the previous one was reported, and starts the next one.
+	 */
+	void stageCompleted(Stage stage, int frame, int pixels, int colors) {
+		if (enabled) {
+			long elapsed = System.nanoTime() - nanos;
+			long allocated = allocatedBytes() - allocatedBytes;
+			listener.stageCompleted(stage, frame, elapsed, allocated, pixels, colors);
+			restart();
+		}
+	}
+}
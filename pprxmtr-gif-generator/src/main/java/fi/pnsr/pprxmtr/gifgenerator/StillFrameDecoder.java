@@ -0,0 +1,106 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes any image readable by ImageIO as a single frame. The dimensions are read from the header first, and the
+ * image is decoded subsampled to no less than twice the target size, so the full resolution image is never allocated.
+ */
+class StillFrameDecoder implements FrameDecoder {
+
+	// Decoding still reads every pixel even when subsampled, so larger images are rejected to bound the time it takes
+	static final long MAX_PIXELS = 1L << 26;
+
+	private boolean decoded;
+
+	private final int height;
+
+	private final InputStream input;
+
+	private final ImageReader reader;
+
+	private final ImageInputStream stream;
+
+	private final int targetSize;
+
+	private final int width;
+
+	StillFrameDecoder(InputStream is, int targetSize) throws IOException {
+		input = is;
+		this.targetSize = targetSize;
+		stream = ImageIO.createImageInputStream(is);
+		Iterator<ImageReader> readers = stream != null ? ImageIO.getImageReaders(stream) : null;
+		if (readers == null || !readers.hasNext()) {
+			if (stream != null) {
+				stream.close();
+			}
+			input.close();
+			throw new IOException("Unsupported image format");
+		}
+		reader = readers.next();
+		reader.setInput(stream, true, true);
+		try {
+			width = reader.getWidth(0);
+			height = reader.getHeight(0);
+			if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS) {
+				throw new IOException("Unsupported image dimensions " + width + "x" + height);
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.dispose();
+		stream.close();
+		input.close();
+	}
+
+	@Override
+	public int getDelay() {
+		return 0;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public BufferedImage nextFrame() throws IOException {
+		if (decoded) {
+			return null;
+		}
+		decoded = true;
+		ImageReadParam param = reader.getDefaultReadParam();
+		int subsampling = subsampling(width, height, targetSize);
+		if (subsampling > 1) {
+			param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+		}
+		return reader.read(0, param);
+	}
+
+	/**
+	 * @param targetSize
+	 *            size the longer side of the image will be scaled to, 0 for full resolution
+	 * @return the source subsampling that keeps the longer side of the image at no less than twice the target size
+	 */
+	static int subsampling(int width, int height, int targetSize) {
+		return targetSize > 0 ? Math.max(1, Math.max(width, height) / (2 * targetSize)) : 1;
+	}
+}
@@ -0,0 +1,104 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import fi.pnsr.pprxmtr.gifgenerator.AffineWarp.Interpolation;
+
+/**
+ * Compares {@link AffineWarp} with Java2D drawing the same image with the same transform, which is how the fall frames
+ * were rendered before.
+ */
+public class AffineWarpTest {
+
+	private static final int SIZE = 128;
+
+	// A gradient disc on a transparent background with a soft, translucent rim, like an emoji
+	private static BufferedImage disc() {
+		BufferedImage image = TestImages.gradient(SIZE, SIZE);
+		double center = (SIZE - 1) / 2.0;
+		for (int y = 0; y < SIZE; y++) {
+			for (int x = 0; x < SIZE; x++) {
+				double distance = Math.hypot(x - center, y - center);
+				int alpha = (int) Math.max(0.0, Math.min(255.0, (SIZE * 0.45 - distance) * 64.0));
+				image.setRGB(x, y, alpha << 24 | image.getRGB(x, y) & 0xffffff);
+			}
+		}
+		return image;
+	}
+
+	// Cumulative transforms like the ones of the fall: squeezed, sheared and slid towards the bottom right corner
+	private static List<AffineTransform> fallTransforms() {
+		List<AffineTransform> transforms = new ArrayList<>();
+		AffineTransform transform = new AffineTransform();
+		for (int frame = 0; frame < 14; frame++) {
+			AffineTransform step = new AffineTransform();
+			step.translate(6.3, 9.5);
+			step.scale(0.97, 0.93);
+			step.shear(-0.04, 0.0);
+			transform = new AffineTransform(transform);
+			transform.preConcatenate(step);
+			transforms.add(transform);
+		}
+		return transforms;
+	}
+
+	// Renders the image with Java2D as the generator did before AffineWarp
+	private static int[] java2D(BufferedImage source, AffineTransform transform) {
+		BufferedImage image = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = image.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+		g.setRenderingHint(RenderingHints.KEY_COLOR_RENDERING, RenderingHints.VALUE_COLOR_RENDER_QUALITY);
+		g.setRenderingHint(RenderingHints.KEY_DITHERING, RenderingHints.VALUE_DITHER_DISABLE);
+		g.drawRenderedImage(source, transform);
+		g.dispose();
+		return image.getRGB(0, 0, SIZE, SIZE, null, 0, SIZE);
+	}
+
+	private static int[] warp(BufferedImage source, AffineTransform transform) {
+		int[] pixels = new int[SIZE * SIZE];
+		AffineWarp.warp(PremultipliedAlpha.premultiply(AnimatedGIFWriter.getRGB(source)), SIZE, SIZE, transform,
+				Interpolation.BICUBIC, pixels, SIZE, SIZE);
+		return pixels;
+	}
+
+	@Test
+	public void bicubicWarpCoversTheSamePixelsAsJava2D() {
+		BufferedImage source = TestImages.gradient(SIZE, SIZE);
+		for (AffineTransform transform : fallTransforms()) {
+			int[] expected = java2D(source, transform);
+			int[] actual = warp(source, transform);
+			for (int i = 0; i < actual.length; i++) {
+				assertEquals(transform + " covers " + i % SIZE + "," + i / SIZE, expected[i] >>> 24 != 0,
+						actual[i] >>> 24 != 0);
+			}
+		}
+	}
+
+	@Test
+	public void bicubicWarpMatchesJava2DColors() {
+		BufferedImage source = disc();
+		for (AffineTransform transform : fallTransforms()) {
+			int[] expected = java2D(source, transform);
+			int[] actual = warp(source, transform);
+			long error = 0;
+			for (int i = 0; i < actual.length; i++) {
+				for (int shift = 0; shift < 32; shift += 8) {
+					error += Math.abs((expected[i] >>> shift & 0xff) - (actual[i] >>> shift & 0xff));
+				}
+			}
+			// Both round differently, but on average by far less than a level
+			double meanError = (double) error / (actual.length * 4);
+			assertTrue(transform + " mean error " + meanError, meanError <= 0.2);
+		}
+	}
+}
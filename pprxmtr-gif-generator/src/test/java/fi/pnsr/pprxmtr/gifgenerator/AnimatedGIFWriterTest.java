@@ -0,0 +1,351 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import fi.pnsr.pprxmtr.gifgenerator.AnimatedGIFWriter.ColorQuantizer;
+import fi.pnsr.pprxmtr.gifgenerator.AnimatedGIFWriter.DitherMode;
+import fi.pnsr.pprxmtr.gifgenerator.AnimatedGIFWriter.GIFFrame;
+
+/**
+ * Encodes images with {@link AnimatedGIFWriter} and decodes them again with ImageIO. Images of at most 256 colors are
+ * written with an exact palette, so without lossy compression they must come back pixel for pixel.
+ */
+public class AnimatedGIFWriterTest {
+
+	private static final ColorQuantizer[] QUANTIZERS = { ColorQuantizer.neuQuant(10), ColorQuantizer.octree(1),
+			ColorQuantizer.wu(1) };
+
+	// Mean error of the averages of 8 by 8 blocks, which is what dithering preserves
+	private static double blockError(BufferedImage expected, BufferedImage actual) {
+		double error = 0.0;
+		int count = 0;
+		for (int top = 0; top < expected.getHeight(); top += 8) {
+			for (int left = 0; left < expected.getWidth(); left += 8) {
+				for (int shift = 0; shift < 24; shift += 8) {
+					int sum = 0;
+					for (int y = top; y < top + 8; y++) {
+						for (int x = left; x < left + 8; x++) {
+							sum += (expected.getRGB(x, y) >> shift & 0xff) - (actual.getRGB(x, y) >> shift & 0xff);
+						}
+					}
+					error += Math.abs(sum) / 64.0;
+					count++;
+				}
+			}
+		}
+		return error / count;
+	}
+
+	// A block of noise on a transparent background, placed differently in every frame. The colors of all the frames
+	// together still fit in an exact palette.
+	private static BufferedImage sprite(int index) {
+		BufferedImage image = new BufferedImage(48, 40, BufferedImage.TYPE_INT_ARGB);
+		image.getGraphics().drawImage(TestImages.noise(16, 12, 32, index), 4 + 12 * index, 3 + 10 * index, null);
+		return image;
+	}
+
+	// A gradient with a transparent square in the corner
+	private static BufferedImage translucentGradient() {
+		BufferedImage image = TestImages.gradient(96, 64);
+		for (int y = 0; y < 8; y++) {
+			for (int x = 0; x < 8; x++) {
+				image.setRGB(x, y, 0);
+			}
+		}
+		return image;
+	}
+
+	private static byte[] write(AnimatedGIFWriter writer, BufferedImage image) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		writer.write(image, os);
+		return os.toByteArray();
+	}
+
+	private static byte[] writeAnimation(AnimatedGIFWriter writer, BufferedImage[] images) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		int[] delays = new int[images.length];
+		Arrays.fill(delays, 100);
+		writer.writeAnimatedGIF(images, delays, os);
+		return os.toByteArray();
+	}
+
+	// Writes the image with a global palette of at most the given number of colors and decodes it again
+	private static BufferedImage writeWithPalette(BufferedImage image, DitherMode ditherMode, int colors)
+			throws Exception {
+		AnimatedGIFWriter writer = new AnimatedGIFWriter(ditherMode);
+		ColorQuantizer wu = ColorQuantizer.wu(1);
+		writer.setColorQuantizer((pixels, size, lut_size, lut, colorInfo) -> wu.quantize(pixels, size,
+				Math.min(lut_size, colors), lut, colorInfo));
+		writer.setGlobalPalette(image);
+		return TestImages.readGifFrames(writeAnimation(writer, new BufferedImage[] { image })).get(0);
+	}
+
+	@Test
+	public void croppedFramesRoundTripWithAndWithoutGlobalPalette() throws Exception {
+		BufferedImage[] images = { sprite(0), sprite(1), sprite(2) };
+		for (boolean crop : new boolean[] { false, true }) {
+			for (boolean globalPalette : new boolean[] { false, true }) {
+				String message = "crop " + crop + ", global palette " + globalPalette;
+				AnimatedGIFWriter writer = new AnimatedGIFWriter();
+				writer.setCropTransparentBorders(crop);
+				if (globalPalette) {
+					writer.setGlobalPalette(Arrays.asList(images), 1);
+				}
+				byte[] gif = writeAnimation(writer, images);
+
+				// Cropped frames only cover the block of noise
+				for (BufferedImage frame : TestImages.readGifFrames(gif)) {
+					assertEquals(message + " frame width", crop ? 16 : 48, frame.getWidth());
+					assertEquals(message + " frame height", crop ? 12 : 40, frame.getHeight());
+				}
+				List<BufferedImage> frames = TestImages.readGifAnimation(gif);
+				assertEquals(images.length, frames.size());
+				for (int i = 0; i < images.length; i++) {
+					TestImages.assertSamePixels(message + ", frame " + i, images[i], frames.get(i));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void explicitTransparentColorCoversEveryPixel() throws Exception {
+		BufferedImage image = TestImages.noise(20, 10, 8, 3);
+		BufferedImage expected = TestImages.noise(20, 10, 8, 3);
+		// The first and the last pixel too
+		for (int i = 0; i < 200; i += 3) {
+			image.setRGB(i % 20, i / 20, 0xff00ff00);
+			expected.setRGB(i % 20, i / 20, 0);
+		}
+		image.setRGB(19, 9, 0xff00ff00);
+		expected.setRGB(19, 9, 0);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		new AnimatedGIFWriter().writeAnimatedGIF(
+				Arrays.asList(new GIFFrame(image, 100, GIFFrame.DISPOSAL_RESTORE_TO_BACKGROUND, 0x00ff00)), os);
+
+		TestImages.assertSamePixels("frame", expected, TestImages.readGifAnimation(os.toByteArray()).get(0));
+	}
+
+	@Test
+	public void getRGBReadsEveryLayoutLikeBufferedImage() {
+		BufferedImage source = translucentGradient();
+		List<BufferedImage> images = new ArrayList<>();
+		for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+				BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_INT_BGR, BufferedImage.TYPE_3BYTE_BGR,
+				BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_4BYTE_ABGR_PRE, BufferedImage.TYPE_USHORT_565_RGB,
+				BufferedImage.TYPE_USHORT_555_RGB, BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_GRAY,
+				BufferedImage.TYPE_BYTE_BINARY, BufferedImage.TYPE_BYTE_INDEXED }) {
+			images.add(new BufferedImage(source.getWidth(), source.getHeight(), type));
+		}
+		// Layouts of decoded PNG images: gray with alpha, and RGBA with 8 and 16 bits per sample
+		images.add(new BufferedImage(new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), true, false,
+				Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE), Raster.createInterleavedRaster(DataBuffer.TYPE_BYTE,
+						source.getWidth(), source.getHeight(), 2, null), false, null));
+		for (int dataType : new int[] { DataBuffer.TYPE_BYTE, DataBuffer.TYPE_USHORT }) {
+			images.add(new BufferedImage(new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), true,
+					false, Transparency.TRANSLUCENT, dataType), Raster.createInterleavedRaster(dataType,
+							source.getWidth(), source.getHeight(), 4, null), false, null));
+		}
+
+		for (BufferedImage image : images) {
+			image.getGraphics().drawImage(source, 0, 0, null);
+			for (BufferedImage view : new BufferedImage[] { image, image.getSubimage(5, 3, 50, 40) }) {
+				int width = view.getWidth();
+				int[] expected = view.getRGB(0, 0, width, view.getHeight(), null, 0, width);
+				int[] actual = AnimatedGIFWriter.getRGB(view);
+				for (int i = 0; i < expected.length; i++) {
+					// The colors of fully transparent pixels do not matter
+					if (expected[i] >>> 24 != 0 || actual[i] >>> 24 != 0) {
+						assertEquals(view + " pixel " + i, Integer.toHexString(expected[i]),
+								Integer.toHexString(actual[i]));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void globalPaletteIgnoresTheColorsOfTransparentPixels() throws Exception {
+		byte[][] gifs = new byte[2][];
+		for (int i = 0; i < gifs.length; i++) {
+			BufferedImage image = TestImages.gradient(96, 64);
+			for (int y = 0; y < image.getHeight(); y++) {
+				for (int x = 0; x < image.getWidth() / 2; x++) {
+					// Transparent black, as most images store it, or transparent pixels that kept their colors
+					image.setRGB(x, y, i == 0 ? 0 : image.getRGB(x, y) & 0xffffff);
+				}
+			}
+			AnimatedGIFWriter writer = new AnimatedGIFWriter(true);
+			writer.setGlobalPalette(image);
+			gifs[i] = writeAnimation(writer, new BufferedImage[] { image });
+		}
+		assertArrayEquals(gifs[0], gifs[1]);
+	}
+
+	@Test
+	public void lossyCompressionStaysWithinTheColorError() throws Exception {
+		// Runs of a few colors, each pixel jittered into one of several close shades, at most 192 colors in all
+		BufferedImage image = TestImages.noise(160, 120, 32, 5);
+		Random random = new Random(5);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				image.setRGB(x, y, image.getRGB(x, y) ^ random.nextInt(6) * 0x010101);
+			}
+		}
+		byte[] lossless = write(new AnimatedGIFWriter(), image);
+		AnimatedGIFWriter writer = new AnimatedGIFWriter();
+		writer.setLossyColorError(16);
+		byte[] lossy = write(writer, image);
+		assertTrue("lossy " + lossy.length + " bytes, lossless " + lossless.length, lossy.length < lossless.length);
+
+		BufferedImage decoded = TestImages.readGifFrames(lossy).get(0);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				int expected = image.getRGB(x, y);
+				int actual = decoded.getRGB(x, y);
+				int red = (expected >> 16 & 0xff) - (actual >> 16 & 0xff);
+				int green = (expected >> 8 & 0xff) - (actual >> 8 & 0xff);
+				int blue = (expected & 0xff) - (actual & 0xff);
+				assertTrue("pixel at " + x + "," + y, red * red + green * green + blue * blue <= 16 * 16);
+			}
+		}
+	}
+
+	@Test
+	public void orderedDitherDependsOnlyOnThePosition() throws Exception {
+		// Large enough to be dithered in parallel, and made of identical tiles aligned with the threshold matrix
+		BufferedImage tile = TestImages.gradient(64, 64);
+		BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				image.setRGB(x, y, tile.getRGB(x % 64, y % 64));
+			}
+		}
+		BufferedImage decoded = writeWithPalette(image, DitherMode.ORDERED, 16);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				assertEquals("pixel at " + x + "," + y, decoded.getRGB(x % 64, y % 64), decoded.getRGB(x, y));
+			}
+		}
+	}
+
+	@Test
+	public void orderedDitherKeepsBlockAverages() throws Exception {
+		BufferedImage image = TestImages.gradient(256, 256);
+		double nearest = blockError(image, writeWithPalette(image, DitherMode.NONE, 16));
+		double ordered = blockError(image, writeWithPalette(image, DitherMode.ORDERED, 16));
+		assertTrue("ordered " + ordered + ", nearest " + nearest, ordered < nearest * 0.8);
+	}
+
+	@Test
+	public void quantizersApproximateColorsAndKeepTransparency() throws Exception {
+		BufferedImage image = translucentGradient();
+		for (ColorQuantizer quantizer : QUANTIZERS) {
+			AnimatedGIFWriter writer = new AnimatedGIFWriter();
+			writer.setColorQuantizer(quantizer);
+			writer.setCropTransparentBorders(false);
+			BufferedImage decoded = TestImages.readGifFrames(write(writer, image)).get(0);
+
+			for (int y = 0; y < image.getHeight(); y++) {
+				for (int x = 0; x < image.getWidth(); x++) {
+					assertEquals("alpha at " + x + "," + y, image.getRGB(x, y) >>> 24, decoded.getRGB(x, y) >>> 24);
+				}
+			}
+			double error = TestImages.meanError(image, decoded);
+			assertTrue("mean error " + error, error < 8.0);
+		}
+	}
+
+	@Test
+	public void quantizersFitThePaletteSize() {
+		BufferedImage image = translucentGradient();
+		int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+		for (ColorQuantizer quantizer : QUANTIZERS) {
+			int[] palette = new int[256];
+			int[] colorInfo = new int[2];
+			int colors = quantizer.quantize(pixels, pixels.length, 16, palette, colorInfo);
+
+			assertTrue("colors " + colors, colors > 1 && colors <= 15);
+			assertTrue("bits per pixel " + colorInfo[0], colorInfo[0] <= 4 && colors < 1 << colorInfo[0]);
+			assertTrue("transparent index " + colorInfo[1], colorInfo[1] >= colors && colorInfo[1] < 16);
+		}
+	}
+
+	@Test
+	public void requantizeCutsTheSamePaletteAsQuantize() {
+		int[] pixels = AnimatedGIFWriter.getRGB(translucentGradient());
+		int[] sizes = { 128, 64, 32, 16 };
+		int[][] palettes = new int[sizes.length][256];
+		int[][] colorInfos = new int[sizes.length][2];
+		int[] colors = new int[sizes.length];
+		for (int i = 0; i < sizes.length; i++) {
+			colors[i] = ColorQuantizer.wu(1).quantize(pixels, pixels.length, sizes[i], palettes[i], colorInfos[i]);
+		}
+
+		// Every palette is cut again from the moments of the first, full size quantization
+		ColorQuantizer quantizer = ColorQuantizer.wu(1);
+		quantizer.quantize(pixels, pixels.length, 256, new int[256], new int[2]);
+		for (int i = 0; i < sizes.length; i++) {
+			int[] palette = new int[256];
+			int[] colorInfo = new int[2];
+			assertEquals(sizes[i] + " colors", colors[i],
+					quantizer.requantize(pixels, pixels.length, sizes[i], palette, colorInfo));
+			assertArrayEquals(sizes[i] + " colors palette", palettes[i], palette);
+			assertArrayEquals(sizes[i] + " colors color info", colorInfos[i], colorInfo);
+		}
+	}
+
+	@Test
+	public void writeAnimatedGIFRoundTripsEveryFrame() throws Exception {
+		BufferedImage[] images = new BufferedImage[4];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = TestImages.noise(64, 48, 16 << i, i);
+		}
+		List<BufferedImage> frames = TestImages.readGifFrames(writeAnimation(new AnimatedGIFWriter(), images));
+		assertEquals(images.length, frames.size());
+		for (int i = 0; i < images.length; i++) {
+			TestImages.assertSamePixels("frame " + i, images[i], frames.get(i));
+		}
+	}
+
+	@Test
+	public void writeRoundTripsEveryColorDepth() throws Exception {
+		for (int colors = 2; colors <= 256; colors <<= 1) {
+			BufferedImage image = TestImages.noise(37, 23, colors, colors);
+			List<BufferedImage> frames = TestImages.readGifFrames(write(new AnimatedGIFWriter(), image));
+			assertEquals(1, frames.size());
+			TestImages.assertSamePixels(colors + " colors", image, frames.get(0));
+		}
+	}
+
+	@Test
+	public void writeRoundTripsFullStringTables() throws Exception {
+		// Enough distinct strings to fill the 4096 codes of the string table several times over
+		BufferedImage image = TestImages.noise(400, 300, 200, 7);
+		TestImages.assertSamePixels("noise", image,
+				TestImages.readGifFrames(write(new AnimatedGIFWriter(), image)).get(0));
+	}
+
+	@Test
+	public void writeRoundTripsSingleColor() throws Exception {
+		// A single color gives ever longer strings of the same index, each one extending the previous
+		BufferedImage image = TestImages.noise(300, 200, 1, 1);
+		TestImages.assertSamePixels("single color", image,
+				TestImages.readGifFrames(write(new AnimatedGIFWriter(), image)).get(0));
+	}
+}
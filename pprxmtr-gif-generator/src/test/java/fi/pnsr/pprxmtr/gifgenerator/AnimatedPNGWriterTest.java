@@ -0,0 +1,58 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import fi.pnsr.pprxmtr.gifgenerator.AnimatedGIFWriter.GIFFrame;
+
+/**
+ * Writes animations with {@link AnimatedPNGWriter} and decodes them again, the frames with {@link FrameDecoder} and
+ * the still image shown by clients without APNG support with ImageIO. Nothing is quantized, so every pixel, alpha
+ * included, must come back as it was.
+ */
+public class AnimatedPNGWriterTest {
+
+	// A transparent image with a block of noise and a translucent stripe, placed differently in every frame
+	private static BufferedImage frame(int index) {
+		BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_ARGB);
+		image.getGraphics().drawImage(TestImages.noise(12, 10, 200, index), 4 + 10 * index, 3 + 8 * index, null);
+		for (int x = 0; x < 40; x++) {
+			image.setRGB(x, 28 - index, 0x80000000 | x * 0x060503);
+		}
+		return image;
+	}
+
+	@Test
+	public void writeAnimatedPNGRoundTripsEveryFrame() throws Exception {
+		BufferedImage[] images = { TestImages.noise(40, 30, 1000, 0), frame(1), frame(2) };
+		int[] delays = { 80, 120, 250 };
+		List<GIFFrame> frames = new ArrayList<>();
+		for (int i = 0; i < images.length; i++) {
+			frames.add(new GIFFrame(images[i], delays[i], GIFFrame.DISPOSAL_RESTORE_TO_BACKGROUND));
+		}
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		new AnimatedPNGWriter().writeAnimatedPNG(frames, os);
+
+		TestImages.assertSamePixels("still image", images[0], ImageIO.read(new ByteArrayInputStream(os.toByteArray())));
+		try (FrameDecoder decoder = FrameDecoder.open(new ByteArrayInputStream(os.toByteArray()), 0)) {
+			assertEquals(40, decoder.getWidth());
+			assertEquals(30, decoder.getHeight());
+			for (int i = 0; i < images.length; i++) {
+				// Compositing the translucent stripe onto the canvas may round its colors
+				TestImages.assertSimilarPixels("frame " + i, images[i], decoder.nextFrame(), 2);
+				assertEquals("frame " + i + " delay", delays[i], decoder.getDelay());
+			}
+			assertNull(decoder.nextFrame());
+		}
+	}
+}
@@ -0,0 +1,105 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import fi.pnsr.pprxmtr.gifgenerator.Downscaler.Quality;
+
+/**
+ * Checks the pixels {@link Downscaler} averages and resamples for every quality.
+ */
+public class DownscalerTest {
+
+	private static BufferedImage filled(int width, int height, int argb) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		int[] pixels = new int[width * height];
+		Arrays.fill(pixels, argb);
+		image.setRGB(0, 0, width, height, pixels, 0, width);
+		return image;
+	}
+
+	private static BufferedImage image(int[] pixels, int width, int height) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		image.setRGB(0, 0, width, height, pixels, 0, width);
+		return image;
+	}
+
+	@Test
+	public void flatColorStaysExact() {
+		for (Quality quality : Quality.values()) {
+			for (int argb : new int[] { 0xff3366cc, 0xff000000, 0xffffffff, 0x80336699, 0x01ffffff }) {
+				// Translucent colors only keep what survives premultiplying to eight bits
+				int[] expected = { argb };
+				expected = PremultipliedAlpha.premultiply(expected);
+				PremultipliedAlpha.unpremultiply(expected);
+				int[] pixels = Downscaler.resize(filled(301, 199, argb), 37, 23, quality);
+				for (int i = 0; i < pixels.length; i++) {
+					assertEquals(quality + " pixel " + i, Integer.toHexString(expected[0]),
+							Integer.toHexString(pixels[i]));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void nonIntegerRatiosGiveTheRequestedSize() {
+		int[][] sizes = { { 1000, 750, 96, 72 }, { 333, 257, 96, 74 }, { 97, 61, 96, 60 }, { 640, 200, 150, 47 } };
+		for (Quality quality : Quality.values()) {
+			for (int[] size : sizes) {
+				String message = quality + " " + size[0] + "x" + size[1] + " to " + size[2] + "x" + size[3];
+				int[] pixels = Downscaler.resize(TestImages.gradient(size[0], size[1]), size[2], size[3], quality);
+
+				// The gradient runs from corner to corner of the requested size, so it is neither cropped nor padded
+				assertEquals(message, size[2] * size[3], pixels.length);
+				double meanError = TestImages.meanError(TestImages.gradient(size[2], size[3]),
+						image(pixels, size[2], size[3]));
+				assertTrue(message + " mean error " + meanError, meanError <= 2.0);
+			}
+		}
+	}
+
+	@Test
+	public void opaqueEdgesDoNotDarkenNextToTransparentPixels() {
+		BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				// Transparent black on the left, white on the right, the edge not on a block boundary
+				image.setRGB(x, y, x < 137 ? 0 : 0xffffffff);
+			}
+		}
+		for (Quality quality : Quality.values()) {
+			int[] pixels = Downscaler.resize(image, 41, 27, quality);
+			for (int i = 0; i < pixels.length; i++) {
+				if (pixels[i] >>> 24 != 0) {
+					assertEquals(quality + " pixel " + i + " " + Integer.toHexString(pixels[i]), 0xffffff,
+							pixels[i] & 0xffffff);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void parallelAverageEqualsSequentialAverage() {
+		BufferedImage image = TestImages.noise(1280, 1024, 200, 22L);
+		for (int y = 0; y < image.getHeight(); y += 3) {
+			for (int x = y % 7; x < image.getWidth(); x += 5) {
+				// Translucent and transparent pixels too
+				image.setRGB(x, y, (x * 31 + y) % 256 << 24 | image.getRGB(x, y) & 0xffffff);
+			}
+		}
+		assertTrue((long) image.getWidth() * image.getHeight() >= Downscaler.PARALLEL_PIXELS);
+
+		for (int factor : new int[] { 2, 3, 7 }) {
+			int width = (image.getWidth() + factor - 1) / factor;
+			int height = (image.getHeight() + factor - 1) / factor;
+			assertArrayEquals("factor " + factor, Downscaler.boxAverage(image, factor, width, height, false),
+					Downscaler.boxAverage(image, factor, width, height, true));
+		}
+	}
+}
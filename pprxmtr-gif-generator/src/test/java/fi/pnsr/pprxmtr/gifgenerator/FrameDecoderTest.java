@@ -0,0 +1,377 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Decodes animated GIF, APNG and still PNG images with {@link FrameDecoder} and checks the composited frames pixel for
+ * pixel.
+ */
+public class FrameDecoderTest {
+
+	/**
+	 * Writes a PNG chunk by chunk, so the tests can build APNG files with any frame layout, blending and disposal.
+	 * Frames are stored as 8-bit RGBA without filtering.
+	 */
+	private static final class PngBuilder {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		private int sequence;
+
+		PngBuilder(int width, int height) throws IOException {
+			bytes.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' });
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			DataOutputStream os = new DataOutputStream(header);
+			os.writeInt(width);
+			os.writeInt(height);
+			os.write(new byte[] { 8, 6, 0, 0, 0 });
+			chunk("IHDR", header.toByteArray());
+		}
+
+		PngBuilder animationControl(int frames) throws IOException {
+			ByteArrayOutputStream control = new ByteArrayOutputStream();
+			DataOutputStream os = new DataOutputStream(control);
+			os.writeInt(frames);
+			os.writeInt(0);
+			return chunk("acTL", control.toByteArray());
+		}
+
+		byte[] build() throws IOException {
+			chunk("IEND", new byte[0]);
+			return bytes.toByteArray();
+		}
+
+		private PngBuilder chunk(String type, byte[] data) throws IOException {
+			DataOutputStream os = new DataOutputStream(bytes);
+			CRC32 crc = new CRC32();
+			crc.update(type.getBytes("US-ASCII"));
+			crc.update(data);
+			os.writeInt(data.length);
+			os.writeBytes(type);
+			os.write(data);
+			os.writeInt((int) crc.getValue());
+			return this;
+		}
+
+		PngBuilder frameControl(BufferedImage frame, int x, int y, int delay, int disposal, int blend)
+				throws IOException {
+			ByteArrayOutputStream control = new ByteArrayOutputStream();
+			DataOutputStream os = new DataOutputStream(control);
+			os.writeInt(sequence++);
+			os.writeInt(frame.getWidth());
+			os.writeInt(frame.getHeight());
+			os.writeInt(x);
+			os.writeInt(y);
+			os.writeShort(delay);
+			os.writeShort(1000);
+			os.writeByte(disposal);
+			os.writeByte(blend);
+			return chunk("fcTL", control.toByteArray());
+		}
+
+		PngBuilder frameData(BufferedImage frame) throws IOException {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			new DataOutputStream(data).writeInt(sequence++);
+			writePixels(frame, data);
+			return chunk("fdAT", data.toByteArray());
+		}
+
+		PngBuilder imageData(BufferedImage frame) throws IOException {
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			writePixels(frame, data);
+			return chunk("IDAT", data.toByteArray());
+		}
+
+		// Ends the image with the length and type of a chunk, but only a few bytes of its data
+		byte[] truncated(String type, int length) throws IOException {
+			DataOutputStream os = new DataOutputStream(bytes);
+			os.writeInt(length);
+			os.writeBytes(type);
+			os.write(new byte[16]);
+			return bytes.toByteArray();
+		}
+
+		private static void writePixels(BufferedImage frame, OutputStream os) throws IOException {
+			try (DeflaterOutputStream deflater = new DeflaterOutputStream(os)) {
+				for (int y = 0; y < frame.getHeight(); y++) {
+					deflater.write(0);
+					for (int x = 0; x < frame.getWidth(); x++) {
+						int argb = frame.getRGB(x, y);
+						deflater.write(new byte[] { (byte) (argb >> 16), (byte) (argb >> 8), (byte) argb,
+								(byte) (argb >>> 24) });
+					}
+				}
+			}
+		}
+	}
+
+	private static final int BLEND_OVER = 1;
+	private static final int BLEND_SOURCE = 0;
+
+	private static final int DISPOSE_BACKGROUND = 1;
+	private static final int DISPOSE_NONE = 0;
+
+	// Expects the next frame to look like the image and to have the delay
+	private static void assertNextFrame(String message, FrameDecoder decoder, BufferedImage expected, int delay)
+			throws IOException {
+		TestImages.assertSamePixels(message, expected, decoder.nextFrame());
+		assertEquals(message + " delay", delay, decoder.getDelay());
+	}
+
+	private static BufferedImage copy(BufferedImage image) {
+		BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+		copy.setRGB(0, 0, image.getWidth(), image.getHeight(),
+				image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth()), 0,
+				image.getWidth());
+		return copy;
+	}
+
+	private static void fill(BufferedImage image, int left, int top, int width, int height, int argb) {
+		for (int y = top; y < top + height; y++) {
+			for (int x = left; x < left + width; x++) {
+				image.setRGB(x, y, argb);
+			}
+		}
+	}
+
+	/**
+	 * Builds a GIF whose frames are each one pixel of data, with the image descriptors telling any size and position.
+	 * The reader leaves the pixels the data does not cover transparent.
+	 *
+	 * @param frames
+	 *            left, top, width and height of each frame
+	 */
+	private static byte[] gif(int width, int height, int[]... frames) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write("GIF89a".getBytes(StandardCharsets.US_ASCII));
+		writeShort(bytes, width);
+		writeShort(bytes, height);
+		// No global color table, background color and aspect ratio
+		bytes.write(new byte[] { 0, 0, 0 });
+		for (int[] frame : frames) {
+			bytes.write(0x2c);
+			for (int value : frame) {
+				writeShort(bytes, value);
+			}
+			// Local color table of two colors, black and white
+			bytes.write(new byte[] { (byte) 0x80, 0, 0, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff });
+			// LZW code size and the codes of a single black pixel
+			bytes.write(new byte[] { 2, 2, 0x44, 1, 0 });
+		}
+		bytes.write(0x3b);
+		return bytes.toByteArray();
+	}
+
+	private static FrameDecoder open(byte[] image) throws IOException {
+		return FrameDecoder.open(new ByteArrayInputStream(image), 0);
+	}
+
+	// A square of one color with a transparent hole in the middle
+	private static BufferedImage square(int size, int argb) {
+		BufferedImage square = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		fill(square, 0, 0, size, size, argb);
+		fill(square, size / 4, size / 4, size / 2, size / 2, 0);
+		return square;
+	}
+
+	// Little-endian, as GIF stores its numbers
+	private static void writeShort(OutputStream os, int value) throws IOException {
+		os.write(value & 0xff);
+		os.write(value >> 8 & 0xff);
+	}
+
+	@Test
+	public void clipsGifFramesToTheLogicalScreen() throws Exception {
+		// The second frame declares more pixels than fit in the canvas, only the part on the screen is allocated
+		try (FrameDecoder decoder = open(gif(20, 20, new int[] { 0, 0, 20, 20 }, new int[] { 5, 5, 8000, 8000 },
+				new int[] { 30, 30, 10, 10 }))) {
+			assertEquals(0xff000000, decoder.nextFrame().getRGB(0, 0));
+			BufferedImage frame = decoder.nextFrame();
+			assertEquals(20, frame.getWidth());
+			assertEquals(0xff000000, frame.getRGB(5, 5));
+			// Entirely off the screen
+			assertEquals(20, decoder.nextFrame().getWidth());
+			assertNull(decoder.nextFrame());
+		}
+	}
+
+	@Test
+	public void decodesAnimatedGif() throws Exception {
+		BufferedImage[] images = new BufferedImage[3];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = new BufferedImage(40, 30, BufferedImage.TYPE_INT_ARGB);
+			BufferedImage square = TestImages.noise(12, 10, 40, i);
+			images[i].getGraphics().drawImage(square, 4 + 10 * i, 3 + 8 * i, null);
+		}
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		new AnimatedGIFWriter().writeAnimatedGIF(images, new int[] { 70, 150, 1000 }, os);
+
+		try (FrameDecoder decoder = open(os.toByteArray())) {
+			assertEquals(40, decoder.getWidth());
+			assertEquals(30, decoder.getHeight());
+			assertNextFrame("frame 0", decoder, images[0], 70);
+			assertNextFrame("frame 1", decoder, images[1], 150);
+			assertNextFrame("frame 2", decoder, images[2], 1000);
+			assertNull(decoder.nextFrame());
+		}
+	}
+
+	@Test
+	public void decodesApngFramesWithBlendingAndDisposal() throws Exception {
+		BufferedImage background = new BufferedImage(64, 48, BufferedImage.TYPE_INT_ARGB);
+		fill(background, 0, 0, 64, 48, 0xffff0000);
+		BufferedImage blue = square(16, 0xff0000ff);
+		BufferedImage green = square(16, 0xff00ff00);
+		byte[] apng = new PngBuilder(64, 48).animationControl(3)
+				.frameControl(background, 0, 0, 50, DISPOSE_NONE, BLEND_SOURCE).imageData(background)
+				.frameControl(blue, 8, 8, 0, DISPOSE_BACKGROUND, BLEND_OVER).frameData(blue)
+				.frameControl(green, 32, 16, 200, DISPOSE_NONE, BLEND_SOURCE).frameData(green).build();
+
+		BufferedImage expected = copy(background);
+		try (FrameDecoder decoder = open(apng)) {
+			assertEquals(64, decoder.getWidth());
+			assertEquals(48, decoder.getHeight());
+			assertNextFrame("frame 0", decoder, expected, 50);
+
+			// Blended over, the red background shows through the hole
+			fill(expected, 8, 8, 16, 16, 0xff0000ff);
+			fill(expected, 12, 12, 8, 8, 0xffff0000);
+			// Without a delay the frame lasts 100 ms
+			assertNextFrame("frame 1", decoder, expected, 100);
+
+			// The blue square is cleared, and the green one replaces the pixels under it, hole included
+			fill(expected, 8, 8, 16, 16, 0);
+			fill(expected, 32, 16, 16, 16, 0xff00ff00);
+			fill(expected, 36, 20, 8, 8, 0);
+			assertNextFrame("frame 2", decoder, expected, 200);
+			assertNull(decoder.nextFrame());
+		}
+	}
+
+	@Test
+	public void decodesStillPngAsSingleFrame() throws Exception {
+		BufferedImage image = TestImages.noise(50, 40, 100, 3);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", os);
+
+		try (FrameDecoder decoder = open(os.toByteArray())) {
+			assertEquals(50, decoder.getWidth());
+			assertEquals(40, decoder.getHeight());
+			assertNextFrame("still", decoder, image, 0);
+			assertNull(decoder.nextFrame());
+		}
+	}
+
+	@Test
+	public void rejectsOversizedGifs() throws Exception {
+		assertEquals("Unsupported GIF dimensions 65535x65535", assertThrows(IOException.class,
+				() -> open(gif(65535, 65535, new int[] { 0, 0, 1, 1 }))).getMessage());
+		// Checked before the frame is read, whatever the size of the screen
+		assertEquals("Unsupported GIF frame dimensions 65535x65535", assertThrows(IOException.class,
+				() -> open(gif(20, 20, new int[] { 0, 0, 65535, 65535 })).nextFrame()).getMessage());
+		// An animation is composited on a full size canvas
+		assertEquals("Animation too large: 4096x4096", assertThrows(IOException.class,
+				() -> open(gif(4096, 4096, new int[] { 0, 0, 1, 1 }, new int[] { 0, 0, 1, 1 })).nextFrame())
+						.getMessage());
+	}
+
+	@Test
+	public void rejectsOversizedImages() throws Exception {
+		assertEquals("Unsupported PNG dimensions 100000x100000",
+				assertThrows(IOException.class, () -> open(new PngBuilder(100000, 100000).build())).getMessage());
+		// Rejected from the declared length, before anything is allocated for the data
+		assertEquals("Invalid PNG chunk length 2147483632", assertThrows(IOException.class,
+				() -> open(new PngBuilder(64, 48).truncated("tEXt", 0x7ffffff0)).nextFrame()).getMessage());
+		assertEquals("Invalid PNG chunk length 1048576", assertThrows(IOException.class,
+				() -> open(new PngBuilder(64, 48).truncated("IDAT", 1 << 20)).nextFrame()).getMessage());
+
+		// Every chunk is small, but together they are far more than the compressed data of 20 by 20 pixels could be
+		BufferedImage frame = square(20, 0xff0000ff);
+		PngBuilder builder = new PngBuilder(20, 20).animationControl(1)
+				.frameControl(frame, 0, 0, 100, DISPOSE_NONE, BLEND_SOURCE);
+		for (int i = 0; i < 10; i++) {
+			builder.chunk("IDAT", new byte[1000]);
+		}
+		byte[] apng = builder.build();
+		assertEquals("PNG image data too large",
+				assertThrows(IOException.class, () -> open(apng).nextFrame()).getMessage());
+	}
+
+	@Test
+	public void skipsApngDefaultImageOutsideOfTheAnimation() throws Exception {
+		BufferedImage still = new BufferedImage(20, 20, BufferedImage.TYPE_INT_ARGB);
+		fill(still, 0, 0, 20, 20, 0xffffff00);
+		BufferedImage first = square(20, 0xff00ffff);
+		BufferedImage second = square(20, 0xffff00ff);
+		byte[] apng = new PngBuilder(20, 20).animationControl(2).imageData(still)
+				.frameControl(first, 0, 0, 30, DISPOSE_NONE, BLEND_SOURCE).frameData(first)
+				.frameControl(second, 0, 0, 40, DISPOSE_NONE, BLEND_SOURCE).frameData(second).build();
+
+		try (FrameDecoder decoder = open(apng)) {
+			assertNextFrame("frame 0", decoder, first, 30);
+			assertNextFrame("frame 1", decoder, second, 40);
+			assertNull(decoder.nextFrame());
+		}
+	}
+
+	@Test
+	public void subsamplesLargeStillImages() throws Exception {
+		BufferedImage image = TestImages.noise(400, 300, 100, 4);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", os);
+
+		// Decoded to no less than twice the target size
+		try (FrameDecoder decoder = FrameDecoder.open(new ByteArrayInputStream(os.toByteArray()), 50)) {
+			assertEquals(400, decoder.getWidth());
+			assertEquals(300, decoder.getHeight());
+			BufferedImage frame = decoder.nextFrame();
+			assertEquals(100, frame.getWidth());
+			assertEquals(75, frame.getHeight());
+			assertEquals(image.getRGB(4, 8), frame.getRGB(1, 2));
+		}
+	}
+
+	@Test
+	public void subsamplesStillGifs() throws Exception {
+		BufferedImage image = TestImages.noise(400, 300, 100, 5);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		new AnimatedGIFWriter().writeAnimatedGIF(new BufferedImage[] { image }, new int[] { 100 }, os);
+		BufferedImage full;
+		try (FrameDecoder decoder = open(os.toByteArray())) {
+			full = copy(decoder.nextFrame());
+		}
+
+		// A single frame is a still image, decoded to no less than twice the target size
+		try (FrameDecoder decoder = FrameDecoder.open(new ByteArrayInputStream(os.toByteArray()), 50)) {
+			assertEquals(400, decoder.getWidth());
+			assertEquals(300, decoder.getHeight());
+			BufferedImage frame = decoder.nextFrame();
+			assertEquals(100, frame.getWidth());
+			assertEquals(75, frame.getHeight());
+			assertEquals(full.getRGB(4, 8), frame.getRGB(1, 2));
+			assertNull(decoder.nextFrame());
+		}
+
+		// The frames of an animation are not
+		os.reset();
+		new AnimatedGIFWriter().writeAnimatedGIF(new BufferedImage[] { image, image }, new int[] { 100, 100 }, os);
+		try (FrameDecoder decoder = FrameDecoder.open(new ByteArrayInputStream(os.toByteArray()), 50)) {
+			assertEquals(400, decoder.nextFrame().getWidth());
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+/**
+ * Generates approximations end to end and decodes them again with ImageIO.
+ */
+public class GifGeneratorTest {
+
+	// Remembers what the generator reports when the gif is done
+	private static final class CompletionListener implements EncodeListener {
+		int attempts;
+		int sizeInBytes;
+
+		@Override
+		public void encodeCompleted(OutputFormat format, int frames, int sizeInBytes, int attempts) {
+			this.attempts = attempts;
+			this.sizeInBytes = sizeInBytes;
+		}
+	}
+
+	private static byte[] bytes(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	// Decodes the composited frames of a gif, copied as the decoder draws every frame onto the same canvas
+	private static List<BufferedImage> decode(byte[] gif) throws IOException {
+		List<BufferedImage> frames = new ArrayList<>();
+		try (FrameDecoder decoder = FrameDecoder.open(new ByteArrayInputStream(gif), 0)) {
+			for (BufferedImage frame; (frame = decoder.nextFrame()) != null;) {
+				BufferedImage copy = new BufferedImage(frame.getWidth(), frame.getHeight(),
+						BufferedImage.TYPE_INT_ARGB);
+				copy.getGraphics().drawImage(frame, 0, 0, null);
+				frames.add(copy);
+			}
+		}
+		return frames;
+	}
+
+	private static byte[] png(BufferedImage image) throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", os);
+		return os.toByteArray();
+	}
+
+	@Test
+	public void fallMapsAreCompiledOncePerSize() {
+		int[][] maps = GifGenerator.fallMaps(96, 72);
+
+		assertSame("maps of the same size", maps, GifGenerator.fallMaps(96, 72));
+		assertNotSame("maps of another size", maps, GifGenerator.fallMaps(72, 96));
+		assertEquals("map of a frame", 2 * 96 * 72, maps[0].length);
+	}
+
+	@Test
+	public void generateFitsInTheBudget() throws Exception {
+		byte[] original = png(TestImages.gradient(200, 150));
+		byte[] unlimited = bytes(GifGenerator.generateGif(original));
+		int budget = unlimited.length / 3;
+		CompletionListener listener = new CompletionListener();
+		byte[] gif = bytes(GifGenerator.generate(original, OutputFormat.GIF, budget, listener));
+
+		assertTrue("gif of " + gif.length + " bytes, budget " + budget, gif.length > 0 && gif.length <= budget);
+		assertTrue("frames", TestImages.readGifAnimation(gif).size() > 1);
+		assertEquals(gif.length, listener.sizeInBytes);
+		assertTrue("attempts " + listener.attempts, listener.attempts > 1 && listener.attempts < 10);
+	}
+
+	@Test
+	public void generateKeepsTheLastAttemptIfNothingFits() throws Exception {
+		byte[] original = png(TestImages.gradient(200, 150));
+		List<BufferedImage> unlimited = TestImages.readGifAnimation(bytes(GifGenerator.generateGif(original)));
+		CompletionListener listener = new CompletionListener();
+		List<BufferedImage> frames = TestImages
+				.readGifAnimation(bytes(GifGenerator.generate(original, OutputFormat.GIF, 1, listener)));
+
+		// The last attempt keeps every other frame at half the size
+		assertEquals(10, listener.attempts);
+		assertEquals((unlimited.size() + 1) / 2, frames.size());
+		assertEquals(48, frames.get(0).getWidth());
+		assertEquals(36, frames.get(0).getHeight());
+	}
+
+	@Test
+	public void generateMakesEverySizeFromOneDecode() throws Exception {
+		BufferedImage image = TestImages.gradient(200, 150);
+		byte[] original = png(image);
+		Map<Integer, ByteBuffer> gifs = GifGenerator.generate(new ByteArrayInputStream(original), OutputFormat.GIF,
+				0, EncodeListener.NONE, 32, 96, 64, 96);
+		assertEquals(Arrays.asList(96, 64, 32), new ArrayList<>(gifs.keySet()));
+
+		// The largest size is generated exactly as on its own
+		assertArrayEquals(bytes(GifGenerator.generateGif(original)), bytes(gifs.get(96)));
+
+		int frameCount = -1;
+		for (Map.Entry<Integer, ByteBuffer> gif : gifs.entrySet()) {
+			int size = gif.getKey();
+			List<BufferedImage> frames = decode(bytes(gif.getValue()));
+			if (frameCount < 0) {
+				frameCount = frames.size();
+				assertTrue("frames " + frameCount, frameCount > 1);
+			}
+			assertEquals(size + " px frames", frameCount, frames.size());
+			assertEquals(size + " px frames read by ImageIO", frameCount,
+					TestImages.readGifFrames(bytes(gif.getValue())).size());
+			assertEquals(size + " px width", size, frames.get(0).getWidth());
+			assertEquals(size + " px height", size * 3 / 4, frames.get(0).getHeight());
+
+			// The first frame shows the image as it is
+			BufferedImage scaled = new BufferedImage(size, size * 3 / 4, BufferedImage.TYPE_INT_ARGB);
+			scaled.setRGB(0, 0, size, size * 3 / 4,
+					Downscaler.resize(image, size, size * 3 / 4, Downscaler.Quality.BALANCED), 0, size);
+			double error = TestImages.meanError(scaled, frames.get(0));
+			assertTrue(size + " px mean error " + error, error < 8.0);
+		}
+	}
+
+	@Test
+	public void generateMakesOneGifForSizesLargerThanTheImage() throws Exception {
+		byte[] original = png(TestImages.gradient(50, 40));
+		CompletionListener listener = new CompletionListener();
+		Map<Integer, ByteBuffer> gifs = GifGenerator.generate(new ByteArrayInputStream(original), OutputFormat.GIF,
+				0, listener, 32, 64, 96, 128);
+		assertEquals(Arrays.asList(128, 96, 64, 32), new ArrayList<>(gifs.keySet()));
+
+		// The image is not scaled up, so the three larger sizes are one gif of the image at its own size
+		assertSame("96 px", gifs.get(128), gifs.get(96));
+		assertSame("64 px", gifs.get(128), gifs.get(64));
+		assertNotSame("32 px", gifs.get(128), gifs.get(32));
+		assertArrayEquals(bytes(GifGenerator.generateGif(original)), bytes(gifs.get(96)));
+		assertEquals(50, decode(bytes(gifs.get(96))).get(0).getWidth());
+		assertEquals(32, decode(bytes(gifs.get(32))).get(0).getWidth());
+		// Encoded once for the larger sizes and once for 32 px
+		assertEquals(gifs.get(32).remaining(), listener.sizeInBytes);
+
+		// The handler stores the shared gif once, under the key of the default size
+		assertEquals(Arrays.asList(96, 32), GifGeneratorHandler.sizesToStore(gifs));
+	}
+
+	@Test
+	public void generateStreamsTheSameBytesAsTheByteArrayApi() throws Exception {
+		BufferedImage translucent = TestImages.gradient(120, 90);
+		translucent.setRGB(0, 0, 60, 45, new int[60 * 45], 0, 60);
+		ByteArrayOutputStream animated = new ByteArrayOutputStream();
+		new AnimatedGIFWriter().writeAnimatedGIF(new BufferedImage[] { TestImages.noise(64, 64, 30, 1),
+				TestImages.noise(64, 64, 30, 2) }, new int[] { 100, 100 }, animated);
+		byte[][] originals = { png(TestImages.gradient(200, 150)), png(translucent), animated.toByteArray() };
+
+		for (int i = 0; i < originals.length; i++) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			int written = GifGenerator.generateGif(new ByteArrayInputStream(originals[i]), os);
+			assertArrayEquals("gif of image " + i, bytes(GifGenerator.generateGif(originals[i])), os.toByteArray());
+			assertEquals("bytes written of image " + i, os.size(), written);
+
+			for (OutputFormat format : OutputFormat.values()) {
+				os.reset();
+				GifGenerator.generate(new ByteArrayInputStream(originals[i]), os, format, 20 * 1024,
+						EncodeListener.NONE);
+				assertArrayEquals(format + " of image " + i,
+						bytes(GifGenerator.generate(originals[i], format, 20 * 1024)), os.toByteArray());
+			}
+		}
+	}
+
+	@Test
+	public void generateWritesNothingOnFailure() throws Exception {
+		// Not an image, and a PNG too large to decode
+		byte[][] originals = { "not an image".getBytes(StandardCharsets.US_ASCII),
+				Arrays.copyOf(png(TestImages.gradient(20, 20)), 33) };
+		originals[1][16] = 0x7f;
+
+		for (byte[] original : originals) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			assertThrows(IOException.class,
+					() -> GifGenerator.generate(new ByteArrayInputStream(original), os, OutputFormat.GIF, 0,
+							EncodeListener.NONE));
+			assertEquals("bytes written", 0, os.size());
+			assertEquals("buffer of the byte[] API", 0, GifGenerator.generateGif(original).remaining());
+		}
+	}
+}
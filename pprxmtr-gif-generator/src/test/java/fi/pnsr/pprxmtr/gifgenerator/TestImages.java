@@ -0,0 +1,205 @@
+package fi.pnsr.pprxmtr.gifgenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Test images, and helpers for checking encoded images by decoding them again with ImageIO.
+ */
+final class TestImages {
+
+	/**
+	 * Asserts that two images have the same size and the same ARGB pixels.
+	 */
+	static void assertSamePixels(String message, BufferedImage expected, BufferedImage actual) {
+		assertEquals(message + " width", expected.getWidth(), actual.getWidth());
+		assertEquals(message + " height", expected.getHeight(), actual.getHeight());
+		for (int y = 0; y < expected.getHeight(); y++) {
+			for (int x = 0; x < expected.getWidth(); x++) {
+				assertEquals(message + " pixel at " + x + "," + y, Integer.toHexString(expected.getRGB(x, y)),
+						Integer.toHexString(actual.getRGB(x, y)));
+			}
+		}
+	}
+
+	/**
+	 * Asserts that two images have the same size and the same alpha, and that the colors of their pixels differ by no
+	 * more than the tolerance, for example to allow for the rounding of translucent colors when they are composited.
+	 */
+	static void assertSimilarPixels(String message, BufferedImage expected, BufferedImage actual, int tolerance) {
+		assertEquals(message + " width", expected.getWidth(), actual.getWidth());
+		assertEquals(message + " height", expected.getHeight(), actual.getHeight());
+		for (int y = 0; y < expected.getHeight(); y++) {
+			for (int x = 0; x < expected.getWidth(); x++) {
+				int e = expected.getRGB(x, y);
+				int a = actual.getRGB(x, y);
+				String pixel = message + " pixel at " + x + "," + y + ": " + Integer.toHexString(e) + " but was "
+						+ Integer.toHexString(a);
+				assertEquals(pixel, e >>> 24, a >>> 24);
+				for (int shift = 0; shift < 24; shift += 8) {
+					assertTrue(pixel, Math.abs((e >> shift & 0xff) - (a >> shift & 0xff)) <= tolerance);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates an opaque image whose red grows to the right, green downwards and blue diagonally, so that it has far
+	 * more colors than fit in a palette.
+	 */
+	static BufferedImage gradient(int width, int height) {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int red = x * 0xff / Math.max(width - 1, 1);
+				int green = y * 0xff / Math.max(height - 1, 1);
+				int blue = (x + y) * 0xff / Math.max(width + height - 2, 1);
+				image.setRGB(x, y, 0xff000000 | red << 16 | green << 8 | blue);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Creates an opaque image of runs of random colors. The runs are of random length, so the LZW encoder sees strings
+	 * of every length, repeated and new.
+	 *
+	 * @param colors
+	 *            number of distinct colors to pick from
+	 */
+	static BufferedImage noise(int width, int height, int colors, long seed) {
+		Random random = new Random(seed);
+		int[] palette = new int[colors];
+		for (int i = 0; i < colors; i++) {
+			// Multiplying by an odd number keeps the colors distinct and spreads them over the whole cube
+			palette[i] = 0xff000000 | i * 0x9e3779b1 & 0xffffff;
+		}
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		int run = 0;
+		int color = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (run-- == 0) {
+					run = random.nextInt(12);
+					color = palette[random.nextInt(colors)];
+				}
+				image.setRGB(x, y, color);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * @return the mean absolute difference of the color channels of the pixels that are opaque in both images
+	 */
+	static double meanError(BufferedImage expected, BufferedImage actual) {
+		long error = 0;
+		int count = 0;
+		for (int y = 0; y < expected.getHeight(); y++) {
+			for (int x = 0; x < expected.getWidth(); x++) {
+				int e = expected.getRGB(x, y);
+				int a = actual.getRGB(x, y);
+				if (e >>> 24 == 0xff && a >>> 24 == 0xff) {
+					error += Math.abs((e >> 16 & 0xff) - (a >> 16 & 0xff)) + Math.abs((e >> 8 & 0xff) - (a >> 8 & 0xff))
+							+ Math.abs((e & 0xff) - (a & 0xff));
+					count += 3;
+				}
+			}
+		}
+		return (double) error / count;
+	}
+
+	// The first node with the given name in the metadata tree of the GIF reader
+	private static IIOMetadataNode node(IIOMetadataNode root, String name) {
+		return (IIOMetadataNode) root.getElementsByTagName(name).item(0);
+	}
+
+	/**
+	 * Decodes a GIF with the ImageIO reader and composites its frames on the logical screen the way a viewer shows
+	 * them, drawing every frame at its offset and disposing of it as its graphic control extension tells.
+	 */
+	static List<BufferedImage> readGifAnimation(byte[] gif) throws IOException {
+		try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(gif))) {
+			ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+			try {
+				reader.setInput(stream, false);
+				IIOMetadataNode screen = node((IIOMetadataNode) reader.getStreamMetadata()
+						.getAsTree("javax_imageio_gif_stream_1.0"), "LogicalScreenDescriptor");
+				BufferedImage canvas = new BufferedImage(Integer.parseInt(screen.getAttribute("logicalScreenWidth")),
+						Integer.parseInt(screen.getAttribute("logicalScreenHeight")), BufferedImage.TYPE_INT_ARGB);
+				Graphics2D graphics = canvas.createGraphics();
+				int count = reader.getNumImages(true);
+				List<BufferedImage> frames = new ArrayList<>(count);
+				for (int i = 0; i < count; i++) {
+					IIOMetadataNode metadata = (IIOMetadataNode) reader.getImageMetadata(i)
+							.getAsTree("javax_imageio_gif_image_1.0");
+					IIOMetadataNode descriptor = node(metadata, "ImageDescriptor");
+					int left = Integer.parseInt(descriptor.getAttribute("imageLeftPosition"));
+					int top = Integer.parseInt(descriptor.getAttribute("imageTopPosition"));
+					BufferedImage image = reader.read(i);
+					BufferedImage previous = new BufferedImage(canvas.getWidth(), canvas.getHeight(),
+							BufferedImage.TYPE_INT_ARGB);
+					previous.setData(canvas.getRaster());
+
+					graphics.drawImage(image, left, top, null);
+					BufferedImage frame = new BufferedImage(canvas.getWidth(), canvas.getHeight(),
+							BufferedImage.TYPE_INT_ARGB);
+					frame.setData(canvas.getRaster());
+					frames.add(frame);
+
+					switch (node(metadata, "GraphicControlExtension").getAttribute("disposalMethod")) {
+					case "restoreToBackgroundColor":
+						graphics.setComposite(AlphaComposite.Clear);
+						graphics.fillRect(left, top, image.getWidth(), image.getHeight());
+						graphics.setComposite(AlphaComposite.SrcOver);
+						break;
+					case "restoreToPrevious":
+						canvas.setData(previous.getRaster());
+						break;
+					default:
+					}
+				}
+				return frames;
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Decodes every frame of a GIF with the ImageIO reader. The frames are not composited, each one has its own size.
+	 */
+	static List<BufferedImage> readGifFrames(byte[] gif) throws IOException {
+		try (ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(gif))) {
+			ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next();
+			try {
+				reader.setInput(stream, false);
+				int count = reader.getNumImages(true);
+				List<BufferedImage> frames = new ArrayList<>(count);
+				for (int i = 0; i < count; i++) {
+					frames.add(reader.read(i));
+				}
+				return frames;
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	private TestImages() {
+	}
+}